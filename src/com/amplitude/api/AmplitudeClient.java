@@ -5,29 +5,35 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.location.Location;
 import android.os.Build;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Pair;
 
-import com.amplitude.security.MD5;
-
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import okhttp3.FormBody;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
 
 /**
  * <h1>AmplitudeClient</h1>
@@ -103,6 +109,13 @@ public class AmplitudeClient {
 
     private static final AmplitudeLog logger = AmplitudeLog.getLogger();
 
+    /**
+     * The api properties the SDK sets on every event, in the order logEvent adds them.
+     */
+    private static final String[] API_PROPERTY_NAMES = new String[] {
+        "location", "androidADID", "limit_ad_tracking", "gps_enabled"
+    };
+
     /**
      * The Android App Context.
      */
@@ -112,9 +125,10 @@ public class AmplitudeClient {
      */
     protected OkHttpClient httpClient;
     /**
-     * The shared Amplitude database helper instance.
+     * The store for unsent events and metadata, the shared Amplitude database helper instance
+     * unless another store was passed to initialize.
      */
-    protected DatabaseHelper dbHelper;
+    protected EventStore dbHelper;
     /**
      * The Amplitude App API key.
      */
@@ -142,8 +156,23 @@ public class AmplitudeClient {
     long lastIdentifyId = -1;
     long lastEventTime = -1;
     long previousSessionId = -1;
+    /**
+     * Set while logEvent updates the session, as the last event time is then written in the
+     * same transaction as the event instead of on its own.
+     */
+    private boolean deferLastEventTimeWrite = false;
 
     private DeviceInfo deviceInfo;
+    /**
+     * The serialized fields shared by all events, rebuilt when the ids or the device info
+     * change. Volatile as logEventSync serializes events on the caller's thread.
+     */
+    private volatile EventContext eventContext;
+    /**
+     * Writes logged events, guarded by its own lock as logEventSync logs events on the
+     * caller's thread.
+     */
+    private final EventEncoder eventEncoder = new EventEncoder();
 
     /**
      * The current session ID value.
@@ -151,21 +180,107 @@ public class AmplitudeClient {
     private int eventUploadThreshold = Constants.EVENT_UPLOAD_THRESHOLD;
     private int eventUploadMaxBatchSize = Constants.EVENT_UPLOAD_MAX_BATCH_SIZE;
     private int eventMaxCount = Constants.EVENT_MAX_COUNT;
+    private long eventMaxBytes = Constants.EVENT_MAX_BYTES;
+    // kept up to date on logThread so getUnsentEventBytes never waits on the store
+    private volatile long unsentEventBytes = 0;
+    private int eventInsertMaxBatchSize = Constants.EVENT_INSERT_MAX_BATCH_SIZE;
+    private long eventInsertMaxDelayMillis = Constants.EVENT_INSERT_MAX_DELAY_MILLIS;
     private long eventUploadPeriodMillis = Constants.EVENT_UPLOAD_PERIOD_MILLIS;
     private long minTimeBetweenSessionsMillis = Constants.MIN_TIME_BETWEEN_SESSIONS_MILLIS;
     private long sessionTimeoutMillis = Constants.SESSION_TIMEOUT_MILLIS;
-    private boolean backoffUpload = false;
-    private int backoffUploadBatchSize = eventUploadMaxBatchSize;
+    private final UploadBatchPlanner uploadBatchPlanner = new UploadBatchPlanner(
+            eventUploadMaxBatchSize, Constants.EVENT_UPLOAD_MAX_BATCH_BYTES,
+            Constants.UPLOAD_SLOW_LATENCY_MILLIS);
+    private int uploadConcurrency = Constants.UPLOAD_CONCURRENCY;
+    private NetworkMonitor networkMonitor;
+    private long meteredBacklogThreshold = 0;
     private boolean usingForegroundTracking = false;
     private boolean trackingSessionEvents = false;
     private boolean inForeground = false;
     private boolean flushEventsOnClose = true;
+    private boolean persistentDatabaseConnection = false;
+    private boolean metadataWriteBack = false;
+    private boolean eventCompression = false;
+    private boolean uploadCompression = false;
+    // set once the endpoint refuses a compressed upload, plain bodies are sent from then on
+    private volatile boolean uploadCompressionRejected = false;
+    private long metadataWriteBackDelayMillis = Constants.METADATA_WRITE_BACK_DELAY_MILLIS;
 
     private AtomicBoolean updateScheduled = new AtomicBoolean(false);
+    // coalesces the uploads triggered by a burst of high-priority events
+    private AtomicBoolean priorityUploadScheduled = new AtomicBoolean(false);
+
+    /**
+     * Serialized events waiting to be inserted as one batch. Guarded by pendingEventsLock,
+     * as logEventSync saves events on the caller's thread.
+     */
+    private final Object pendingEventsLock = new Object();
+    private List<String> pendingEvents = new ArrayList<String>();
+    private List<String> pendingIdentifys = new ArrayList<String>();
+    private boolean insertScheduled = false;
+    private Runnable insertPendingEventsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            insertScheduled = false;
+            insertPendingEvents(true);
+        }
+    };
+    private Runnable flushMetadataRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dbHelper.flush();
+        }
+    };
+    // run by the DatabaseHelper when a metadata write is buffered and nothing else was pending
+    private Runnable scheduleMetadataFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            logThread.postDelayed(flushMetadataRunnable, metadataWriteBackDelayMillis);
+        }
+    };
     /**
      * Whether or not the SDK is in the process of uploading events.
      */
     AtomicBoolean uploadingCurrently = new AtomicBoolean(false);
+    /**
+     * The batches being uploaded, oldest first. Only used on logThread.
+     */
+    final List<UploadBatch> uploadBatches = new ArrayList<UploadBatch>();
+    /**
+     * The number of events moved out of the upload queues because the server rejected them
+     * as too large. Only used on logThread.
+     */
+    long quarantinedEventCount = 0;
+    /**
+     * Backoff of uploads after failed uploads.
+     */
+    final UploadRetryScheduler uploadRetryScheduler = new UploadRetryScheduler(
+            Constants.UPLOAD_RETRY_BASE_DELAY_MILLIS, Constants.UPLOAD_RETRY_MAX_DELAY_MILLIS,
+            new Random());
+    /**
+     * The number of times an upload was held off because the network monitor reported the
+     * device offline, or on a metered network with a large backlog, and of uploads that failed.
+     * Only used on logThread.
+     */
+    long deferredUploadCount = 0;
+    long failedUploadCount = 0;
+    private Runnable retryUploadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateServer();
+            updateFlushes();
+        }
+    };
+    /**
+     * The flushes in progress, see {@link #flush(long, FlushCallback)}. Only used on logThread.
+     */
+    final List<UploadFlush> flushes = new ArrayList<UploadFlush>();
+    private Runnable updateFlushesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateFlushes();
+        }
+    };
 
     /**
      * The last SDK error - used for testing.
@@ -183,6 +298,10 @@ public class AmplitudeClient {
      * The background event uploading worker thread instance.
      */
     WorkerThread httpThread = new WorkerThread("httpThread");
+    /**
+     * Upload threads for the batches beyond the first one, see {@link #getUploadThread(int)}.
+     */
+    private final List<WorkerThread> extraHttpThreads = new ArrayList<WorkerThread>();
 
     /**
      * Instantiates a new AmplitudeClient and starts worker threads.
@@ -215,7 +334,25 @@ public class AmplitudeClient {
      * @param userId  the user id to set
      * @return the AmplitudeClient
      */
-    public synchronized AmplitudeClient initialize(final Context context, final String apiKey, final String userId) {
+    public AmplitudeClient initialize(Context context, String apiKey, String userId) {
+        return initialize(context, apiKey, userId, null);
+    }
+
+    /**
+     * Initialize the Amplitude SDK with the Android application context, your Amplitude App API
+     * key, a user ID for the current user, and the store to keep unsent events in, for example
+     * a {@link FileEventStore} to avoid SQLite. <b>Note:</b> initialization is required before
+     * you log events and modify user properties.
+     *
+     * @param context    the Android application context
+     * @param apiKey     your Amplitude App API key
+     * @param userId     the user id to set
+     * @param eventStore the store for unsent events and metadata, or null for the SDK's own
+     *                   SQLite database
+     * @return the AmplitudeClient
+     */
+    public synchronized AmplitudeClient initialize(final Context context, final String apiKey,
+            final String userId, EventStore eventStore) {
         if (context == null) {
             logger.e(TAG, "Argument context cannot be null in initialize()");
             return this;
@@ -228,7 +365,18 @@ public class AmplitudeClient {
 
         this.context = context.getApplicationContext();
         this.apiKey = apiKey;
-        this.dbHelper = DatabaseHelper.getDatabaseHelper(this.context, apiKey);
+        this.dbHelper = eventStore != null ?
+                eventStore : DatabaseHelper.getDatabaseHelper(this.context, apiKey);
+        DatabaseHelper databaseHelper = getDatabaseHelper();
+        if (databaseHelper != null) {
+            if (persistentDatabaseConnection) {
+                databaseHelper.setPersistentConnection(true);
+            }
+            databaseHelper.setWriteBackScheduler(scheduleMetadataFlushRunnable);
+            if (metadataWriteBack) {
+                databaseHelper.setWriteBack(true);
+            }
+        }
 
         final AmplitudeClient client = this;
         runOnLogThread(new Runnable() {
@@ -238,9 +386,12 @@ public class AmplitudeClient {
                     // this try block is idempotent, so it's safe to retry initialize if failed
                     try {
                         AmplitudeClient.upgradePrefs(context);
-                        AmplitudeClient.upgradeSharedPrefsToDB(context, apiKey);
+                        AmplitudeClient.upgradeSharedPrefsToDB(context, dbHelper, null);
                         httpClient = new OkHttpClient();
                         initializeDeviceInfo();
+                        if (eventCompression) {
+                            initializeEventCompression();
+                        }
 
                         if (userId != null) {
                             client.userId = userId;
@@ -262,6 +413,7 @@ public class AmplitudeClient {
                         lastEventId = getLongvalue(LAST_EVENT_ID_KEY, -1);
                         lastIdentifyId = getLongvalue(LAST_IDENTIFY_ID_KEY, -1);
                         lastEventTime = getLongvalue(LAST_EVENT_TIME_KEY, -1);
+                        updateUnsentEventBytes();
 
                         initialized = true;
 
@@ -306,6 +458,47 @@ public class AmplitudeClient {
         deviceInfo.prefetch();
     }
 
+    // the SQLite specific settings only apply when the SDK's own database is the event store
+    private DatabaseHelper getDatabaseHelper() {
+        return dbHelper instanceof DatabaseHelper ? (DatabaseHelper) dbHelper : null;
+    }
+
+    // this method should only be called from the background log thread
+    private void initializeEventCompression() {
+        DatabaseHelper databaseHelper = getDatabaseHelper();
+        if (databaseHelper != null) {
+            databaseHelper.setCompressionDictionary(getCompressionDictionary());
+            databaseHelper.setEventCompression(true);
+        }
+    }
+
+    /**
+     * Builds the preset dictionary for compressing stored events out of the values that are
+     * the same in every event on this device, laid out the way logEvent writes them.
+     */
+    private String getCompressionDictionary() {
+        JSONObject dictionary = new JSONObject();
+        try {
+            dictionary.put("event_type", "");
+            dictionary.put("timestamp", 0);
+            dictionary.put("session_id", 0);
+            dictionary.put("uuid", "");
+            dictionary.put("sequence_number", 0);
+
+            JSONObject apiProperties = new JSONObject();
+            apiProperties.put("limit_ad_tracking", false);
+            apiProperties.put("gps_enabled", false);
+            dictionary.put("api_properties", apiProperties);
+            dictionary.put("event_properties", new JSONObject());
+            dictionary.put("user_properties", new JSONObject());
+            dictionary.put("groups", new JSONObject());
+            return getEventContext().serialize(dictionary);
+        } catch (JSONException e) {
+            logger.e(TAG, e.toString());
+        }
+        return dictionary.toString();
+    }
+
     /**
      * Whether to set a new device ID per install. If true, then the SDK will always generate a new
      * device ID on app install (as opposed to re-using an existing value like ADID).
@@ -391,7 +584,22 @@ public class AmplitudeClient {
      */
     public AmplitudeClient setEventUploadMaxBatchSize(int eventUploadMaxBatchSize) {
         this.eventUploadMaxBatchSize = eventUploadMaxBatchSize;
-        this.backoffUploadBatchSize = eventUploadMaxBatchSize;
+        uploadBatchPlanner.setMaxBatchSize(eventUploadMaxBatchSize);
+        return this;
+    }
+
+    /**
+     * Sets the target payload size of an upload request in bytes (256 KB by default), 0 for no
+     * limit. Batches are filled with events up to this size or the max batch size, whichever
+     * comes first. Both limits shrink when the server rejects a request as too large or is slow
+     * to respond, and grow back after each fast upload, so requests stay as full as the network
+     * allows.
+     *
+     * @param eventUploadMaxBatchBytes the target size of an upload request in bytes
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setEventUploadMaxBatchBytes(long eventUploadMaxBatchBytes) {
+        uploadBatchPlanner.setMaxBatchBytes(eventUploadMaxBatchBytes);
         return this;
     }
 
@@ -409,6 +617,79 @@ public class AmplitudeClient {
         return this;
     }
 
+    /**
+     * Sets event max bytes. This is the maximum total size in bytes of the unsent events kept
+     * on the device, applied to events and identifys separately like the event max count. If
+     * the unsent events grow beyond it, the SDK begins dropping events, starting from the
+     * earliest logged. A value of 0 (the default) means no byte limit.
+     *
+     * @param eventMaxBytes the event max bytes
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setEventMaxBytes(long eventMaxBytes) {
+        this.eventMaxBytes = eventMaxBytes;
+        return this;
+    }
+
+    /**
+     * Returns the total size in bytes of the unsent events and identifys stored on the device.
+     * The value is updated in the background after events are saved, trimmed or uploaded, so
+     * it does not include events that are still being saved.
+     *
+     * @return the unsent event bytes, or 0 if the client has not been initialized
+     */
+    public long getUnsentEventBytes() {
+        return unsentEventBytes;
+    }
+
+    // this method should only be called from the background log thread
+    private void updateUnsentEventBytes() {
+        unsentEventBytes = dbHelper.getTotalEventBytes();
+    }
+
+    /**
+     * Sets the event insert max batch size. Events logged in quick succession are held on the
+     * background thread and written to the database together in a single transaction, up to
+     * this many at a time. A batch size of 1 (the default) writes every event immediately.
+     * Use {@link #setEventInsertMaxDelayMillis(long)} to bound how long an event can wait.
+     *
+     * @param eventInsertMaxBatchSize the max number of events written per transaction
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setEventInsertMaxBatchSize(final int eventInsertMaxBatchSize) {
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                AmplitudeClient.this.eventInsertMaxBatchSize = Math.max(1, eventInsertMaxBatchSize);
+                if (AmplitudeClient.this.eventInsertMaxBatchSize == 1) {
+                    insertPendingEvents(true);
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Sets the event insert max delay millis. When insert batching is enabled with
+     * {@link #setEventInsertMaxBatchSize(int)}, this is the longest an event waits in memory
+     * before its batch is written. With the default of 0, a batch is written as soon as the
+     * background thread has drained the events that were already queued. Events that have
+     * not been written yet are lost if the process is killed.
+     *
+     * @param eventInsertMaxDelayMillis the max time in milliseconds an event waits for a batch
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setEventInsertMaxDelayMillis(final long eventInsertMaxDelayMillis) {
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                AmplitudeClient.this.eventInsertMaxDelayMillis =
+                    Math.max(0, eventInsertMaxDelayMillis);
+            }
+        });
+        return this;
+    }
+
     /**
      * Sets event upload period millis. The SDK will attempt to batch upload unsent events
      * every eventUploadPeriodMillis milliseconds, or if the unsent event count exceeds the
@@ -532,6 +813,247 @@ public class AmplitudeClient {
         return this;
     }
 
+    /**
+     * Enable/disable keeping the SDK's SQLite database open between operations (disabled by
+     * default). When enabled, the database is opened once with write-ahead logging and reused
+     * for every read and write, instead of being reopened several times per logged event. Use
+     * {@link #closeDatabaseConnection()} to release the connection, for example when the app
+     * receives a low memory warning; it will be reopened on the next operation.
+     *
+     * @param persistentDatabaseConnection whether to keep the database connection open
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setPersistentDatabaseConnection(
+            final boolean persistentDatabaseConnection) {
+        this.persistentDatabaseConnection = persistentDatabaseConnection;
+        if (dbHelper == null) { // applied in initialize
+            return this;
+        }
+
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                DatabaseHelper databaseHelper = getDatabaseHelper();
+                if (databaseHelper != null) {
+                    databaseHelper.setPersistentConnection(persistentDatabaseConnection);
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Enable/disable buffering the SDK's metadata writes in memory (disabled by default).
+     * Logging an event updates several stored values (sequence number, last event id, last
+     * event time), each of which is otherwise a separate database write. When enabled, repeated
+     * writes of the same value are coalesced and committed together with the next saved event,
+     * after {@link #setMetadataWriteBackDelayMillis(long)}, or when the app goes to the
+     * background. Values that have not been committed are lost if the process is killed, but
+     * saved events are always committed together with the values set before them, so for
+     * example sequence numbers never go backwards after a restart.
+     *
+     * @param metadataWriteBack whether to buffer metadata writes
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setMetadataWriteBack(final boolean metadataWriteBack) {
+        this.metadataWriteBack = metadataWriteBack;
+        if (dbHelper == null) { // applied in initialize
+            return this;
+        }
+
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                DatabaseHelper databaseHelper = getDatabaseHelper();
+                if (databaseHelper != null) {
+                    databaseHelper.setWriteBack(metadataWriteBack);
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Enable/disable compressing events while they are stored on the device (disabled by
+     * default). Events are deflated with a dictionary built from the device's properties,
+     * which shrinks the database considerably when many events are waiting to be uploaded,
+     * at the cost of some CPU time when logging and uploading. Events stored before changing
+     * this setting remain readable either way.
+     *
+     * @param eventCompression whether to compress stored events
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setEventCompression(final boolean eventCompression) {
+        this.eventCompression = eventCompression;
+        if (dbHelper == null) { // applied in initialize
+            return this;
+        }
+
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                DatabaseHelper databaseHelper = getDatabaseHelper();
+                if (eventCompression && deviceInfo != null) {
+                    initializeEventCompression();
+                } else if (databaseHelper != null) {
+                    // before initialize finishes compression is enabled there instead
+                    databaseHelper.setEventCompression(false);
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Sets the number of upload requests that can be in flight at the same time (1 by
+     * default). When many events are waiting to be uploaded, for example after the device was
+     * offline for a while, uploading several batches at once drains them faster on networks
+     * with a long round trip time. Each batch holds different events, and the server
+     * acknowledges them independently. With more than one batch in flight, the server may
+     * receive batches out of order; with the default of 1 it always receives events in the
+     * order they were logged.
+     *
+     * @param uploadConcurrency the max number of upload requests in flight, at least 1
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setUploadConcurrency(int uploadConcurrency) {
+        this.uploadConcurrency = Math.max(1, uploadConcurrency);
+        return this;
+    }
+
+    /**
+     * Sets how long to wait before retrying after an upload fails, for example because the
+     * device has no connection (2 seconds and 5 minutes by default). The wait doubles with each
+     * consecutive failure up to the max, with some random jitter, and resets once an upload
+     * succeeds. While waiting, logging events does not trigger uploads, but
+     * {@link #uploadEvents()} still does.
+     *
+     * @param baseDelayMillis the wait after the first failure in milliseconds
+     * @param maxDelayMillis  the longest wait in milliseconds
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setUploadRetryDelayMillis(long baseDelayMillis, long maxDelayMillis) {
+        uploadRetryScheduler.setDelays(baseDelayMillis, maxDelayMillis);
+        return this;
+    }
+
+    /**
+     * Enable watching the device's connectivity, using the ACCESS_NETWORK_STATE permission.
+     * While the device is offline the SDK keeps logging events but does not try to upload
+     * them, and it uploads right away once the device is back online. Without the permission
+     * the device is always treated as online. Call this after initializing the SDK.
+     *
+     * @return the AmplitudeClient
+     * @see #setOffline(boolean)
+     */
+    public AmplitudeClient enableNetworkMonitoring() {
+        return enableNetworkMonitoring(new ConnectivityNetworkMonitor());
+    }
+
+    /**
+     * Enable watching the device's connectivity with the given monitor, see
+     * {@link #enableNetworkMonitoring()}. Replaces the monitor enabled before, if any.
+     *
+     * @param monitor the network monitor
+     * @return the AmplitudeClient
+     */
+    public synchronized AmplitudeClient enableNetworkMonitoring(NetworkMonitor monitor) {
+        if (monitor == null || !contextAndApiKeySet("enableNetworkMonitoring()")) {
+            return this;
+        }
+
+        disableNetworkMonitoring();
+        networkMonitor = monitor;
+        monitor.start(context, new NetworkMonitor.Listener() {
+            @Override
+            public void onNetworkChanged() {
+                runOnLogThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AmplitudeClient.this.onNetworkChanged();
+                    }
+                });
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Stop watching the device's connectivity, uploads are attempted whatever the network.
+     *
+     * @return the AmplitudeClient
+     */
+    public synchronized AmplitudeClient disableNetworkMonitoring() {
+        if (networkMonitor != null) {
+            networkMonitor.stop();
+            networkMonitor = null;
+        }
+        return this;
+    }
+
+    /**
+     * Sets how many unsent events can be uploaded over a metered connection such as mobile
+     * data, when network monitoring is enabled (0, no limit, by default). With more events
+     * waiting, for example after the device was offline for a while, uploads wait for an
+     * unmetered network instead, and start as soon as the device gets on one. Unsent events
+     * are still capped by {@link #setEventMaxCount(int)} meanwhile.
+     *
+     * @param meteredBacklogThreshold the max number of unsent events to upload on a metered
+     *                                network, or 0 for no limit
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setMeteredBacklogThreshold(long meteredBacklogThreshold) {
+        this.meteredBacklogThreshold = meteredBacklogThreshold;
+        return this;
+    }
+
+    /**
+     * Enable/disable gzip compressing event upload requests (disabled by default). The
+     * request body is compressed and sent with a {@code Content-Encoding: gzip} header, which
+     * shrinks uploads considerably since events repeat the same device properties. The
+     * checksum is still computed over the uncompressed events, as the server verifies it after
+     * decompressing. If the endpoint rejects a compressed request, the SDK goes back to
+     * sending plain requests for the rest of the session.
+     *
+     * @param uploadCompression whether to compress upload requests
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setUploadCompression(boolean uploadCompression) {
+        this.uploadCompression = uploadCompression;
+        return this;
+    }
+
+    /**
+     * Sets the metadata write back delay millis. When metadata write-back is enabled with
+     * {@link #setMetadataWriteBack(boolean)}, buffered values are committed at most this long
+     * after they were first changed, even if no event is saved in the meantime.
+     *
+     * @param metadataWriteBackDelayMillis the max time in milliseconds a value stays buffered
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setMetadataWriteBackDelayMillis(long metadataWriteBackDelayMillis) {
+        this.metadataWriteBackDelayMillis = metadataWriteBackDelayMillis;
+        return this;
+    }
+
+    /**
+     * Closes the SDK's database connection. Only useful together with
+     * {@link #setPersistentDatabaseConnection(boolean)}, as otherwise the connection is already
+     * closed after each operation. Any later SDK call transparently reopens the database.
+     */
+    public void closeDatabaseConnection() {
+        if (!contextAndApiKeySet("closeDatabaseConnection()")) {
+            return;
+        }
+
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                dbHelper.close();
+            }
+        });
+    }
+
     /**
      * Track session events amplitude client. If enabled then the SDK will automatically send
      * start and end session events to mark the start and end of the user's sessions.
@@ -669,9 +1191,31 @@ public class AmplitudeClient {
      *     Tracking Sessions</a>
      */
     public void logEvent(String eventType, JSONObject eventProperties, JSONObject groups, long timestamp, boolean outOfSession) {
+        logEvent(eventType, eventProperties, groups, timestamp, outOfSession, false);
+    }
+
+    /**
+     * Log event with the specified event type, event properties, groups, timestamp, with optional
+     * out of session and high priority flags. High-priority events are uploaded as soon as they
+     * are logged, ahead of the other unsent events, and are not dropped to make room for other
+     * events once there are more than {@link #setEventMaxCount(int)} unsent events. Use it for
+     * the few events that must not be lost or delayed, revenue events are always high priority.
+     * Since they can reach the server before events logged earlier, user properties set by an
+     * identify logged just before a high-priority event may not apply to it.
+     * <b>Note:</b> this is asynchronous and happens on a background thread.
+     *
+     * @param eventType       the event type
+     * @param eventProperties the event properties
+     * @param groups          the groups
+     * @param timestamp       the timestamp in millisecond since epoch
+     * @param outOfSession    the out of session
+     * @param highPriority    whether the event is high priority
+     */
+    public void logEvent(String eventType, JSONObject eventProperties, JSONObject groups, long timestamp, boolean outOfSession, boolean highPriority) {
         if (validateLogEvent(eventType)) {
             logEventAsync(
-                eventType, eventProperties, null, null, groups, timestamp, outOfSession
+                eventType, eventProperties, null, null, groups, timestamp, outOfSession,
+                highPriority
             );
         }
     }
@@ -780,6 +1324,8 @@ public class AmplitudeClient {
     public void logEventSync(String eventType, JSONObject eventProperties, JSONObject groups, long timestamp, boolean outOfSession) {
         if (validateLogEvent(eventType)) {
             logEvent(eventType, eventProperties, null, null, groups, timestamp, outOfSession);
+            // the event may be waiting in an insert batch, write it before returning
+            insertPendingEvents(true);
         }
     }
 
@@ -813,6 +1359,26 @@ public class AmplitudeClient {
     protected void logEventAsync(final String eventType, JSONObject eventProperties,
             final JSONObject apiProperties, JSONObject userProperties,
             JSONObject groups, final long timestamp, final boolean outOfSession) {
+        logEventAsync(eventType, eventProperties, apiProperties, userProperties, groups,
+            timestamp, outOfSession, false);
+    }
+
+    /**
+     * Log event async. Internal method to handle the synchronous logging of events.
+     *
+     * @param eventType       the event type
+     * @param eventProperties the event properties
+     * @param apiProperties   the api properties
+     * @param userProperties  the user properties
+     * @param groups          the groups
+     * @param timestamp       the timestamp
+     * @param outOfSession    the out of session
+     * @param highPriority    whether the event is high priority
+     */
+    protected void logEventAsync(final String eventType, JSONObject eventProperties,
+            final JSONObject apiProperties, JSONObject userProperties,
+            JSONObject groups, final long timestamp, final boolean outOfSession,
+            final boolean highPriority) {
         // Clone the incoming eventProperties object before sending over
         // to the log thread. Helps avoid ConcurrentModificationException
         // if the caller starts mutating the object they passed in.
@@ -841,7 +1407,7 @@ public class AmplitudeClient {
                 }
                 logEvent(
                     eventType, copyEventProperties, apiProperties,
-                    copyUserProperties, copyGroups, timestamp, outOfSession
+                    copyUserProperties, copyGroups, timestamp, outOfSession, highPriority
                 );
             }
         });
@@ -862,6 +1428,27 @@ public class AmplitudeClient {
      */
     protected long logEvent(String eventType, JSONObject eventProperties, JSONObject apiProperties,
             JSONObject userProperties, JSONObject groups, long timestamp, boolean outOfSession) {
+        return logEvent(eventType, eventProperties, apiProperties, userProperties, groups,
+            timestamp, outOfSession, false);
+    }
+
+    /**
+     * Log event. Internal method to handle the asynchronous logging of events on background
+     * thread.
+     *
+     * @param eventType       the event type
+     * @param eventProperties the event properties
+     * @param apiProperties   the api properties
+     * @param userProperties  the user properties
+     * @param groups          the groups
+     * @param timestamp       the timestamp
+     * @param outOfSession    the out of session
+     * @param highPriority    whether the event is high priority
+     * @return the event ID if succeeded, else -1.
+     */
+    protected long logEvent(String eventType, JSONObject eventProperties, JSONObject apiProperties,
+            JSONObject userProperties, JSONObject groups, long timestamp, boolean outOfSession,
+            boolean highPriority) {
         logger.d(TAG, "Logged event to Amplitude: " + eventType);
 
         if (optOut) {
@@ -873,62 +1460,58 @@ public class AmplitudeClient {
                 (eventType.equals(START_SESSION_EVENT) || eventType.equals(END_SESSION_EVENT));
 
         if (!loggingSessionEvent && !outOfSession) {
-            // default case + corner case when async logEvent between onPause and onResume
-            if (!inForeground){
-                startNewSessionIfNeeded(timestamp);
-            } else {
-                refreshSessionTime(timestamp);
+            boolean deferring = deferLastEventTimeWrite;
+            deferLastEventTimeWrite = true;
+            try {
+                // default case + corner case when async logEvent between onPause and onResume
+                if (!inForeground){
+                    startNewSessionIfNeeded(timestamp);
+                } else {
+                    refreshSessionTime(timestamp);
+                }
+            } finally {
+                deferLastEventTimeWrite = deferring;
             }
         }
 
         long result = -1;
-        JSONObject event = new JSONObject();
         try {
-            event.put("event_type", replaceWithJSONNull(eventType));
-            event.put("timestamp", timestamp);
-            event.put("user_id", replaceWithJSONNull(userId));
-            event.put("device_id", replaceWithJSONNull(deviceId));
-            event.put("session_id", outOfSession ? -1 : sessionId);
-            event.put("version_name", replaceWithJSONNull(deviceInfo.getVersionName()));
-            event.put("os_name", replaceWithJSONNull(deviceInfo.getOsName()));
-            event.put("os_version", replaceWithJSONNull(deviceInfo.getOsVersion()));
-            event.put("device_brand", replaceWithJSONNull(deviceInfo.getBrand()));
-            event.put("device_manufacturer", replaceWithJSONNull(deviceInfo.getManufacturer()));
-            event.put("device_model", replaceWithJSONNull(deviceInfo.getModel()));
-            event.put("carrier", replaceWithJSONNull(deviceInfo.getCarrier()));
-            event.put("country", replaceWithJSONNull(deviceInfo.getCountry()));
-            event.put("language", replaceWithJSONNull(deviceInfo.getLanguage()));
-            event.put("platform", Constants.PLATFORM);
-            event.put("uuid", UUID.randomUUID().toString());
-            event.put("sequence_number", getNextSequenceNumber());
-
-            JSONObject library = new JSONObject();
-            library.put("name", Constants.LIBRARY);
-            library.put("version", Constants.VERSION);
-            event.put("library", library);
-
-            apiProperties = (apiProperties == null) ? new JSONObject() : apiProperties;
-            Location location = deviceInfo.getMostRecentLocation();
-            if (location != null) {
+            Object location = null;
+            Location mostRecentLocation = deviceInfo.getMostRecentLocation();
+            if (mostRecentLocation != null) {
                 JSONObject locationJSON = new JSONObject();
-                locationJSON.put("lat", location.getLatitude());
-                locationJSON.put("lng", location.getLongitude());
-                apiProperties.put("location", locationJSON);
+                locationJSON.put("lat", mostRecentLocation.getLatitude());
+                locationJSON.put("lng", mostRecentLocation.getLongitude());
+                location = locationJSON;
             }
-            if (deviceInfo.getAdvertisingId() != null) {
-                apiProperties.put("androidADID", deviceInfo.getAdvertisingId());
+            Object[] apiPropertyValues = new Object[] {
+                location,
+                deviceInfo.getAdvertisingId(),
+                deviceInfo.isLimitAdTrackingEnabled(),
+                deviceInfo.isGooglePlayServicesEnabled()
+            };
+            EventContext context = getEventContext();
+
+            String event;
+            synchronized (eventEncoder) {
+                eventEncoder.beginEvent()
+                    .name("event_type").value(eventType)
+                    .name("timestamp").value(timestamp)
+                    .name("session_id").value(outOfSession ? -1 : sessionId)
+                    .name("uuid").value(UUID.randomUUID().toString())
+                    // persisted together with the event in saveEvent
+                    .name("sequence_number").value(++sequenceNumber)
+                    .name("api_properties")
+                    .valueWith(apiProperties, API_PROPERTY_NAMES, apiPropertyValues)
+                    .name("event_properties").truncatedValue(eventProperties)
+                    .name("user_properties").truncatedValue(userProperties)
+                    .name("groups").truncatedValue(groups)
+                    // the ids, device info and library come from the cached event context
+                    .members(context.getFields());
+                event = eventEncoder.endEvent();
             }
-            apiProperties.put("limit_ad_tracking", deviceInfo.isLimitAdTrackingEnabled());
-            apiProperties.put("gps_enabled", deviceInfo.isGooglePlayServicesEnabled());
-
-            event.put("api_properties", apiProperties);
-            event.put("event_properties", (eventProperties == null) ? new JSONObject()
-                : truncate(eventProperties));
-            event.put("user_properties", (userProperties == null) ? new JSONObject()
-                : truncate(userProperties));
-            event.put("groups", (groups == null) ? new JSONObject() : truncate(groups));
 
-            result = saveEvent(eventType, event);
+            result = saveEvent(eventType, event, highPriority);
         } catch (JSONException e) {
             logger.e(TAG, String.format(
                 "JSON Serialization of event type %s failed, skipping: %s", eventType, e.toString()
@@ -938,15 +1521,60 @@ public class AmplitudeClient {
         return result;
     }
 
+    /**
+     * Returns the serialized fields shared by all events, building them again if the user ID,
+     * the device ID or the device info changed since the last event.
+     */
+    EventContext getEventContext() throws JSONException {
+        EventContext context = eventContext;
+        if (context == null || !context.isCurrent(userId, deviceId, deviceInfo)) {
+            context = EventContext.build(userId, deviceId, deviceInfo);
+            eventContext = context;
+        }
+        return context;
+    }
+
+    /**
+     * Save event long. Internal method to save an event to the database.
+     *
+     * @param eventType   the event type
+     * @param eventString the serialized event
+     * @return the event ID if succeeded, else -1. Also -1 if the event is waiting to be
+     * written in the next insert batch.
+     */
+    protected long saveEvent(String eventType, String eventString) {
+        return saveEvent(eventType, eventString, false);
+    }
+
     /**
      * Save event long. Internal method to save an event to the database.
      *
      * @param eventType the event type
      * @param event     the event
      * @return the event ID if succeeded, else -1
+     * @deprecated - use {@code saveEvent(String, String)} instead. Logged events no longer go
+     * through this method, so overriding it has no effect.
      */
+    @Deprecated
     protected long saveEvent(String eventType, JSONObject event) {
-        String eventString = event.toString();
+        return saveEvent(eventType, event.toString());
+    }
+
+    /**
+     * Save event long. Internal method to save an event to the database. High-priority events
+     * are written to the priority queue right away, even while inserts are batched, and
+     * uploaded as soon as possible. Stores other than the SDK's SQLite database have no
+     * priority queue, high-priority events only trigger an upload there. Identifys keep their
+     * place in the identifys queue, the server applies their user properties in order.
+     *
+     * @param eventType    the event type
+     * @param eventString  the serialized event
+     * @param highPriority whether the event is high priority
+     * @return the event ID if succeeded, else -1. Also -1 if the event is waiting to be
+     * written in the next insert batch. IDs of high-priority events are IDs in the priority
+     * queue.
+     */
+    protected long saveEvent(String eventType, String eventString, boolean highPriority) {
         if (TextUtils.isEmpty(eventString)) {
             logger.e(TAG, String.format(
                 "Detected empty event string for event type %s, skipping", eventType
@@ -954,34 +1582,149 @@ public class AmplitudeClient {
             return -1;
         }
 
-        if (eventType.equals(Constants.IDENTIFY_EVENT)) {
-            lastIdentifyId = dbHelper.addIdentify(eventString);
-            setLastIdentifyId(lastIdentifyId);
-        } else {
-            lastEventId = dbHelper.addEvent(eventString);
-            setLastEventId(lastEventId);
+        boolean isIdentify = eventType.equals(Constants.IDENTIFY_EVENT);
+        if (highPriority && !isIdentify) {
+            uploadPriorityEventsSoon();
+            DatabaseHelper databaseHelper = getDatabaseHelper();
+            if (databaseHelper != null) {
+                long id = databaseHelper.addPriorityEventWithMetadata(
+                        eventString, null, getEventMetadata());
+                // only trimmed once high-priority events alone are over the max count
+                long dropped = databaseHelper.trimPriorityEvents(
+                        eventMaxCount, eventMaxCount - Math.max(1, eventMaxCount/10) + 1);
+                if (dropped > 0) {
+                    logger.w(TAG, String.format(
+                        "Unsent high-priority event count exceeded eventMaxCount %d, " +
+                        "dropped %d oldest high-priority events", eventMaxCount, dropped
+                    ));
+                }
+                return id;
+            }
+        }
+
+        if (eventInsertMaxBatchSize > 1) {
+            synchronized (pendingEventsLock) {
+                (isIdentify ? pendingIdentifys : pendingEvents).add(eventString);
+                if (pendingEvents.size() + pendingIdentifys.size() >= eventInsertMaxBatchSize) {
+                    insertPendingEvents(true);
+                } else if (!insertScheduled) {
+                    insertScheduled = true;
+                    logThread.postDelayed(insertPendingEventsRunnable, eventInsertMaxDelayMillis);
+                }
+            }
+            return -1;
+        }
+
+        if (isIdentify) {
+            lastIdentifyId = dbHelper.addIdentifyWithMetadata(
+                    eventString, LAST_IDENTIFY_ID_KEY, getEventMetadata());
+        } else {
+            lastEventId = dbHelper.addEventWithMetadata(
+                    eventString, LAST_EVENT_ID_KEY, getEventMetadata());
+        }
+
+        onEventsSaved(1, true);
+
+        return isIdentify ? lastIdentifyId : lastEventId;
+    }
+
+    /**
+     * Internal method to write the events accumulated by {@code saveEvent} in one batch.
+     * <b>Note: </b> always call this on logThread
+     *
+     * @param checkUploadThreshold whether to trigger an upload if the threshold is crossed
+     */
+    void insertPendingEvents(boolean checkUploadThreshold) {
+        int numEvents;
+        // held while writing so batches flushed from logEventSync cannot be reordered
+        synchronized (pendingEventsLock) {
+            numEvents = pendingEvents.size() + pendingIdentifys.size();
+            if (numEvents == 0) {
+                return;
+            }
+
+            DatabaseHelper databaseHelper = getDatabaseHelper();
+            if (databaseHelper != null) {
+                // one transaction, so a batch is never stored in part
+                Pair<Long, Long> ids = databaseHelper.addEventsAndIdentifysWithMetadata(
+                        pendingEvents, LAST_EVENT_ID_KEY, pendingIdentifys, LAST_IDENTIFY_ID_KEY,
+                        getEventMetadata());
+                if (!pendingEvents.isEmpty()) {
+                    lastEventId = ids.first;
+                }
+                if (!pendingIdentifys.isEmpty()) {
+                    lastIdentifyId = ids.second;
+                }
+            } else {
+                if (!pendingEvents.isEmpty()) {
+                    lastEventId = dbHelper.addEventsWithMetadata(
+                            pendingEvents, LAST_EVENT_ID_KEY, getEventMetadata());
+                }
+                if (!pendingIdentifys.isEmpty()) {
+                    lastIdentifyId = dbHelper.addIdentifysWithMetadata(
+                            pendingIdentifys, LAST_IDENTIFY_ID_KEY, getEventMetadata());
+                }
+            }
+            pendingEvents.clear();
+            pendingIdentifys.clear();
+        }
+
+        onEventsSaved(numEvents, checkUploadThreshold);
+    }
+
+    // long_store values that are written in the same transaction as saved events
+    private Map<String, Long> getEventMetadata() {
+        Map<String, Long> metadata = new HashMap<String, Long>(2);
+        metadata.put(SEQUENCE_NUMBER_KEY, sequenceNumber);
+        if (lastEventTime >= 0) {
+            metadata.put(LAST_EVENT_TIME_KEY, lastEventTime);
+        }
+        return metadata;
+    }
+
+    private void onEventsSaved(int numEvents, boolean checkUploadThreshold) {
+        // once over the max count, drop a tenth of it at a time so the trim does not run again
+        // on the next few inserts
+        int numEventsToRemove = Math.max(1, eventMaxCount/10);
+        long keepCount = eventMaxCount - numEventsToRemove + 1;
+        long dropped = dbHelper.trimEvents(eventMaxCount, keepCount);
+        dropped += dbHelper.trimIdentifys(eventMaxCount, keepCount);
+        if (dropped > 0) {
+            logger.w(TAG, String.format(
+                "Unsent event count exceeded eventMaxCount %d, dropped %d oldest events",
+                eventMaxCount, dropped
+            ));
+        }
+        if (eventMaxBytes > 0) {
+            long keepBytes = eventMaxBytes - eventMaxBytes/10;
+            dropped = dbHelper.trimEventsToBytes(eventMaxBytes, keepBytes);
+            dropped += dbHelper.trimIdentifysToBytes(eventMaxBytes, keepBytes);
+            if (dropped > 0) {
+                logger.w(TAG, String.format(
+                    "Unsent events exceeded eventMaxBytes %d, dropped %d oldest events",
+                    eventMaxBytes, dropped
+                ));
+            }
+        }
+        updateUnsentEventBytes();
+
+        if (!checkUploadThreshold) {
+            return;
         }
 
-        int numEventsToRemove = Math.min(
-                Math.max(1, eventMaxCount/10),
-                Constants.EVENT_REMOVE_BATCH_SIZE
-        );
-        if (dbHelper.getEventCount() > eventMaxCount) {
-            dbHelper.removeEvents(dbHelper.getNthEventId(numEventsToRemove));
-        }
-        if (dbHelper.getIdentifyCount() > eventMaxCount) {
-            dbHelper.removeIdentifys(dbHelper.getNthIdentifyId(numEventsToRemove));
+        // after a failed upload only the scheduled retry uploads, see scheduleUploadRetry
+        if (uploadRetryScheduler.isBackingOff(SystemClock.uptimeMillis())) {
+            return;
         }
 
+        // upload whenever the saved events pushed the count across a multiple of the threshold
         long totalEventCount = dbHelper.getTotalEventCount(); // counts may have changed, refetch
-        if ((totalEventCount % eventUploadThreshold) == 0 &&
+        if ((totalEventCount % eventUploadThreshold) < numEvents &&
                 totalEventCount >= eventUploadThreshold) {
             updateServer();
         } else {
             updateServerLater(eventUploadPeriodMillis);
         }
-
-        return eventType.equals(Constants.IDENTIFY_EVENT) ? lastIdentifyId : lastEventId;
     }
 
     // fetches key from dbHelper longValueStore
@@ -1009,7 +1752,9 @@ public class AmplitudeClient {
      */
     void setLastEventTime(long timestamp) {
         lastEventTime = timestamp;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_TIME_KEY, timestamp);
+        if (!deferLastEventTimeWrite) {
+            dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_TIME_KEY, timestamp);
+        }
     }
 
     /**
@@ -1161,6 +1906,8 @@ public class AmplitudeClient {
                 }
                 refreshSessionTime(timestamp);
                 inForeground = false;
+                insertPendingEvents(false);
+                dbHelper.flush();
                 if (flushEventsOnClose) {
                     updateServer();
                 }
@@ -1245,7 +1992,8 @@ public class AmplitudeClient {
         }
 
         logEventAsync(
-            Constants.AMP_REVENUE_EVENT, null, apiProperties, null, null, getCurrentTimeMillis(), false
+            Constants.AMP_REVENUE_EVENT, null, apiProperties, null, null, getCurrentTimeMillis(),
+            false, true
         );
     }
 
@@ -1263,7 +2011,8 @@ public class AmplitudeClient {
             return;
         }
 
-        logEvent(Constants.AMP_REVENUE_EVENT, revenue.toJSONObject());
+        logEvent(Constants.AMP_REVENUE_EVENT, revenue.toJSONObject(), null,
+            getCurrentTimeMillis(), false, true);
     }
 
     /**
@@ -1594,6 +2343,99 @@ public class AmplitudeClient {
         });
     }
 
+    /**
+     * Uploads all unsent events and reports the outcome, for example before the user logs
+     * out. Events are uploaded in batches one after the other, in the same way as other
+     * uploads, until none are left or the timeout passes. The flush also ends early when
+     * uploads stop: while the device is offline, the user opted out, or the server throttles
+     * uploads or a failed upload is retried later than the timeout. Events that are not sent
+     * stay stored and go out with the next upload.
+     *
+     * @param timeoutMillis the max time to wait for the uploads in milliseconds
+     * @param callback      the callback to report the outcome to, on a background thread
+     */
+    public void flush(final long timeoutMillis, final FlushCallback callback) {
+        if (!contextAndApiKeySet("flush()")) {
+            callback.onFlushComplete(0, 0, 0);
+            return;
+        }
+
+        logThread.post(new Runnable() {
+            @Override
+            public void run() {
+                if (TextUtils.isEmpty(apiKey)) {  // in case initialization failed
+                    callback.onFlushComplete(0, 0, 0);
+                    return;
+                }
+
+                final UploadFlush flush = new UploadFlush(callback,
+                    SystemClock.uptimeMillis() + timeoutMillis, quarantinedEventCount);
+                flush.timeoutRunnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        finishFlush(flush);
+                    }
+                };
+                flushes.add(flush);
+                logThread.postDelayed(flush.timeoutRunnable, timeoutMillis);
+
+                // like uploadEvents, a flush does not wait for a pending retry
+                updateServer();
+                updateFlushes();
+            }
+        });
+    }
+
+    /**
+     * Internal method to keep the flushes in progress going once uploads finished. Uploads
+     * the next batches unless a retry is pending, and ends the flushes when no events are
+     * left or no upload will be sent before their deadline.
+     * <b>Note: </b> always call this on logThread
+     */
+    void updateFlushes() {
+        if (flushes.isEmpty()) {
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        if (!uploadRetryScheduler.isBackingOff(now)) {
+            updateServer();
+        }
+        if (!uploadBatches.isEmpty()) {
+            return;  // the flushes are updated again when the batches finish
+        }
+
+        boolean retryPending = getUnsentEventTotal() > 0 && uploadRetryScheduler.isBackingOff(now);
+        long retryAtMillis = uploadRetryScheduler.getRetryAtMillis();
+        for (UploadFlush flush : new ArrayList<UploadFlush>(flushes)) {
+            if (!retryPending || retryAtMillis > flush.deadlineMillis) {
+                finishFlush(flush);
+            }
+        }
+    }
+
+    private void finishFlush(UploadFlush flush) {
+        if (!flushes.remove(flush)) {
+            return;
+        }
+        logThread.removeCallbacks(flush.timeoutRunnable);
+        flush.callback.onFlushComplete(flush.sentCount,
+            quarantinedEventCount - flush.quarantinedCountAtStart, getUnsentEventTotal());
+    }
+
+    // the number of events and identifys waiting to be uploaded, including those in memory
+    private long getUnsentEventTotal() {
+        long count = dbHelper.getTotalEventCount();
+        DatabaseHelper databaseHelper = getDatabaseHelper();
+        if (databaseHelper != null) {
+            count += databaseHelper.getPriorityEventCount();
+        }
+        synchronized (pendingEventsLock) {
+            count += pendingEvents.size() + pendingIdentifys.size();
+        }
+        return count;
+    }
+
     private void updateServerLater(long delayMillis) {
         if (updateScheduled.getAndSet(true)) {
             return;
@@ -1608,91 +2450,502 @@ public class AmplitudeClient {
         }, delayMillis);
     }
 
-    /**
-     * Internal method to upload unsent events.
-     */
-    protected void updateServer() {
-        updateServer(false);
+    // uploads once the events being logged right now are saved, so a burst of high-priority
+    // events goes out together
+    private void uploadPriorityEventsSoon() {
+        if (priorityUploadScheduled.getAndSet(true)) {
+            return;
+        }
+
+        logThread.post(new Runnable() {
+            @Override
+            public void run() {
+                priorityUploadScheduled.set(false);
+                // after a failed upload only the scheduled retry uploads, see scheduleUploadRetry
+                if (!uploadRetryScheduler.isBackingOff(SystemClock.uptimeMillis())) {
+                    updateServer();
+                }
+            }
+        });
     }
 
     /**
-     * Internal method to upload unsent events. Limit controls whether to use event upload max
-     * batch size or backoff upload batch size. <b>Note: </b> always call this on logThread
-     *
-     * @param limit the limit
+     * Internal method to upload unsent events. Reads batches, sized by the upload batch
+     * planner, until as many are being uploaded as {@link #setUploadConcurrency(int)} allows.
+     * High-priority events are uploaded before the other events.
+     * <b>Note: </b> always call this on logThread
      */
-    protected void updateServer(boolean limit) {
+    protected void updateServer() {
         if (optOut || offline) {
             return;
         }
 
-        // if returning out of this block, always be sure to set uploadingCurrently to false!!
-        if (!uploadingCurrently.getAndSet(true)) {
-            long totalEventCount = dbHelper.getTotalEventCount();
-            long batchSize = Math.min(
-                limit ? backoffUploadBatchSize : eventUploadMaxBatchSize,
-                totalEventCount
-            );
+        // make sure batched events that are still in memory go out with this upload
+        insertPendingEvents(false);
 
-            if (batchSize <= 0) {
-                uploadingCurrently.set(false);
-                return;
-            }
+        // requests that cannot get through only wake up the radio, see onNetworkChanged
+        if (isUploadDeferredByNetwork()) {
+            deferredUploadCount++;
+            return;
+        }
 
-            try {
-                List<JSONObject> events = dbHelper.getEvents(lastEventId, batchSize);
-                List<JSONObject> identifys = dbHelper.getIdentifys(lastIdentifyId, batchSize);
-
-                final Pair<Pair<Long, Long>, JSONArray> merged = mergeEventsAndIdentifys(
-                        events, identifys, batchSize);
-                final JSONArray mergedEvents = merged.second;
-                if (mergedEvents.length() == 0) {
-                    uploadingCurrently.set(false);
-                    return;
+        // the server is shedding load, upload once its deadline has passed
+        long now = SystemClock.uptimeMillis();
+        if (uploadRetryScheduler.isThrottled(now)) {
+            logThread.removeCallbacks(retryUploadRunnable);
+            logThread.postDelayed(retryUploadRunnable,
+                uploadRetryScheduler.getNotBeforeMillis() - now);
+            return;
+        }
+
+        // set while no more batches can be uploaded, always keep it in sync with uploadBatches!!
+        if (uploadingCurrently.get()) {
+            return;
+        }
+
+        try {
+            while (uploadBatches.size() < uploadConcurrency) {
+                final UploadBatch batch = readNextUploadBatch();
+                if (batch == null) {
+                    break;
                 }
-                final long maxEventId = merged.first.first;
-                final long maxIdentifyId = merged.first.second;
-                final String mergedEventsString = merged.second.toString();
+                batch.slot = getFreeUploadSlot();
+                uploadBatches.add(batch);
 
-                httpThread.post(new Runnable() {
+                getUploadThread(batch.slot).post(new Runnable() {
                     @Override
                     public void run() {
-                        makeEventUploadPostRequest(httpClient, mergedEventsString, maxEventId, maxIdentifyId);
+                        makeEventUploadPostRequest(httpClient, batch);
                     }
                 });
-            } catch (JSONException e) {
-                uploadingCurrently.set(false);
-                logger.e(TAG, e.toString());
+            }
+        // handle CursorWindowAllocationException when fetching events, defer upload
+        } catch (CursorWindowAllocationException e) {
+            logger.e(TAG, String.format(
+                "Caught Cursor window exception during event upload, deferring upload: %s",
+                e.getMessage()
+            ));
+        }
+        uploadingCurrently.set(uploadBatches.size() >= uploadConcurrency);
+    }
 
-            // handle CursorWindowAllocationException when fetching events, defer upload
-            } catch (CursorWindowAllocationException e) {
-                uploadingCurrently.set(false);
-                logger.e(TAG, String.format(
-                    "Caught Cursor window exception during event upload, deferring upload: %s",
-                    e.getMessage()
-                ));
+    // the next batch to upload, high-priority events first, or null if nothing is left
+    private UploadBatch readNextUploadBatch() {
+        UploadBatch batch = readPriorityUploadBatch(
+            uploadBatchPlanner.getBatchSize(), uploadBatchPlanner.getBatchBytes());
+        if (!batch.isEmpty()) {
+            return batch;
+        }
+
+        long inFlightCount = getInFlightEventCount(false);
+        long batchSize = Math.min(
+            uploadBatchPlanner.getBatchSize(),
+            dbHelper.getTotalEventCount() - inFlightCount
+        );
+        if (batchSize <= 0) {
+            return null;
+        }
+
+        batch = readUploadBatch(batchSize, uploadBatchPlanner.getBatchBytes(), inFlightCount);
+        return batch.isEmpty() ? null : batch;
+    }
+
+    // the number of events and identifys, or high-priority events, in the batches being uploaded
+    private long getInFlightEventCount(boolean priority) {
+        long count = 0;
+        for (UploadBatch batch : uploadBatches) {
+            if (batch.priority == priority) {
+                count += batch.events.size();
+            }
+        }
+        return count;
+    }
+
+    // whether there are high-priority events that are not being uploaded yet, the cached count
+    // saves a query when there are none
+    private boolean hasPriorityEventsToUpload() {
+        DatabaseHelper databaseHelper = getDatabaseHelper();
+        return databaseHelper != null
+            && databaseHelper.getPriorityEventCount() > getInFlightEventCount(true);
+    }
+
+    /**
+     * Internal method to read the next batch of high-priority events, made of the events that
+     * come after the high-priority batches already being uploaded.
+     *
+     * @param batchSize  the max number of events in the batch
+     * @param batchBytes the max payload bytes of the batch, or 0 for no limit
+     * @return the batch, empty if there are no high-priority events left to upload
+     */
+    private UploadBatch readPriorityUploadBatch(long batchSize, long batchBytes) {
+        long afterId = -1;
+        for (UploadBatch batch : uploadBatches) {
+            if (batch.priority) {
+                afterId = Math.max(afterId, batch.maxEventId);
+            }
+        }
+
+        Pair<Long, List<StoredEvent>> read = new Pair<Long, List<StoredEvent>>(
+            -1L, Collections.<StoredEvent>emptyList());
+        if (hasPriorityEventsToUpload()) {
+            read = getDatabaseHelper().getPriorityEvents(afterId, -1, batchSize, batchBytes);
+        }
+        UploadBatch batch = new UploadBatch(afterId, read.first, -1, -1, read.second);
+        batch.priority = true;
+        return batch;
+    }
+
+    /**
+     * Internal method to read the next batch to upload, made of the events and identifys that
+     * come after the batches already being uploaded.
+     *
+     * @param batchSize     the max number of events and identifys in the batch
+     * @param batchBytes    the max payload bytes of the batch, or 0 for no limit
+     * @param inFlightCount the number of events and identifys already being uploaded
+     * @return the batch, empty if there is nothing left to upload
+     */
+    private UploadBatch readUploadBatch(long batchSize, long batchBytes, long inFlightCount) {
+        long afterEventId = -1;
+        long afterIdentifyId = -1;
+        for (UploadBatch batch : uploadBatches) {
+            if (batch.priority) {
+                continue;
+            }
+            afterEventId = Math.max(afterEventId, batch.maxEventId);
+            afterIdentifyId = Math.max(afterIdentifyId, batch.maxIdentifyId);
+        }
+
+        final Pair<Pair<Long, Long>, List<StoredEvent>> merged;
+        DatabaseHelper databaseHelper = getDatabaseHelper();
+        if (databaseHelper != null) {
+            // SQLite reads exactly one batch, already interleaved
+            merged = databaseHelper.getMergedEvents(afterEventId, lastEventId,
+                afterIdentifyId, lastIdentifyId, batchSize, batchBytes);
+        } else {
+            // other stores read from the start of each queue, skip the rows being uploaded
+            List<StoredEvent> events = getStoredEventsAfter(
+                dbHelper.getStoredEvents(lastEventId, inFlightCount + batchSize), afterEventId);
+            List<StoredEvent> identifys = getStoredEventsAfter(
+                dbHelper.getStoredIdentifys(lastIdentifyId, inFlightCount + batchSize),
+                afterIdentifyId);
+            merged = mergeEventsAndIdentifys(events, identifys, batchSize, batchBytes);
+        }
+        return new UploadBatch(afterEventId, merged.first.first,
+            afterIdentifyId, merged.first.second, merged.second);
+    }
+
+    private List<StoredEvent> getStoredEventsAfter(List<StoredEvent> events, long afterId) {
+        if (afterId < 0) {
+            return events;
+        }
+        List<StoredEvent> after = new ArrayList<StoredEvent>(events.size());
+        for (StoredEvent event : events) {
+            if (event.getId() > afterId) {
+                after.add(event);
+            }
+        }
+        return after;
+    }
+
+    // the first upload thread not used by a batch being uploaded
+    private int getFreeUploadSlot() {
+        int slot = 0;
+        while (true) {
+            boolean used = false;
+            for (UploadBatch batch : uploadBatches) {
+                used |= batch.slot == slot;
+            }
+            if (!used) {
+                return slot;
+            }
+            slot++;
+        }
+    }
+
+    /**
+     * Internal method to get the thread that uploads the batches of the given slot. The first
+     * slot uses httpThread, threads for the others are started the first time they are needed.
+     * <b>Note: </b> always call this on logThread
+     *
+     * @param slot the slot, from 0 to the upload concurrency - 1
+     * @return the upload thread
+     */
+    WorkerThread getUploadThread(int slot) {
+        if (slot == 0) {
+            return httpThread;
+        }
+        while (extraHttpThreads.size() < slot) {
+            WorkerThread thread = new WorkerThread("httpThread" + (extraHttpThreads.size() + 1));
+            thread.start();
+            extraHttpThreads.add(thread);
+        }
+        return extraHttpThreads.get(slot - 1);
+    }
+
+    /**
+     * Internal method to finish a batch once its upload succeeded or failed, which lets the
+     * next batch be read. Batches can finish in any order. The rows of an acknowledged batch
+     * are removed by id range, so rows of batches read before it that failed are kept for the
+     * next upload. <b>Note: </b> always call this on logThread
+     *
+     * @param batch   the batch
+     * @param success whether the server accepted the batch
+     */
+    void finishUpload(UploadBatch batch, boolean success) {
+        if (success) {
+            removeUploadedEvents(batch);
+        }
+        uploadBatches.remove(batch);
+        uploadingCurrently.set(uploadBatches.size() >= uploadConcurrency);
+
+        if (!flushes.isEmpty()) {
+            if (success) {
+                for (UploadFlush flush : flushes) {
+                    flush.sentCount += batch.events.size();
+                }
+            }
+            // once the caller has scheduled the retry of a failed upload
+            logThread.removeCallbacks(updateFlushesRunnable);
+            logThread.post(updateFlushesRunnable);
+        }
+    }
+
+    private boolean isUploadDeferredByNetwork() {
+        if (networkMonitor == null) {
+            return false;
+        }
+        if (!networkMonitor.isConnected()) {
+            return true;
+        }
+        return meteredBacklogThreshold > 0
+            && dbHelper.getTotalEventCount() > meteredBacklogThreshold
+            && networkMonitor.isMetered();
+    }
+
+    /**
+     * Internal method to upload as soon as the network monitor reports the device online. A
+     * retry scheduled while the device was offline would only delay the upload, so the retry
+     * backoff starts over. <b>Note: </b> always call this on logThread
+     */
+    void onNetworkChanged() {
+        if (networkMonitor == null || !networkMonitor.isConnected()) {
+            return;
+        }
+
+        uploadRetryScheduler.reset();
+        logThread.removeCallbacks(retryUploadRunnable);
+        updateServer();
+    }
+
+    /**
+     * Internal method to retry uploading after an upload failed, once the backoff of the retry
+     * scheduler has passed. Failures of batches that were in flight together only count once.
+     * <b>Note: </b> always call this on logThread
+     */
+    void scheduleUploadRetry() {
+        long now = SystemClock.uptimeMillis();
+        if (uploadRetryScheduler.isBackingOff(now)) {
+            return;
+        }
+
+        long delay = uploadRetryScheduler.onFailure(now);
+        logger.w(TAG, String.format("Upload failed %d times in a row, retrying in %d ms",
+            uploadRetryScheduler.getConsecutiveFailures(), delay));
+        logThread.removeCallbacks(retryUploadRunnable);
+        logThread.postDelayed(retryUploadRunnable, delay);
+    }
+
+    /**
+     * Internal method to stop sending uploads after the server throttled one, until the
+     * deadline of the retry scheduler has passed. <b>Note: </b> always call this on logThread
+     *
+     * @param retryAfterMillis the delay from the Retry-After header, or -1 if there was none
+     */
+    void throttleUploads(long retryAfterMillis) {
+        long now = SystemClock.uptimeMillis();
+        long delay = uploadRetryScheduler.onThrottled(now, retryAfterMillis);
+        logger.w(TAG, String.format("Server is throttling uploads, retrying in %d ms", delay));
+        logThread.removeCallbacks(retryUploadRunnable);
+        logThread.postDelayed(retryUploadRunnable, delay);
+    }
+
+    /**
+     * Internal method to handle a batch the server rejected as too large. A batch of a single
+     * row holds an event the server will never accept, which is moved to the quarantine table.
+     * Larger batches are replaced by smaller batches of the same rows, split by the upload
+     * batch planner and uploaded right away on the same upload thread, so the rows that are
+     * fine go out while the oversized ones are narrowed down.
+     * <b>Note: </b> always call this on logThread
+     *
+     * @param batch the rejected batch
+     */
+    void isolateOversizedEvents(UploadBatch batch) {
+        if (!batch.isolating) {
+            // Server complained about length of request, send smaller batches from now on
+            uploadBatchPlanner.onTooLarge(batch.events.size(), batch.bytes);
+        }
+
+        if (batch.events.size() <= 1) {
+            quarantineEvents(batch);
+            finishUpload(batch, false);
+            updateServer();
+            return;
+        }
+
+        List<UploadBatch> parts = new ArrayList<UploadBatch>();
+        try {
+            List<Integer> counts = uploadBatchPlanner.split(batch.events, batch.bytes);
+            long afterEventId = batch.afterEventId;
+            long afterIdentifyId = batch.afterIdentifyId;
+            for (int i = 0; i < counts.size(); i++) {
+                // the last part takes whatever is left of the batch
+                long count = i < counts.size() - 1 ? counts.get(i) : batch.events.size();
+                UploadBatch part = readUploadBatchPart(batch, afterEventId, afterIdentifyId, count);
+                if (part.isEmpty()) {
+                    break;
+                }
+                part.isolating = true;
+                part.slot = batch.slot;
+                parts.add(part);
+                afterEventId = Math.max(afterEventId, part.maxEventId);
+                afterIdentifyId = Math.max(afterIdentifyId, part.maxIdentifyId);
+            }
+        } catch (CursorWindowAllocationException e) {
+            logger.e(TAG, String.format(
+                "Caught Cursor window exception splitting upload, deferring upload: %s",
+                e.getMessage()
+            ));
+            parts.clear();
+        }
+
+        uploadBatches.remove(batch);
+        uploadBatches.addAll(parts);
+        uploadingCurrently.set(uploadBatches.size() >= uploadConcurrency);
+        for (final UploadBatch part : parts) {
+            getUploadThread(part.slot).post(new Runnable() {
+                @Override
+                public void run() {
+                    makeEventUploadPostRequest(httpClient, part);
+                }
+            });
+        }
+    }
+
+    // reads the first count rows of a rejected batch that come after the given ids
+    private UploadBatch readUploadBatchPart(UploadBatch batch, long afterEventId,
+                                            long afterIdentifyId, long count) {
+        if (batch.priority) {
+            Pair<Long, List<StoredEvent>> read = getDatabaseHelper().getPriorityEvents(
+                afterEventId, batch.maxEventId, count, 0);
+            UploadBatch part = new UploadBatch(afterEventId, read.first, -1, -1, read.second);
+            part.priority = true;
+            return part;
+        }
+
+        // a bound of 0 reads nothing from a queue the batch has no rows from
+        long upToEventId = Math.max(0, batch.maxEventId);
+        long upToIdentifyId = Math.max(0, batch.maxIdentifyId);
+
+        final Pair<Pair<Long, Long>, List<StoredEvent>> merged;
+        DatabaseHelper databaseHelper = getDatabaseHelper();
+        if (databaseHelper != null) {
+            merged = databaseHelper.getMergedEvents(afterEventId, upToEventId,
+                afterIdentifyId, upToIdentifyId, count, 0);
+        } else {
+            merged = mergeEventsAndIdentifys(
+                getStoredEventsAfter(dbHelper.getStoredEvents(upToEventId, -1), afterEventId),
+                getStoredEventsAfter(dbHelper.getStoredIdentifys(upToIdentifyId, -1),
+                    afterIdentifyId),
+                count);
+        }
+        return new UploadBatch(afterEventId, merged.first.first,
+            afterIdentifyId, merged.first.second, merged.second);
+    }
+
+    // moves the rows of a batch out of the upload queues, stores without a quarantine drop them
+    private void quarantineEvents(UploadBatch batch) {
+        String reason = "413";
+        DatabaseHelper databaseHelper = getDatabaseHelper();
+        if (batch.priority) {
+            logger.w(TAG, String.format(
+                "High-priority event %d of %d bytes is too large to upload, quarantining it",
+                batch.maxEventId, batch.bytes));
+            databaseHelper.quarantinePriorityEvent(batch.maxEventId, reason);
+        } else if (batch.maxEventId >= 0) {
+            logger.w(TAG, String.format("Event %d of %d bytes is too large to upload, %s",
+                batch.maxEventId, batch.bytes,
+                databaseHelper != null ? "quarantining it" : "dropping it"));
+            if (databaseHelper != null) {
+                databaseHelper.quarantineEvent(batch.maxEventId, reason);
+            } else {
+                dbHelper.removeEvent(batch.maxEventId);
+            }
+        }
+        if (batch.maxIdentifyId >= 0) {
+            logger.w(TAG, String.format("Identify %d of %d bytes is too large to upload, %s",
+                batch.maxIdentifyId, batch.bytes,
+                databaseHelper != null ? "quarantining it" : "dropping it"));
+            if (databaseHelper != null) {
+                databaseHelper.quarantineIdentify(batch.maxIdentifyId, reason);
+            } else {
+                dbHelper.removeIdentify(batch.maxIdentifyId);
             }
         }
+        quarantinedEventCount += batch.events.size();
+        updateUnsentEventBytes();
+    }
+
+    private void removeUploadedEvents(UploadBatch batch) {
+        if (batch.priority) {
+            getDatabaseHelper().removePriorityEvents(batch.afterEventId, batch.maxEventId);
+            return;
+        }
+        if (batch.maxEventId >= 0) {
+            dbHelper.removeEvents(batch.afterEventId, batch.maxEventId);
+        }
+        if (batch.maxIdentifyId >= 0) {
+            dbHelper.removeIdentifys(batch.afterIdentifyId, batch.maxIdentifyId);
+        }
+        updateUnsentEventBytes();
     }
 
     /**
-     * Internal method to merge unsent events and identifies into a single array by sequence number.
+     * Internal method to merge unsent events and identifies into a single list by sequence
+     * number.
      *
      * @param events    the events
      * @param identifys the identifys
      * @param numEvents the num events
-     * @return the merged array, max event id, and max identify id
-     * @throws JSONException the json exception
+     * @return the max event id and max identify id taken, and the merged events
      */
-    protected Pair<Pair<Long,Long>, JSONArray> mergeEventsAndIdentifys(List<JSONObject> events,
-                            List<JSONObject> identifys, long numEvents) throws JSONException {
-        JSONArray merged = new JSONArray();
+    protected Pair<Pair<Long, Long>, List<StoredEvent>> mergeEventsAndIdentifys(List<StoredEvent> events,
+                            List<StoredEvent> identifys, long numEvents) {
+        return mergeEventsAndIdentifys(events, identifys, numEvents, 0);
+    }
+
+    /**
+     * Internal method to merge unsent events and identifies into a single list by sequence
+     * number, stopping before the merged events get larger than maxBytes.
+     *
+     * @param events    the events
+     * @param identifys the identifys
+     * @param numEvents the num events
+     * @param maxBytes  the max UTF-8 length of the merged events, or 0 for no limit. The first
+     *                  event is always taken, however large it is.
+     * @return the max event id and max identify id taken, and the merged events
+     */
+    protected Pair<Pair<Long, Long>, List<StoredEvent>> mergeEventsAndIdentifys(List<StoredEvent> events,
+                            List<StoredEvent> identifys, long numEvents, long maxBytes) {
+        List<StoredEvent> merged = new ArrayList<StoredEvent>();
+        long mergedBytes = 0;
+        int eventIndex = 0;
+        int identifyIndex = 0;
         long maxEventId = -1;
         long maxIdentifyId = -1;
 
-        while (merged.length() < numEvents) {
-            boolean noEvents = events.isEmpty();
-            boolean noIdentifys = identifys.isEmpty();
+        while (merged.size() < numEvents) {
+            boolean noEvents = eventIndex >= events.size();
+            boolean noIdentifys = identifyIndex >= identifys.size();
 
             // case 0: no events or identifys, nothing to grab
             // this case should never happen, as it means there are less identifys and events
@@ -1700,109 +2953,115 @@ public class AmplitudeClient {
             if (noEvents && noIdentifys) {
                 logger.w(TAG, String.format(
                     "mergeEventsAndIdentifys: number of events and identifys " +
-                    "less than expected by %d", numEvents - merged.length())
+                    "less than expected by %d", numEvents - merged.size())
                 );
                 break;
+            }
 
             // case 1: no identifys, grab from events
-            } else if (noIdentifys) {
-                JSONObject event = events.remove(0);
-                maxEventId = event.getLong("event_id");
-                merged.put(event);
-
             // case 2: no events, grab from identifys
-            } else if (noEvents) {
-                JSONObject identify = identifys.remove(0);
-                maxIdentifyId = identify.getLong("event_id");
-                merged.put(identify);
+            // case 3: need to compare sequence numbers, events logged before v2.1.0 won't
+            // have a sequence number, put those first
+            boolean takeEvent = noIdentifys || (!noEvents &&
+                    (!events.get(eventIndex).hasSequenceNumber() ||
+                    events.get(eventIndex).getSequenceNumber() <
+                    identifys.get(identifyIndex).getSequenceNumber()));
+            StoredEvent next = takeEvent ? events.get(eventIndex) : identifys.get(identifyIndex);
+            if (maxBytes > 0) {
+                long bytes = Utils.getUtf8Length(next.getEvent());
+                if (!merged.isEmpty() && mergedBytes + bytes > maxBytes) {
+                    break;
+                }
+                mergedBytes += bytes;
+            }
 
-            // case 3: need to compare sequence numbers
+            if (takeEvent) {
+                eventIndex++;
+                maxEventId = next.getId();
             } else {
-                // events logged before v2.1.0 won't have a sequence number, put those first
-                if (!events.get(0).has("sequence_number") ||
-                        events.get(0).getLong("sequence_number") <
-                        identifys.get(0).getLong("sequence_number")) {
-                    JSONObject event = events.remove(0);
-                    maxEventId = event.getLong("event_id");
-                    merged.put(event);
-                } else {
-                    JSONObject identify = identifys.remove(0);
-                    maxIdentifyId = identify.getLong("event_id");
-                    merged.put(identify);
-                }
+                identifyIndex++;
+                maxIdentifyId = next.getId();
             }
+            merged.add(next);
         }
 
-        return new Pair<Pair<Long, Long>, JSONArray>(new Pair<Long,Long>(maxEventId, maxIdentifyId), merged);
+        return new Pair<Pair<Long, Long>, List<StoredEvent>>(
+                new Pair<Long, Long>(maxEventId, maxIdentifyId), merged);
     }
 
     /**
      * Internal method to generate the event upload post request.
      *
-     * @param client        the client
-     * @param events        the events
-     * @param maxEventId    the max event id
-     * @param maxIdentifyId the max identify id
-     */
-    protected void makeEventUploadPostRequest(OkHttpClient client, String events, final long maxEventId, final long maxIdentifyId) {
-        String apiVersionString = "" + Constants.API_VERSION;
-        String timestampString = "" + getCurrentTimeMillis();
-
-        String checksumString = "";
-        try {
-            String preimage = apiVersionString + apiKey + events + timestampString;
-
-            // MessageDigest.getInstance(String) is not threadsafe on Android.
-            // See https://code.google.com/p/android/issues/detail?id=37937
-            // Use MD5 implementation from http://org.rodage.com/pub/java/security/MD5.java
-            // This implementation does not throw NoSuchAlgorithm exceptions.
-            MessageDigest messageDigest = new MD5();
-            checksumString = bytesToHexString(messageDigest.digest(preimage.getBytes("UTF-8")));
-        } catch (UnsupportedEncodingException e) {
-            // According to
-            // http://stackoverflow.com/questions/5049524/is-java-utf-8-charset-exception-possible,
-            // this will never be thrown
-            logger.e(TAG, e.toString());
+     * @param client the client
+     * @param batch  the batch to upload. Its events are streamed into the request body, which
+     *               computes the checksum while writing them.
+     */
+    protected void makeEventUploadPostRequest(OkHttpClient client, final UploadBatch batch) {
+        // batches posted before the server throttled uploads wait for the retry
+        if (uploadRetryScheduler.isThrottled(SystemClock.uptimeMillis())) {
+            logThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    finishUpload(batch, false);
+                }
+            });
+            return;
         }
 
-        FormBody body = new FormBody.Builder()
-            .add("v", apiVersionString)
-            .add("client", apiKey)
-            .add("e", events)
-            .add("upload_time", timestampString)
-            .add("checksum", checksumString)
-            .build();
+        RequestBody body = new EventUploadBody(
+            "" + Constants.API_VERSION, apiKey, batch.events, "" + getCurrentTimeMillis());
 
-        Request request = new Request.Builder()
-            .url(url)
-            .post(body)
-            .build();
+        Request.Builder requestBuilder = new Request.Builder().url(url);
+        final boolean compressed = uploadCompression && !uploadCompressionRejected;
+        if (compressed) {
+            try {
+                requestBuilder.post(gzip(body)).header("Content-Encoding", "gzip");
+            } catch (IOException e) {
+                logger.e(TAG, "Failed to compress upload, sending it uncompressed", e);
+                requestBuilder.post(body);
+            }
+        } else {
+            requestBuilder.post(body);
+        }
+        Request request = requestBuilder.build();
 
-        boolean uploadSuccess = false;
+        // whether the outcome was already posted to logThread, where the batch gets finished
+        boolean finishPosted = false;
 
         try {
+            long start = System.nanoTime();
             Response response = client.newCall(request).execute();
             String stringResponse = response.body().string();
+            final long latencyMillis = (System.nanoTime() - start) / 1000000;
             if (stringResponse.equals("success")) {
-                uploadSuccess = true;
+                finishPosted = true;
                 logThread.post(new Runnable() {
                     @Override
                     public void run() {
-                        if (maxEventId >= 0) dbHelper.removeEvents(maxEventId);
-                        if (maxIdentifyId >= 0) dbHelper.removeIdentifys(maxIdentifyId);
-                        uploadingCurrently.set(false);
-                        if (dbHelper.getTotalEventCount() > eventUploadThreshold) {
+                        finishUpload(batch, true);
+                        uploadBatchPlanner.onSuccess(batch.bytes, latencyMillis);
+                        uploadRetryScheduler.onSuccess();
+                        if (hasPriorityEventsToUpload()
+                                || dbHelper.getTotalEventCount() > eventUploadThreshold) {
                             logThread.post(new Runnable() {
                                 @Override
                                 public void run() {
-                                    updateServer(backoffUpload);
+                                    updateServer();
                                 }
                             });
                         }
-                        else {
-                            backoffUpload = false;
-                            backoffUploadBatchSize = eventUploadMaxBatchSize;
-                        }
+                    }
+                });
+            } else if (response.code() == 429 || response.code() == 503) {
+                final long retryAfterMillis = UploadRetryScheduler.parseRetryAfter(
+                    response.header("Retry-After"), System.currentTimeMillis());
+                logger.w(TAG, "Server is overloaded, will attempt to reupload later");
+                finishPosted = true;
+                logThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishUpload(batch, false);
+                        throttleUploads(retryAfterMillis);
                     }
                 });
             } else if (stringResponse.equals("invalid_api_key")) {
@@ -1813,26 +3072,26 @@ public class AmplitudeClient {
             } else if (stringResponse.equals("request_db_write_failed")) {
                 logger.w(TAG,
                         "Couldn't write to request database on server, will attempt to reupload later");
+            } else if (compressed && response.code() == 415) {
+                // Server does not accept compressed requests, resend the batch uncompressed
+                uploadCompressionRejected = true;
+                logger.w(TAG, "Compressed upload rejected, will reupload uncompressed");
+                finishPosted = true;
+                logThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishUpload(batch, false);
+                        updateServer();
+                    }
+                });
             } else if (response.code() == 413) {
-
-                // If blocked by one massive event, drop it
-                if (backoffUpload && backoffUploadBatchSize == 1) {
-                    if (maxEventId >= 0) dbHelper.removeEvent(maxEventId);
-                    if (maxIdentifyId >= 0) dbHelper.removeIdentify(maxIdentifyId);
-                    // maybe we want to reset backoffUploadBatchSize after dropping massive event
-                }
-
-                // Server complained about length of request, backoff and try again
-                backoffUpload = true;
-                int numEvents = Math.min((int)dbHelper.getEventCount(), backoffUploadBatchSize);
-                backoffUploadBatchSize = (int)Math.ceil(numEvents / 2.0);
-                logger.w(TAG, "Request too large, will decrease size and attempt to reupload");
+                logger.w(TAG, "Request too large, will split it and attempt to reupload");
+                finishPosted = true;
                 logThread.post(new Runnable() {
-                   @Override
+                    @Override
                     public void run() {
-                       uploadingCurrently.set(false);
-                       updateServer(true);
-                   }
+                        isolateOversizedEvents(batch);
+                    }
                 });
             } else {
                 logger.w(TAG, "Upload failed, " + stringResponse
@@ -1859,12 +3118,35 @@ public class AmplitudeClient {
             lastError = e;
         }
 
-        if (!uploadSuccess) {
-            uploadingCurrently.set(false);
+        if (!finishPosted) {
+            logThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    failedUploadCount++;
+                    finishUpload(batch, false);
+                    scheduleUploadRetry();
+                }
+            });
         }
 
     }
 
+    /**
+     * Internal method to gzip a request body. The compressed body is buffered so the request
+     * still has a content length.
+     *
+     * @param body the uncompressed body
+     * @return the compressed body, with the same content type
+     * @throws IOException if the body could not be written
+     */
+    protected RequestBody gzip(RequestBody body) throws IOException {
+        Buffer compressed = new Buffer();
+        BufferedSink sink = Okio.buffer(new GzipSink(compressed));
+        body.writeTo(sink);
+        sink.close();
+        return RequestBody.create(body.contentType(), compressed.readByteArray());
+    }
+
     /**
      * Get the current device id. Can be null if deviceId hasn't been initialized yet.
      *
@@ -2089,12 +3371,25 @@ public class AmplitudeClient {
      * @return the boolean
      */
     static boolean upgradeSharedPrefsToDB(Context context, String apiKey, String sourcePkgName) {
+        return upgradeSharedPrefsToDB(
+                context, DatabaseHelper.getDatabaseHelper(context, apiKey), sourcePkgName);
+    }
+
+    /**
+     * Upgrade shared prefs to the given event store.
+     *
+     * @param context       the context
+     * @param dbHelper      the event store to migrate the values to
+     * @param sourcePkgName the source pkg name
+     * @return the boolean
+     */
+    static boolean upgradeSharedPrefsToDB(
+            Context context, EventStore dbHelper, String sourcePkgName) {
         if (sourcePkgName == null) {
             sourcePkgName = Constants.PACKAGE_NAME;
         }
 
         // check if upgrade needed
-        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context, apiKey);
         String deviceId = dbHelper.getValue(DEVICE_ID_KEY);
         Long previousSessionId = dbHelper.getLongValue(PREVIOUS_SESSION_ID_KEY);
         Long lastEventTime = dbHelper.getLongValue(LAST_EVENT_TIME_KEY);
@@ -2138,7 +3433,7 @@ public class AmplitudeClient {
         return true;
     }
 
-    private static void migrateLongValue(SharedPreferences prefs, String prefKey, long defValue, DatabaseHelper dbHelper, String dbKey) {
+    private static void migrateLongValue(SharedPreferences prefs, String prefKey, long defValue, EventStore dbHelper, String dbKey) {
         Long value = dbHelper.getLongValue(dbKey);
         if (value != null) { // if value already exists don't need to migrate
             return;
@@ -2148,7 +3443,7 @@ public class AmplitudeClient {
         prefs.edit().remove(prefKey).apply();
     }
 
-    private static void migrateStringValue(SharedPreferences prefs, String prefKey, String defValue, DatabaseHelper dbHelper, String dbKey) {
+    private static void migrateStringValue(SharedPreferences prefs, String prefKey, String defValue, EventStore dbHelper, String dbKey) {
         String value = dbHelper.getValue(dbKey);
         if (!TextUtils.isEmpty(value)) {
             return;
@@ -2160,7 +3455,7 @@ public class AmplitudeClient {
         }
     }
 
-    private static void migrateBooleanValue(SharedPreferences prefs, String prefKey, boolean defValue, DatabaseHelper dbHelper, String dbKey) {
+    private static void migrateBooleanValue(SharedPreferences prefs, String prefKey, boolean defValue, EventStore dbHelper, String dbKey) {
         Long value = dbHelper.getLongValue(dbKey);
         if (value != null) {
             return;
@@ -0,0 +1,109 @@
+package com.amplitude.api;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+
+/*
+    The SDK's default NetworkMonitor, backed by ConnectivityManager and its connectivity change
+    broadcast. Reading the network state needs the ACCESS_NETWORK_STATE permission; apps that
+    do not hold it are always treated as online on an unmetered network, the same as without
+    a monitor.
+ */
+class ConnectivityNetworkMonitor implements NetworkMonitor {
+
+    private static final String TAG = "com.amplitude.api.ConnectivityNetworkMonitor";
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    private Context context;
+    private ConnectivityManager connectivityManager;
+    private Listener listener;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Listener listener = getListener();
+            if (listener != null) {
+                listener.onNetworkChanged();
+            }
+        }
+    };
+
+    @Override
+    public synchronized void start(Context context, Listener listener) {
+        if (this.context != null) {
+            return;
+        }
+
+        if (context.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)
+                != PackageManager.PERMISSION_GRANTED) {
+            logger.w(TAG, "Network monitoring needs the ACCESS_NETWORK_STATE permission");
+            return;
+        }
+
+        this.context = context.getApplicationContext();
+        this.connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.listener = listener;
+        this.context.registerReceiver(
+                receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (context == null) {
+            return;
+        }
+
+        try {
+            context.unregisterReceiver(receiver);
+        } catch (IllegalArgumentException e) {
+            // already unregistered
+        }
+        context = null;
+        connectivityManager = null;
+        listener = null;
+    }
+
+    private synchronized Listener getListener() {
+        return listener;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        if (connectivityManager == null) {
+            return true;
+        }
+
+        try {
+            NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+            return info != null && info.isConnected();
+        } catch (SecurityException e) {
+            return true;
+        }
+    }
+
+    @Override
+    public synchronized boolean isMetered() {
+        if (connectivityManager == null) {
+            return false;
+        }
+
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                return connectivityManager.isActiveNetworkMetered();
+            }
+            NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+            return info != null && info.getType() != ConnectivityManager.TYPE_WIFI
+                    && info.getType() != ConnectivityManager.TYPE_ETHERNET;
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+}
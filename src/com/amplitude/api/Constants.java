@@ -13,12 +13,24 @@ public class Constants {
     public static final int API_VERSION = 2;
 
     public static final String DATABASE_NAME = PACKAGE_NAME;
-    public static final int DATABASE_VERSION = 3;
+    public static final int DATABASE_VERSION = 9;
 
     public static final int EVENT_UPLOAD_THRESHOLD = 30;
     public static final int EVENT_UPLOAD_MAX_BATCH_SIZE = 100;
+    public static final long EVENT_UPLOAD_MAX_BATCH_BYTES = 256 * 1024; // 256 KB
+    public static final long UPLOAD_SLOW_LATENCY_MILLIS = 10 * 1000; // 10s
+    public static final int UPLOAD_CONCURRENCY = 1;
+    public static final long UPLOAD_RETRY_BASE_DELAY_MILLIS = 2 * 1000; // 2s
+    public static final long UPLOAD_RETRY_MAX_DELAY_MILLIS = 5 * 60 * 1000; // 5 min
+    public static final long UPLOAD_THROTTLE_MAX_DELAY_MILLIS = 60 * 60 * 1000; // 1 hour
+    public static final int QUARANTINE_MAX_COUNT = 100;
     public static final int EVENT_MAX_COUNT = 1000;
+    public static final long EVENT_MAX_BYTES = 0; // no limit
+    @Deprecated // overflow eviction now drops eventMaxCount / 10 events at a time
     public static final int EVENT_REMOVE_BATCH_SIZE = 20;
+    public static final int EVENT_INSERT_MAX_BATCH_SIZE = 1;
+    public static final long EVENT_INSERT_MAX_DELAY_MILLIS = 0;
+    public static final long METADATA_WRITE_BACK_DELAY_MILLIS = 1000; // 1s
     public static final long EVENT_UPLOAD_PERIOD_MILLIS = 30 * 1000; // 30s
     public static final long MIN_TIME_BETWEEN_SESSIONS_MILLIS = 5 * 60 * 1000; // 5m
     public static final long SESSION_TIMEOUT_MILLIS = 30 * 60 * 1000; // 30m
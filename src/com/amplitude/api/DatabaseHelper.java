@@ -8,18 +8,23 @@ import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.text.TextUtils;
+import android.util.Pair;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.DataFormatException;
 
-class DatabaseHelper extends SQLiteOpenHelper {
+class DatabaseHelper extends SQLiteOpenHelper implements EventStore {
 
     static Map<String, DatabaseHelper> instances = new HashMap<>(1);
 
@@ -32,8 +37,18 @@ class DatabaseHelper extends SQLiteOpenHelper {
 
     protected static final String EVENT_TABLE_NAME = "events";
     protected static final String IDENTIFY_TABLE_NAME = "identifys";
+    protected static final String QUARANTINE_TABLE_NAME = "quarantine";
+    protected static final String PRIORITY_TABLE_NAME = "priority_events";
     private static final String ID_FIELD = "id";
     private static final String EVENT_FIELD = "event";
+    private static final String SIZE_FIELD = "size";
+    private static final String PAYLOAD_FIELD = "payload";
+    private static final String SEQUENCE_NUMBER_FIELD = "sequence_number";
+    private static final String SOURCE_TABLE_FIELD = "source_table";
+    private static final String SOURCE_ID_FIELD = "source_id";
+    private static final String REASON_FIELD = "reason";
+    private static final String TIME_FIELD = "time";
+    static final String DICTIONARY_KEY_PREFIX = "event_dictionary_";
 
     private static final String CREATE_STORE_TABLE = "CREATE TABLE IF NOT EXISTS "
             + STORE_TABLE_NAME + " (" + KEY_FIELD + " TEXT PRIMARY KEY NOT NULL, "
@@ -41,15 +56,96 @@ class DatabaseHelper extends SQLiteOpenHelper {
     private static final String CREATE_LONG_STORE_TABLE = "CREATE TABLE IF NOT EXISTS "
             + LONG_STORE_TABLE_NAME + " (" + KEY_FIELD + " TEXT PRIMARY KEY NOT NULL, "
             + VALUE_FIELD + " INTEGER);";
+    // size is the number of bytes the event takes up on disk, used for the byte budget
+    private static final String SIZE_COLUMN_DEFINITION = "INTEGER NOT NULL DEFAULT 0";
+    // compressed events are stored in payload with a null event, see EventCodec
+    private static final String PAYLOAD_COLUMN_DEFINITION = "BLOB";
+    // the event's sequence number, so uploads can merge events and identifys without parsing
+    // them. -1 if the event has none, null for rows written before the column existed.
+    private static final String SEQUENCE_NUMBER_COLUMN_DEFINITION = "INTEGER";
     private static final String CREATE_EVENTS_TABLE = "CREATE TABLE IF NOT EXISTS "
             + EVENT_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-            + EVENT_FIELD + " TEXT);";
+            + EVENT_FIELD + " TEXT, " + SIZE_FIELD + " " + SIZE_COLUMN_DEFINITION + ", "
+            + PAYLOAD_FIELD + " " + PAYLOAD_COLUMN_DEFINITION + ", "
+            + SEQUENCE_NUMBER_FIELD + " " + SEQUENCE_NUMBER_COLUMN_DEFINITION + ");";
     private static final String CREATE_IDENTIFYS_TABLE = "CREATE TABLE IF NOT EXISTS "
             + IDENTIFY_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-            + EVENT_FIELD + " TEXT);";
+            + EVENT_FIELD + " TEXT, " + SIZE_FIELD + " " + SIZE_COLUMN_DEFINITION + ", "
+            + PAYLOAD_FIELD + " " + PAYLOAD_COLUMN_DEFINITION + ", "
+            + SEQUENCE_NUMBER_FIELD + " " + SEQUENCE_NUMBER_COLUMN_DEFINITION + ");";
+    // high-priority events, uploaded ahead of the events and identifys and never evicted by
+    // them. Rows are stored the same way as in the events table.
+    private static final String CREATE_PRIORITY_EVENTS_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + PRIORITY_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + EVENT_FIELD + " TEXT, " + SIZE_FIELD + " " + SIZE_COLUMN_DEFINITION + ", "
+            + PAYLOAD_FIELD + " " + PAYLOAD_COLUMN_DEFINITION + ", "
+            + SEQUENCE_NUMBER_FIELD + " " + SEQUENCE_NUMBER_COLUMN_DEFINITION + ");";
+    // events the server refused, moved out of the upload queues so they stop blocking the
+    // events behind them. Rows keep their stored form, only the newest few are kept.
+    private static final String CREATE_QUARANTINE_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + QUARANTINE_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + SOURCE_TABLE_FIELD + " TEXT NOT NULL, " + SOURCE_ID_FIELD + " INTEGER NOT NULL, "
+            + EVENT_FIELD + " TEXT, " + SIZE_FIELD + " " + SIZE_COLUMN_DEFINITION + ", "
+            + PAYLOAD_FIELD + " " + PAYLOAD_COLUMN_DEFINITION + ", "
+            + REASON_FIELD + " TEXT, " + TIME_FIELD + " INTEGER);";
+    /*
+        Reads the first rows of both tables by id, cut to the limit, in one query. Batches are
+        removed by id range, so each side has to be taken in id order: they are interleaved
+        afterwards the way AmplitudeClient.mergeEventsAndIdentifys does it.
+     */
+    private static final String MERGED_EVENTS_COLUMNS = ID_FIELD + ", " + EVENT_FIELD + ", "
+            + PAYLOAD_FIELD + ", " + SEQUENCE_NUMBER_FIELD;
+    private static final String MERGED_EVENTS_QUERY = "SELECT * FROM (SELECT 0 AS kind, "
+            + MERGED_EVENTS_COLUMNS + " FROM " + EVENT_TABLE_NAME + " WHERE " + ID_FIELD
+            + " > ? AND " + ID_FIELD + " <= ? ORDER BY " + ID_FIELD
+            + " LIMIT ?) UNION ALL SELECT * FROM (SELECT 1 AS kind, "
+            + MERGED_EVENTS_COLUMNS + " FROM " + IDENTIFY_TABLE_NAME + " WHERE " + ID_FIELD
+            + " > ? AND " + ID_FIELD + " <= ? ORDER BY " + ID_FIELD + " LIMIT ?)"
+            + " ORDER BY kind, " + ID_FIELD;
 
     private File file;
 
+    /**
+     * When true the SQLiteDatabase handle stays open between calls instead of being reopened
+     * and closed by every read and write. Only touched while holding the helper's lock.
+     */
+    private boolean persistentConnection = false;
+
+    /**
+     * Row counts of the events and identifys tables, kept in memory so the per-event threshold
+     * and eviction checks do not have to run COUNT(*). -1 means unknown: the count is read from
+     * disk on next use. Only touched while holding the helper's lock.
+     */
+    private long eventCount = -1;
+    private long identifyCount = -1;
+    // total size of the events in each table, cached the same way
+    private long eventBytes = -1;
+    private long identifyBytes = -1;
+    private long priorityCount = -1;
+    private long priorityBytes = -1;
+
+    /**
+     * Codec for compressed payloads. Reads always decode compressed rows, new rows are only
+     * compressed while compression is enabled. Only touched while holding the helper's lock.
+     */
+    private EventCodec codec = new EventCodec();
+    private boolean compression = false;
+
+    /*
+        Write-back buffer for the store and long_store tables. When enabled, key value writes
+        only replace the key's entry in memory (a null value stages a delete) and reads see the
+        staged value. Staged values are committed by flushPendingValues, and inside the same
+        transaction as the next event insert, so a stored event is never newer than the stored
+        sequence number, last event time, etc. that were set before it. A crash can lose values
+        staged since the last commit, which only rolls them back to an older committed state:
+        for example the stored sequence number can lag, but only behind events that were never
+        written either, so sequence numbers of stored events never go backwards.
+     */
+    private boolean writeBack = false;
+    private Runnable writeBackScheduler;
+    private Map<String, Object> pendingValues = new LinkedHashMap<String, Object>();
+    private Map<String, Object> pendingLongValues = new LinkedHashMap<String, Object>();
+
     private static final AmplitudeLog logger = AmplitudeLog.getLogger();
 
     static synchronized DatabaseHelper getDatabaseHelper(Context context, String key) {
@@ -68,6 +164,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        invalidateEventCounts();
         db.execSQL(CREATE_STORE_TABLE);
         db.execSQL(CREATE_LONG_STORE_TABLE);
         // INTEGER PRIMARY KEY AUTOINCREMENT guarantees that all generated values
@@ -75,10 +172,28 @@ class DatabaseHelper extends SQLiteOpenHelper {
         // lifetime of the table, even if rows get removed
         db.execSQL(CREATE_EVENTS_TABLE);
         db.execSQL(CREATE_IDENTIFYS_TABLE);
+        db.execSQL(CREATE_QUARANTINE_TABLE);
+        db.execSQL(CREATE_PRIORITY_EVENTS_TABLE);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        // WAL lets a long-lived connection commit without rewriting the rollback journal on
+        // every insert. Only worth it when the handle is kept open, since reopening the
+        // database has to recover the WAL file each time.
+        if (persistentConnection && !db.isReadOnly()
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            try {
+                db.enableWriteAheadLogging();
+            } catch (RuntimeException e) {
+                logger.w(TAG, "Failed to enable write-ahead logging", e);
+            }
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        invalidateEventCounts();
         if (oldVersion > newVersion) {
             logger.e(TAG, "onUpgrade() with invalid oldVersion and newVersion");
             resetDatabase(db);
@@ -100,6 +215,41 @@ class DatabaseHelper extends SQLiteOpenHelper {
                 if (newVersion <= 3) break;
 
             case 3:
+                // the identifys table may already have the columns if it was created above
+                addSizeColumnIfMissing(db, EVENT_TABLE_NAME);
+                addSizeColumnIfMissing(db, IDENTIFY_TABLE_NAME);
+                if (newVersion <= 4) break;
+
+            case 4:
+                // existing rows keep their uncompressed event text
+                addColumnIfMissing(db, EVENT_TABLE_NAME, PAYLOAD_FIELD, PAYLOAD_COLUMN_DEFINITION);
+                addColumnIfMissing(db, IDENTIFY_TABLE_NAME, PAYLOAD_FIELD, PAYLOAD_COLUMN_DEFINITION);
+                if (newVersion <= 5) break;
+
+            case 5:
+                // existing rows keep a null sequence number, it is read from the event text
+                addColumnIfMissing(db, EVENT_TABLE_NAME, SEQUENCE_NUMBER_FIELD,
+                        SEQUENCE_NUMBER_COLUMN_DEFINITION);
+                addColumnIfMissing(db, IDENTIFY_TABLE_NAME, SEQUENCE_NUMBER_FIELD,
+                        SEQUENCE_NUMBER_COLUMN_DEFINITION);
+                if (newVersion <= 6) break;
+
+            case 6:
+                // rows from before the sequence number column are filled in once, so merged
+                // batches read it instead of parsing the event text
+                fillMissingSequenceNumbers(db, EVENT_TABLE_NAME);
+                fillMissingSequenceNumbers(db, IDENTIFY_TABLE_NAME);
+                if (newVersion <= 7) break;
+
+            case 7:
+                db.execSQL(CREATE_QUARANTINE_TABLE);
+                if (newVersion <= 8) break;
+
+            case 8:
+                db.execSQL(CREATE_PRIORITY_EVENTS_TABLE);
+                if (newVersion <= 9) break;
+
+            case 9:
                 break;
 
             default:
@@ -108,20 +258,289 @@ class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    private void addSizeColumnIfMissing(SQLiteDatabase db, String table) {
+        if (addColumnIfMissing(db, table, SIZE_FIELD, SIZE_COLUMN_DEFINITION)) {
+            // backfill, the cast makes length() count UTF-8 bytes instead of characters
+            db.execSQL("UPDATE " + table + " SET " + SIZE_FIELD + " = length(CAST("
+                    + EVENT_FIELD + " AS BLOB)) WHERE " + EVENT_FIELD + " IS NOT NULL");
+        }
+    }
+
+    private boolean addColumnIfMissing(
+            SQLiteDatabase db, String table, String column, String definition) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(nameIndex))) {
+                    return false;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        return true;
+    }
+
     private void resetDatabase(SQLiteDatabase db) {
         db.execSQL("DROP TABLE IF EXISTS " + STORE_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + LONG_STORE_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + EVENT_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + IDENTIFY_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + QUARANTINE_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + PRIORITY_TABLE_NAME);
         onCreate(db);
     }
 
-    synchronized long insertOrReplaceKeyValue(String key, String value) {
+    /**
+     * Keep a single database connection open for the lifetime of the helper, rather than
+     * opening and closing the database on every call. Disabling the mode closes the current
+     * connection.
+     *
+     * @param persistentConnection whether to keep the database connection open
+     */
+    synchronized void setPersistentConnection(boolean persistentConnection) {
+        if (this.persistentConnection == persistentConnection) {
+            return;
+        }
+        this.persistentConnection = persistentConnection;
+        // reopen lazily so the new journal mode is applied by onOpen
+        close();
+    }
+
+    synchronized boolean isPersistentConnection() {
+        return persistentConnection;
+    }
+
+    /**
+     * Closes the database connection. In persistent mode this is the explicit lifecycle hook
+     * for releasing the handle; the next call reopens the database.
+     */
+    synchronized void closeConnection() {
+        close();
+    }
+
+    private void closeIfTransient() {
+        if (!persistentConnection) {
+            close();
+        }
+    }
+
+    /*
+        A persistent handle that just failed may be in a bad state (for example after a disk
+        I/O error or if the file was removed underneath it), so drop it and let the next call
+        open a fresh connection.
+     */
+    private void closeAfterError() {
+        if (persistentConnection) {
+            try {
+                close();
+            } catch (RuntimeException e) {
+                logger.e(TAG, "close after error failed", e);
+            }
+        }
+    }
+
+    /**
+     * Buffer store and long_store writes in memory until the next flush instead of writing
+     * them to disk one at a time. Disabling write-back flushes the staged values.
+     *
+     * @param writeBack whether to buffer key value writes
+     */
+    synchronized void setWriteBack(boolean writeBack) {
+        this.writeBack = writeBack;
+        if (!writeBack) {
+            flushPendingValues();
+        }
+    }
+
+    synchronized boolean isWriteBack() {
+        return writeBack;
+    }
+
+    /**
+     * Sets the callback that is run whenever a value is staged while nothing else was pending,
+     * used by the client to schedule a timed flush.
+     *
+     * @param writeBackScheduler the callback, or null
+     */
+    synchronized void setWriteBackScheduler(Runnable writeBackScheduler) {
+        this.writeBackScheduler = writeBackScheduler;
+    }
+
+    synchronized boolean hasPendingValues() {
+        return !pendingValues.isEmpty() || !pendingLongValues.isEmpty();
+    }
+
+    private long stageValue(Map<String, Object> pending, String key, Object value) {
+        boolean schedule = !hasPendingValues();
+        pending.put(key, value);
+        if (schedule && writeBackScheduler != null) {
+            writeBackScheduler.run();
+        }
+        return 0;
+    }
+
+    /**
+     * Commits the staged store and long_store writes in a single transaction.
+     */
+    synchronized void flushPendingValues() {
+        if (!hasPendingValues()) {
+            return;
+        }
+
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                writePendingValues(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            clearPendingValues();
+        } catch (SQLiteException e) {
+            logger.e(TAG, "flushPendingValues failed", e);
+            // Not much we can do, just start fresh. Staged values are kept for the next flush.
+            delete();
+        } finally {
+            closeIfTransient();
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        flushPendingValues();
+    }
+
+    // must run inside a transaction, the caller clears the buffer once it has committed
+    private void writePendingValues(SQLiteDatabase db) {
+        writePendingValues(db, STORE_TABLE_NAME, pendingValues);
+        writePendingValues(db, LONG_STORE_TABLE_NAME, pendingLongValues);
+    }
+
+    private void writePendingValues(SQLiteDatabase db, String table, Map<String, Object> pending) {
+        ContentValues contentValues = new ContentValues();
+        for (Map.Entry<String, Object> entry : pending.entrySet()) {
+            Object value = entry.getValue();
+            if (value == null) {
+                db.delete(table, KEY_FIELD + "=?", new String[]{entry.getKey()});
+                continue;
+            }
+            contentValues.put(KEY_FIELD, entry.getKey());
+            if (value instanceof Long) {
+                contentValues.put(VALUE_FIELD, (Long) value);
+            } else {
+                contentValues.put(VALUE_FIELD, (String) value);
+            }
+            if (db.insertWithOnConflict(
+                    table, null, contentValues, SQLiteDatabase.CONFLICT_REPLACE) == -1) {
+                logger.w(TAG, "Insert failed");
+            }
+        }
+    }
+
+    private void clearPendingValues() {
+        pendingValues.clear();
+        pendingLongValues.clear();
+    }
+
+    /**
+     * Store new events deflate-compressed in the payload column instead of as plain text.
+     * Rows written either way stay readable whatever the setting.
+     *
+     * @param compression whether to compress new events
+     */
+    synchronized void setEventCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    synchronized boolean isEventCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets the preset dictionary used to compress new events. Dictionaries are persisted in
+     * the store table, keyed by their Adler-32 checksum, so events compressed with an older
+     * dictionary can still be read after it changes.
+     *
+     * @param dictionary text that commonly occurs in events, or null for no dictionary
+     */
+    synchronized void setCompressionDictionary(String dictionary) {
+        codec.setDictionary(dictionary);
+        if (dictionary == null) {
+            return;
+        }
+
+        String key = DICTIONARY_KEY_PREFIX + EventCodec.getDictionaryId(EventCodec.toUtf8(dictionary));
+        if (!dictionary.equals(getValue(key))) {
+            insertOrReplaceKeyValue(key, dictionary);
+        }
+    }
+
+    // returns null if the event should be stored as plain text
+    private byte[] compressEvent(String event) {
+        return compression && event != null ? codec.compress(event) : null;
+    }
+
+    private String decompressEvent(SQLiteDatabase db, byte[] payload) {
+        long dictionaryId = EventCodec.getPayloadDictionaryId(payload);
+        if (dictionaryId != 0 && !codec.hasDictionary(dictionaryId)) {
+            String dictionary = getDictionary(db, DICTIONARY_KEY_PREFIX + dictionaryId);
+            if (dictionary != null) {
+                codec.addDictionary(EventCodec.toUtf8(dictionary));
+            }
+        }
+
+        try {
+            return codec.decompress(payload);
+        } catch (DataFormatException e) {
+            logger.e(TAG, "Failed to decompress stored event, skipping", e);
+            return null;
+        }
+    }
+
+    // reads the dictionary on the caller's connection, as getValue would close it
+    private String getDictionary(SQLiteDatabase db, String key) {
+        if (pendingValues.containsKey(key)) {
+            return (String) pendingValues.get(key);
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = queryDb(
+                db, STORE_TABLE_NAME, new String[]{VALUE_FIELD}, KEY_FIELD + " = ?",
+                new String[]{key}, null, null, null, null
+            );
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Sets a value in the store table, or removes the key if the value is null.
+     *
+     * @return the row id, or 0 if the write was staged in the write-back buffer
+     */
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
+        if (writeBack) {
+            return stageValue(pendingValues, key, value);
+        }
         return value == null ? deleteKeyFromTable(STORE_TABLE_NAME, key) :
             insertOrReplaceKeyValueToTable(STORE_TABLE_NAME, key, value);
     }
 
-    synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+    @Override
+    public synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+        if (writeBack) {
+            return stageValue(pendingLongValues, key, value);
+        }
         return value == null ? deleteKeyFromTable(LONG_STORE_TABLE_NAME, key) :
             insertOrReplaceKeyValueToTable(LONG_STORE_TABLE_NAME, key, value);
     }
@@ -151,7 +570,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             // Not much we can do, just start fresh
             delete();
         } finally {
-            close();
+            closeIfTransient();
         }
         return result;
     }
@@ -163,49 +582,296 @@ class DatabaseHelper extends SQLiteOpenHelper {
             result = db.delete(table, KEY_FIELD + "=?", new String[]{key});
         } catch (SQLiteException e) {
             logger.e(TAG, "deleteKeyFromTable failed", e);
+            closeAfterError();
         } finally {
-            close();
+            closeIfTransient();
         }
         return result;
     }
 
-    synchronized long addEvent(String event) {
+    @Override
+    public synchronized long addEvent(String event) {
         return addEventToTable(EVENT_TABLE_NAME, event);
     }
 
-    synchronized long addIdentify(String identifyEvent) {
+    @Override
+    public synchronized long addIdentify(String identifyEvent) {
         return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent);
     }
 
     private synchronized long addEventToTable(String table, String event) {
         long result = -1;
+        long size = 0;
         try {
             SQLiteDatabase db = getWritableDatabase();
-            ContentValues contentValues = new ContentValues();
-            contentValues.put(EVENT_FIELD, event);
-            result = db.insert(table, null, contentValues);
+            // staged key values are committed together with the event
+            db.beginTransaction();
+            try {
+                writePendingValues(db);
+                ContentValues contentValues = new ContentValues();
+                byte[] payload = compressEvent(event);
+                if (payload != null) {
+                    contentValues.putNull(EVENT_FIELD);
+                    contentValues.put(PAYLOAD_FIELD, payload);
+                    size = payload.length;
+                } else {
+                    contentValues.put(EVENT_FIELD, event);
+                    size = Utils.getUtf8Length(event);
+                }
+                contentValues.put(SIZE_FIELD, size);
+                contentValues.put(SEQUENCE_NUMBER_FIELD, StoredEvent.findSequenceNumber(event));
+                result = db.insert(table, null, contentValues);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            clearPendingValues();
             if (result == -1) {
                 logger.w(TAG, String.format("Insert into %s failed", table));
+            } else {
+                adjustEventCount(table, 1, size);
             }
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("addEvent to %s failed", table), e);
             // Not much we can do, just start fresh
             delete();
         } finally {
-            close();
+            closeIfTransient();
+        }
+        return result;
+    }
+
+    /**
+     * Inserts a batch of events in a single transaction, so the whole batch costs one commit
+     * instead of one per event.
+     *
+     * @param events the event strings, in logging order
+     * @return the id of the last inserted event, or -1 if nothing was inserted
+     */
+    @Override
+    public synchronized long addEvents(List<String> events) {
+        return addEventsToTable(EVENT_TABLE_NAME, events, null, null);
+    }
+
+    @Override
+    public synchronized long addIdentifys(List<String> identifyEvents) {
+        return addEventsToTable(IDENTIFY_TABLE_NAME, identifyEvents, null, null);
+    }
+
+    /**
+     * Inserts an event and updates the long_store keys that describe it in one transaction,
+     * so a crash can never leave the stored metadata out of step with the events table.
+     *
+     * @param event the event string
+     * @param eventIdKey the long_store key set to the new event's id
+     * @param metadata other long_store values to write with the event (values must not be
+     *                 null), may be null
+     * @return the id of the inserted event, or -1 if the insert failed
+     */
+    @Override
+    public synchronized long addEventWithMetadata(
+            String event, String eventIdKey, Map<String, Long> metadata) {
+        return addEventsToTable(
+                EVENT_TABLE_NAME, Collections.singletonList(event), eventIdKey, metadata);
+    }
+
+    @Override
+    public synchronized long addIdentifyWithMetadata(
+            String identifyEvent, String eventIdKey, Map<String, Long> metadata) {
+        return addEventsToTable(
+                IDENTIFY_TABLE_NAME, Collections.singletonList(identifyEvent), eventIdKey, metadata);
+    }
+
+    @Override
+    public synchronized long addEventsWithMetadata(
+            List<String> events, String eventIdKey, Map<String, Long> metadata) {
+        return addEventsToTable(EVENT_TABLE_NAME, events, eventIdKey, metadata);
+    }
+
+    @Override
+    public synchronized long addIdentifysWithMetadata(
+            List<String> identifyEvents, String eventIdKey, Map<String, Long> metadata) {
+        return addEventsToTable(IDENTIFY_TABLE_NAME, identifyEvents, eventIdKey, metadata);
+    }
+
+    /**
+     * Adds events and identifys together with their metadata in a single transaction, so a
+     * batch of pending events is either stored whole or not at all.
+     *
+     * @param events the events, may be empty
+     * @param eventIdKey the long_store key set to the last event's id, if any were added
+     * @param identifyEvents the identifys, may be empty
+     * @param identifyIdKey the long_store key set to the last identify's id, if any were added
+     * @param metadata other long_store values to write with them, may be null
+     * @return the ids of the last event and last identify added, -1 if none or if the insert
+     *         failed
+     */
+    synchronized Pair<Long, Long> addEventsAndIdentifysWithMetadata(List<String> events,
+            String eventIdKey, List<String> identifyEvents, String identifyIdKey,
+            Map<String, Long> metadata) {
+        long eventId = -1;
+        long identifyId = -1;
+        long[] eventStats = new long[2];
+        long[] identifyStats = new long[2];
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                writePendingValues(db);
+                eventId = insertEvents(db, EVENT_TABLE_NAME, events, eventStats);
+                identifyId = insertEvents(db, IDENTIFY_TABLE_NAME, identifyEvents, identifyStats);
+                Map<String, Long> values = new HashMap<String, Long>();
+                if (metadata != null) {
+                    values.putAll(metadata);
+                }
+                if (eventIdKey != null && eventId >= 0) {
+                    values.put(eventIdKey, eventId);
+                }
+                if (identifyIdKey != null && identifyId >= 0) {
+                    values.put(identifyIdKey, identifyId);
+                }
+                insertLongValues(db, values);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            clearPendingValues();
+            adjustEventCount(EVENT_TABLE_NAME, eventStats[0], eventStats[1]);
+            adjustEventCount(IDENTIFY_TABLE_NAME, identifyStats[0], identifyStats[1]);
+        } catch (SQLiteException e) {
+            logger.e(TAG, "addEventsAndIdentifys failed", e);
+            // Not much we can do, just start fresh
+            eventId = -1;
+            identifyId = -1;
+            delete();
+        } finally {
+            closeIfTransient();
+        }
+        return new Pair<Long, Long>(eventId, identifyId);
+    }
+
+    private synchronized long addEventsToTable(
+            String table, List<String> events, String eventIdKey, Map<String, Long> metadata) {
+        long result = -1;
+        if (events == null || events.isEmpty()) {
+            return result;
+        }
+
+        long[] stats = new long[2];
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                writePendingValues(db);
+                result = insertEvents(db, table, events, stats);
+
+                Map<String, Long> values = metadata;
+                if (eventIdKey != null) {
+                    values = new HashMap<String, Long>();
+                    if (metadata != null) {
+                        values.putAll(metadata);
+                    }
+                    values.put(eventIdKey, result);
+                }
+                insertLongValues(db, values);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            clearPendingValues();
+            adjustEventCount(table, stats[0], stats[1]);
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("addEvents to %s failed", table), e);
+            // Not much we can do, just start fresh
+            result = -1;
+            delete();
+        } finally {
+            closeIfTransient();
         }
         return result;
     }
 
-    synchronized String getValue(String key) {
+    /*
+        Inserts the rows inside the caller's transaction, with a statement compiled once and
+        rebound for every row. Adds the number of rows and their stored bytes to stats.
+        Returns the id of the last row, or -1 if there were none.
+     */
+    private long insertEvents(SQLiteDatabase db, String table, List<String> events,
+                              long[] stats) {
+        long result = -1;
+        if (events == null || events.isEmpty()) {
+            return result;
+        }
+
+        SQLiteStatement insertEvent = db.compileStatement("INSERT INTO " + table + " ("
+                + EVENT_FIELD + ", " + PAYLOAD_FIELD + ", " + SIZE_FIELD + ", "
+                + SEQUENCE_NUMBER_FIELD + ") VALUES (?, ?, ?, ?)");
+        try {
+            for (String event : events) {
+                long size;
+                byte[] payload = compressEvent(event);
+                if (payload != null) {
+                    insertEvent.bindNull(1);
+                    insertEvent.bindBlob(2, payload);
+                    size = payload.length;
+                } else {
+                    insertEvent.bindString(1, event);
+                    insertEvent.bindNull(2);
+                    size = Utils.getUtf8Length(event);
+                }
+                insertEvent.bindLong(3, size);
+                insertEvent.bindLong(4, StoredEvent.findSequenceNumber(event));
+                result = insertEvent.executeInsert();
+                stats[0]++;
+                stats[1] += size;
+            }
+        } finally {
+            insertEvent.close();
+        }
+        return result;
+    }
+
+    // writes long_store values inside the caller's transaction
+    private void insertLongValues(SQLiteDatabase db, Map<String, Long> values) {
+        if (values == null || values.isEmpty()) {
+            return;
+        }
+
+        SQLiteStatement insertLongValue = db.compileStatement(
+                "INSERT OR REPLACE INTO " + LONG_STORE_TABLE_NAME + " ("
+                + KEY_FIELD + ", " + VALUE_FIELD + ") VALUES (?, ?)");
+        try {
+            for (Map.Entry<String, Long> entry : values.entrySet()) {
+                insertLongValue(insertLongValue, entry.getKey(), entry.getValue());
+            }
+        } finally {
+            insertLongValue.close();
+        }
+    }
+
+    private void insertLongValue(SQLiteStatement statement, String key, long value) {
+        statement.bindString(1, key);
+        statement.bindLong(2, value);
+        statement.executeInsert();
+    }
+
+    @Override
+    public synchronized String getValue(String key) {
         return (String) getValueFromTable(STORE_TABLE_NAME, key);
     }
 
-    synchronized Long getLongValue(String key) {
+    @Override
+    public synchronized Long getLongValue(String key) {
         return (Long) getValueFromTable(LONG_STORE_TABLE_NAME, key);
     }
 
     protected synchronized Object getValueFromTable(String table, String key) {
+        Map<String, Object> pending = table.equals(STORE_TABLE_NAME) ?
+                pendingValues : pendingLongValues;
+        if (pending.containsKey(key)) {
+            return pending.get(key);
+        }
+
         Object value = null;
         Cursor cursor = null;
         try {
@@ -219,35 +885,197 @@ class DatabaseHelper extends SQLiteOpenHelper {
             }
         } catch (SQLiteException e) {
             logger.e(TAG, "getValue failed", e);
+            closeAfterError();
         } catch (RuntimeException e) {
             convertIfCursorWindowException(e);
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
+            closeIfTransient();
         }
         return value;
     }
 
-    synchronized List<JSONObject> getEvents(
+    @Override
+    public synchronized List<JSONObject> getEvents(
                                         long upToId, long limit) throws JSONException {
         return getEventsFromTable(EVENT_TABLE_NAME, upToId, limit);
     }
 
-    synchronized List<JSONObject> getIdentifys(
+    @Override
+    public synchronized List<JSONObject> getIdentifys(
                                         long upToId, long limit) throws JSONException {
         return getEventsFromTable(IDENTIFY_TABLE_NAME, upToId, limit);
     }
 
+    @Override
+    public synchronized List<StoredEvent> getStoredEvents(long upToId, long limit) {
+        return getStoredEventsFromTable(EVENT_TABLE_NAME, upToId, limit);
+    }
+
+    @Override
+    public synchronized List<StoredEvent> getStoredIdentifys(long upToId, long limit) {
+        return getStoredEventsFromTable(IDENTIFY_TABLE_NAME, upToId, limit);
+    }
+
+    /**
+     * Reads up to limit events and identifys together, already interleaved in the order
+     * they are uploaded in (see {@link AmplitudeClient#mergeEventsAndIdentifys}). Both tables
+     * are read in one query, and only the rows that make it into the batch are decoded.
+     *
+     * @param upToEventId only read events with an id up to this one, or -1 for no bound
+     * @param upToIdentifyId only read identifys with an id up to this one, or -1 for no bound
+     * @param limit the max number of events and identifys to read
+     * @return the max event id and max identify id read (-1 if none), and the merged events
+     */
+    synchronized Pair<Pair<Long, Long>, List<StoredEvent>> getMergedEvents(
+            long upToEventId, long upToIdentifyId, long limit) {
+        return getMergedEvents(-1, upToEventId, -1, upToIdentifyId, limit, 0);
+    }
+
+    /**
+     * Reads up to limit events and identifys that come after the given ids, interleaved the
+     * same way as {@link #getMergedEvents(long, long, long)}. Used to read the next batch
+     * while earlier batches are still being uploaded.
+     *
+     * @param afterEventId only read events with an id greater than this one
+     * @param upToEventId only read events with an id up to this one, or -1 for no bound
+     * @param afterIdentifyId only read identifys with an id greater than this one
+     * @param upToIdentifyId only read identifys with an id up to this one, or -1 for no bound
+     * @param limit the max number of events and identifys to read
+     * @param maxBytes the max UTF-8 length of the events read, or 0 for no limit. The first
+     *                 event is always read, however large it is.
+     * @return the max event id and max identify id read (-1 if none), and the merged events
+     */
+    synchronized Pair<Pair<Long, Long>, List<StoredEvent>> getMergedEvents(long afterEventId,
+            long upToEventId, long afterIdentifyId, long upToIdentifyId, long limit,
+            long maxBytes) {
+        List<StoredEvent> events = new ArrayList<StoredEvent>();
+        long bytes = 0;
+        long maxEventId = -1;
+        long maxIdentifyId = -1;
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            cursor = rawQueryDb(db, MERGED_EVENTS_QUERY, new String[] {
+                "" + afterEventId, "" + (upToEventId >= 0 ? upToEventId : Long.MAX_VALUE),
+                "" + limit, "" + afterIdentifyId,
+                "" + (upToIdentifyId >= 0 ? upToIdentifyId : Long.MAX_VALUE), "" + limit
+            });
+            int eventCount = 0;
+            while (cursor.moveToNext() && cursor.getInt(0) == 0) {
+                eventCount++;
+            }
+            int identifyCount = cursor.getCount() - eventCount;
+            int eventIndex = 0;
+            int identifyIndex = 0;
+
+            // same rule as mergeEventsAndIdentifys: events without a sequence number first,
+            // identifys before events on a tie
+            for (long read = 0; read < limit; read++) {
+                boolean noEvents = eventIndex >= eventCount;
+                boolean noIdentifys = identifyIndex >= identifyCount;
+                if (noEvents && noIdentifys) {
+                    break;
+                }
+                boolean takeEvent = noIdentifys;
+                if (!noEvents && !noIdentifys) {
+                    cursor.moveToPosition(eventCount + identifyIndex);
+                    long identifySequenceNumber = cursor.getLong(4);
+                    cursor.moveToPosition(eventIndex);
+                    long eventSequenceNumber = cursor.getLong(4);
+                    takeEvent = eventSequenceNumber < 0
+                            || eventSequenceNumber < identifySequenceNumber;
+                }
+                cursor.moveToPosition(takeEvent ? eventIndex : eventCount + identifyIndex);
+
+                long eventId = cursor.getLong(1);
+                String event = cursor.getString(2);
+                if (event == null && !cursor.isNull(3)) {
+                    event = decompressEvent(db, cursor.getBlob(3));
+                }
+                if (!TextUtils.isEmpty(event) && maxBytes > 0) {
+                    long eventBytes = Utils.getUtf8Length(event);
+                    if (!events.isEmpty() && bytes + eventBytes > maxBytes) {
+                        break;
+                    }
+                    bytes += eventBytes;
+                }
+
+                if (takeEvent) {
+                    eventIndex++;
+                    maxEventId = eventId;
+                } else {
+                    identifyIndex++;
+                    maxIdentifyId = eventId;
+                }
+                if (TextUtils.isEmpty(event)) {
+                    continue;
+                }
+                events.add(new StoredEvent(eventId, event, cursor.getLong(4)));
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, "getMergedEvents failed", e);
+            closeAfterError();
+        } catch (RuntimeException e) {
+            convertIfCursorWindowException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            closeIfTransient();
+        }
+        return new Pair<Pair<Long, Long>, List<StoredEvent>>(
+                new Pair<Long, Long>(maxEventId, maxIdentifyId), events);
+    }
+
+    // reads the sequence numbers of rows written before the column was added out of their text
+    private void fillMissingSequenceNumbers(SQLiteDatabase db, String table) {
+        Cursor cursor = db.query(table, new String[] { ID_FIELD, EVENT_FIELD, PAYLOAD_FIELD },
+                SEQUENCE_NUMBER_FIELD + " IS NULL", null, null, null, null);
+        try {
+            if (cursor.getCount() == 0) {
+                return;
+            }
+
+            SQLiteStatement update = db.compileStatement("UPDATE " + table + " SET "
+                    + SEQUENCE_NUMBER_FIELD + " = ? WHERE " + ID_FIELD + " = ?");
+            db.beginTransaction();
+            try {
+                while (cursor.moveToNext()) {
+                    String event = cursor.getString(1);
+                    if (event == null && !cursor.isNull(2)) {
+                        event = decompressEvent(db, cursor.getBlob(2));
+                    }
+                    update.bindLong(1, StoredEvent.findSequenceNumber(event));
+                    update.bindLong(2, cursor.getLong(0));
+                    update.execute();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                update.close();
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     protected synchronized List<JSONObject> getEventsFromTable(
                                     String table, long upToId, long limit) throws JSONException {
-        List<JSONObject> events = new LinkedList<JSONObject>();
+        return StoredEvent.toJSONObjects(getStoredEventsFromTable(table, upToId, limit));
+    }
+
+    protected synchronized List<StoredEvent> getStoredEventsFromTable(
+                                    String table, long upToId, long limit) {
+        List<StoredEvent> events = new ArrayList<StoredEvent>();
         Cursor cursor = null;
         try {
             SQLiteDatabase db = getReadableDatabase();
             cursor = queryDb(
-                db, table, new String[] { ID_FIELD, EVENT_FIELD },
+                db, table,
+                new String[] { ID_FIELD, EVENT_FIELD, PAYLOAD_FIELD, SEQUENCE_NUMBER_FIELD },
                 upToId >= 0 ? ID_FIELD + " <= " + upToId : null, null, null, null,
                 ID_FIELD + " ASC", limit >= 0 ? "" + limit : null
             );
@@ -255,58 +1083,117 @@ class DatabaseHelper extends SQLiteOpenHelper {
             while (cursor.moveToNext()) {
                 long eventId = cursor.getLong(0);
                 String event = cursor.getString(1);
+                // compressed rows are decoded one at a time as the cursor advances
+                if (event == null && !cursor.isNull(2)) {
+                    event = decompressEvent(db, cursor.getBlob(2));
+                }
                 if (TextUtils.isEmpty(event)) {
                     continue;
                 }
 
-                JSONObject obj = new JSONObject(event);
-                obj.put("event_id", eventId);
-                events.add(obj);
+                // rows from before the sequence number column read it from the event text
+                events.add(cursor.isNull(3) ? new StoredEvent(eventId, event) :
+                        new StoredEvent(eventId, event, cursor.getLong(3)));
             }
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("getEvents from %s failed", table), e);
+            closeAfterError();
         } catch (RuntimeException e) {
             convertIfCursorWindowException(e);
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
+            closeIfTransient();
         }
         return events;
     }
 
-    synchronized long getEventCount() {
+    @Override
+    public synchronized long getEventCount() {
         return getEventCountFromTable(EVENT_TABLE_NAME);
     }
 
-    synchronized long getIdentifyCount() {
+    @Override
+    public synchronized long getIdentifyCount() {
         return getEventCountFromTable(IDENTIFY_TABLE_NAME);
     }
 
-    synchronized long getTotalEventCount() {
+    @Override
+    public synchronized long getTotalEventCount() {
         return getEventCount() + getIdentifyCount();
     }
 
     private synchronized long getEventCountFromTable(String table) {
-        long numberRows = 0;
+        long numberRows = getCachedEventCount(table);
+        if (numberRows >= 0) {
+            return numberRows;
+        }
+
+        numberRows = 0;
         SQLiteStatement statement = null;
         try {
             SQLiteDatabase db = getReadableDatabase();
             String query = "SELECT COUNT(*) FROM " + table;
             statement = db.compileStatement(query);
             numberRows = statement.simpleQueryForLong();
+            setCachedEventCount(table, numberRows);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("getNumberRows for %s failed", table), e);
+            closeAfterError();
         } finally {
             if (statement != null) {
                 statement.close();
             }
-            close();
+            closeIfTransient();
         }
         return numberRows;
     }
 
+    /**
+     * Returns the total size in bytes of the events stored in the events table.
+     */
+    @Override
+    public synchronized long getEventBytes() {
+        return getEventBytesFromTable(EVENT_TABLE_NAME);
+    }
+
+    @Override
+    public synchronized long getIdentifyBytes() {
+        return getEventBytesFromTable(IDENTIFY_TABLE_NAME);
+    }
+
+    @Override
+    public synchronized long getTotalEventBytes() {
+        return getEventBytes() + getIdentifyBytes();
+    }
+
+    private synchronized long getEventBytesFromTable(String table) {
+        long bytes = getCachedEventBytes(table);
+        if (bytes >= 0) {
+            return bytes;
+        }
+
+        bytes = 0;
+        SQLiteStatement statement = null;
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            statement = db.compileStatement(
+                    "SELECT IFNULL(SUM(" + SIZE_FIELD + "), 0) FROM " + table);
+            bytes = statement.simpleQueryForLong();
+            setCachedEventBytes(table, bytes);
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("getEventBytes for %s failed", table), e);
+            closeAfterError();
+        } finally {
+            if (statement != null) {
+                statement.close();
+            }
+            closeIfTransient();
+        }
+        return bytes;
+    }
+
     synchronized long getNthEventId(long n) {
         return getNthEventIdFromTable(EVENT_TABLE_NAME, n);
     }
@@ -331,54 +1218,430 @@ class DatabaseHelper extends SQLiteOpenHelper {
             }
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("getNthEventId from %s failed", table), e);
+            closeAfterError();
         } finally {
             if (statement != null) {
                 statement.close();
             }
-            close();
+            closeIfTransient();
         }
         return nthEventId;
     }
 
-    synchronized void removeEvents(long maxId) {
+    /**
+     * Drops the oldest events, ordered by id, once the table holds more than maxCount of them,
+     * keeping only the newest keepCount. Runs as a single DELETE statement.
+     *
+     * @param maxCount the high-water mark that triggers the trim
+     * @param keepCount the low-water mark the table is trimmed down to
+     * @return the number of events dropped
+     */
+    @Override
+    public synchronized long trimEvents(long maxCount, long keepCount) {
+        return trimEventsFromTable(EVENT_TABLE_NAME, maxCount, keepCount);
+    }
+
+    @Override
+    public synchronized long trimIdentifys(long maxCount, long keepCount) {
+        return trimEventsFromTable(IDENTIFY_TABLE_NAME, maxCount, keepCount);
+    }
+
+    private synchronized long trimEventsFromTable(String table, long maxCount, long keepCount) {
+        if (getEventCountFromTable(table) <= maxCount) {
+            return 0;
+        }
+
+        long removed = 0;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            removed = db.delete(table, ID_FIELD + " <= (SELECT " + ID_FIELD + " FROM " + table
+                    + " ORDER BY " + ID_FIELD + " DESC LIMIT 1 OFFSET " + keepCount + ")", null);
+            onEventsRemoved(table, removed);
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("trimEvents from %s failed", table), e);
+            invalidateEventCounts();
+            closeAfterError();
+        } finally {
+            closeIfTransient();
+        }
+        return removed;
+    }
+
+    /**
+     * Drops the oldest events, ordered by id, once the events in the table take up more than
+     * maxBytes, keeping the newest events that fit in keepBytes.
+     *
+     * @param maxBytes the high-water mark that triggers the trim
+     * @param keepBytes the low-water mark the table is trimmed down to
+     * @return the number of events dropped
+     */
+    @Override
+    public synchronized long trimEventsToBytes(long maxBytes, long keepBytes) {
+        return trimEventsFromTableToBytes(EVENT_TABLE_NAME, maxBytes, keepBytes);
+    }
+
+    @Override
+    public synchronized long trimIdentifysToBytes(long maxBytes, long keepBytes) {
+        return trimEventsFromTableToBytes(IDENTIFY_TABLE_NAME, maxBytes, keepBytes);
+    }
+
+    private synchronized long trimEventsFromTableToBytes(
+            String table, long maxBytes, long keepBytes) {
+        if (getEventBytesFromTable(table) <= maxBytes) {
+            return 0;
+        }
+
+        long removed = 0;
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            // walk from the newest event back to find the oldest one that still fits
+            long keptBytes = 0;
+            long cutoffId = -1;
+            cursor = queryDb(
+                db, table, new String[] { ID_FIELD, SIZE_FIELD }, null, null, null, null,
+                ID_FIELD + " DESC", null
+            );
+            while (cursor.moveToNext()) {
+                long size = cursor.getLong(1);
+                if (keptBytes + size > keepBytes) {
+                    cutoffId = cursor.getLong(0);
+                    break;
+                }
+                keptBytes += size;
+            }
+            cursor.close();
+            cursor = null;
+
+            if (cutoffId >= 0) {
+                removed = db.delete(table, ID_FIELD + " <= " + cutoffId, null);
+                adjustEventCount(table, -removed, 0);
+                setCachedEventBytes(table, keptBytes);
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("trimEventsToBytes from %s failed", table), e);
+            invalidateEventCounts();
+            closeAfterError();
+        } catch (RuntimeException e) {
+            convertIfCursorWindowException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            closeIfTransient();
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized void removeEvents(long maxId) {
         removeEventsFromTable(EVENT_TABLE_NAME, maxId);
     }
 
-    synchronized void removeIdentifys(long maxId) {
+    @Override
+    public synchronized void removeIdentifys(long maxId) {
         removeEventsFromTable(IDENTIFY_TABLE_NAME, maxId);
     }
 
+    @Override
+    public synchronized void removeEvents(long afterId, long maxId) {
+        removeEventsFromTable(EVENT_TABLE_NAME, afterId, maxId);
+    }
+
+    @Override
+    public synchronized void removeIdentifys(long afterId, long maxId) {
+        removeEventsFromTable(IDENTIFY_TABLE_NAME, afterId, maxId);
+    }
+
     private synchronized void removeEventsFromTable(String table, long maxId) {
+        removeEventsFromTable(table, -1, maxId);
+    }
+
+    private synchronized void removeEventsFromTable(String table, long afterId, long maxId) {
         try {
             SQLiteDatabase db = getWritableDatabase();
-            db.delete(table, ID_FIELD + " <= " + maxId, null);
+            String selection = ID_FIELD + " <= " + maxId;
+            if (afterId >= 0) {
+                selection = ID_FIELD + " > " + afterId + " AND " + selection;
+            }
+            onEventsRemoved(table, db.delete(table, selection, null));
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("removeEvents from %s failed", table), e);
+            invalidateEventCounts();
+            closeAfterError();
         } finally {
-            close();
+            closeIfTransient();
         }
     }
 
-    synchronized void removeEvent(long id) {
+    @Override
+    public synchronized void removeEvent(long id) {
         removeEventFromTable(EVENT_TABLE_NAME, id);
     }
 
-    synchronized void removeIdentify(long id) {
+    @Override
+    public synchronized void removeIdentify(long id) {
         removeEventFromTable(IDENTIFY_TABLE_NAME, id);
     }
 
     private synchronized void removeEventFromTable(String table, long id) {
         try {
             SQLiteDatabase db = getWritableDatabase();
-            db.delete(table, ID_FIELD + " = " + id, null);
+            onEventsRemoved(table, db.delete(table, ID_FIELD + " = " + id, null));
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("removeEvent from %s failed", table), e);
+            invalidateEventCounts();
+            closeAfterError();
         } finally {
-            close();
+            closeIfTransient();
+        }
+    }
+
+    /**
+     * Adds a high-priority event and updates the long_store keys that describe it in one
+     * transaction, see {@link #addEventWithMetadata(String, String, Map)}. High-priority
+     * events have their own ids, separate from the events table's.
+     *
+     * @return the id of the inserted event, or -1 if the insert failed
+     */
+    synchronized long addPriorityEventWithMetadata(
+            String event, String eventIdKey, Map<String, Long> metadata) {
+        return addEventsToTable(
+                PRIORITY_TABLE_NAME, Collections.singletonList(event), eventIdKey, metadata);
+    }
+
+    /**
+     * Reads the oldest high-priority events that come after afterId, in id order.
+     *
+     * @param afterId only read events with an id greater than this one
+     * @param upToId only read events with an id up to this one, or -1 for no bound
+     * @param limit the max number of events to read, or -1 for no limit
+     * @param maxBytes the max UTF-8 length of the events read, or 0 for no limit. The first
+     *                 event is always read, however large it is.
+     * @return the max id read (-1 if none), and the events
+     */
+    synchronized Pair<Long, List<StoredEvent>> getPriorityEvents(
+            long afterId, long upToId, long limit, long maxBytes) {
+        List<StoredEvent> events = new ArrayList<StoredEvent>();
+        long bytes = 0;
+        long maxId = -1;
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            String selection = ID_FIELD + " > " + afterId;
+            if (upToId >= 0) {
+                selection += " AND " + ID_FIELD + " <= " + upToId;
+            }
+            cursor = queryDb(
+                db, PRIORITY_TABLE_NAME,
+                new String[] { ID_FIELD, EVENT_FIELD, PAYLOAD_FIELD, SEQUENCE_NUMBER_FIELD },
+                selection, null, null, null, ID_FIELD + " ASC", limit >= 0 ? "" + limit : null
+            );
+            while (cursor.moveToNext()) {
+                long eventId = cursor.getLong(0);
+                String event = cursor.getString(1);
+                if (event == null && !cursor.isNull(2)) {
+                    event = decompressEvent(db, cursor.getBlob(2));
+                }
+                if (!TextUtils.isEmpty(event) && maxBytes > 0) {
+                    long eventBytes = Utils.getUtf8Length(event);
+                    if (!events.isEmpty() && bytes + eventBytes > maxBytes) {
+                        break;
+                    }
+                    bytes += eventBytes;
+                }
+
+                maxId = eventId;
+                if (TextUtils.isEmpty(event)) {
+                    continue;
+                }
+                events.add(new StoredEvent(eventId, event, cursor.getLong(3)));
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, "getPriorityEvents failed", e);
+            closeAfterError();
+        } catch (RuntimeException e) {
+            convertIfCursorWindowException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            closeIfTransient();
+        }
+        return new Pair<Long, List<StoredEvent>>(maxId, events);
+    }
+
+    synchronized long getPriorityEventCount() {
+        return getEventCountFromTable(PRIORITY_TABLE_NAME);
+    }
+
+    synchronized long getPriorityEventBytes() {
+        return getEventBytesFromTable(PRIORITY_TABLE_NAME);
+    }
+
+    /**
+     * Drops the oldest high-priority events once there are more than maxCount of them, see
+     * {@link #trimEvents(long, long)}.
+     */
+    synchronized long trimPriorityEvents(long maxCount, long keepCount) {
+        return trimEventsFromTable(PRIORITY_TABLE_NAME, maxCount, keepCount);
+    }
+
+    synchronized void removePriorityEvents(long afterId, long maxId) {
+        removeEventsFromTable(PRIORITY_TABLE_NAME, afterId, maxId);
+    }
+
+    synchronized boolean quarantinePriorityEvent(long id, String reason) {
+        return quarantineEventFromTable(PRIORITY_TABLE_NAME, id, reason);
+    }
+
+    /**
+     * Moves an event out of the events table into the quarantine table, for an event the
+     * server will never accept. Only the newest {@link Constants#QUARANTINE_MAX_COUNT}
+     * quarantined events are kept.
+     *
+     * @param id the id of the event
+     * @param reason why the event was quarantined, for example the response code
+     * @return true if the event was moved, false if there was no such event
+     */
+    synchronized boolean quarantineEvent(long id, String reason) {
+        return quarantineEventFromTable(EVENT_TABLE_NAME, id, reason);
+    }
+
+    synchronized boolean quarantineIdentify(long id, String reason) {
+        return quarantineEventFromTable(IDENTIFY_TABLE_NAME, id, reason);
+    }
+
+    private synchronized boolean quarantineEventFromTable(String table, long id, String reason) {
+        long removed = 0;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                db.execSQL("INSERT INTO " + QUARANTINE_TABLE_NAME + " (" + SOURCE_TABLE_FIELD
+                        + ", " + SOURCE_ID_FIELD + ", " + EVENT_FIELD + ", " + SIZE_FIELD + ", "
+                        + PAYLOAD_FIELD + ", " + REASON_FIELD + ", " + TIME_FIELD + ") SELECT ?, "
+                        + ID_FIELD + ", " + EVENT_FIELD + ", " + SIZE_FIELD + ", "
+                        + PAYLOAD_FIELD + ", ?, ? FROM " + table + " WHERE " + ID_FIELD + " = ?",
+                        new Object[] { table, reason, System.currentTimeMillis(), id });
+                removed = db.delete(table, ID_FIELD + " = " + id, null);
+                db.delete(QUARANTINE_TABLE_NAME, ID_FIELD + " <= (SELECT " + ID_FIELD + " FROM "
+                        + QUARANTINE_TABLE_NAME + " ORDER BY " + ID_FIELD + " DESC LIMIT 1 OFFSET "
+                        + Constants.QUARANTINE_MAX_COUNT + ")", null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            onEventsRemoved(table, removed);
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("quarantineEvent from %s failed", table), e);
+            invalidateEventCounts();
+            closeAfterError();
+        } finally {
+            closeIfTransient();
         }
+        return removed > 0;
+    }
+
+    /**
+     * Returns the number of events in the quarantine table.
+     */
+    synchronized long getQuarantinedEventCount() {
+        return queryQuarantine("SELECT COUNT(*) FROM " + QUARANTINE_TABLE_NAME);
+    }
+
+    /**
+     * Returns the number of bytes the quarantined events take up.
+     */
+    synchronized long getQuarantinedEventBytes() {
+        return queryQuarantine(
+            "SELECT IFNULL(SUM(" + SIZE_FIELD + "), 0) FROM " + QUARANTINE_TABLE_NAME);
+    }
+
+    private synchronized long queryQuarantine(String query) {
+        long result = 0;
+        SQLiteStatement statement = null;
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            statement = db.compileStatement(query);
+            result = statement.simpleQueryForLong();
+        } catch (SQLiteException e) {
+            logger.e(TAG, "queryQuarantine failed", e);
+            closeAfterError();
+        } finally {
+            if (statement != null) {
+                statement.close();
+            }
+            closeIfTransient();
+        }
+        return result;
+    }
+
+    private long getCachedEventCount(String table) {
+        if (table.equals(PRIORITY_TABLE_NAME)) {
+            return priorityCount;
+        }
+        return table.equals(EVENT_TABLE_NAME) ? eventCount : identifyCount;
+    }
+
+    private void setCachedEventCount(String table, long count) {
+        if (table.equals(EVENT_TABLE_NAME)) {
+            eventCount = count;
+        } else if (table.equals(PRIORITY_TABLE_NAME)) {
+            priorityCount = count;
+        } else {
+            identifyCount = count;
+        }
+    }
+
+    private long getCachedEventBytes(String table) {
+        if (table.equals(PRIORITY_TABLE_NAME)) {
+            return priorityBytes;
+        }
+        return table.equals(EVENT_TABLE_NAME) ? eventBytes : identifyBytes;
+    }
+
+    private void setCachedEventBytes(String table, long bytes) {
+        if (table.equals(EVENT_TABLE_NAME)) {
+            eventBytes = bytes;
+        } else if (table.equals(PRIORITY_TABLE_NAME)) {
+            priorityBytes = bytes;
+        } else {
+            identifyBytes = bytes;
+        }
+    }
+
+    private void adjustEventCount(String table, long delta, long deltaBytes) {
+        long count = getCachedEventCount(table);
+        if (count >= 0) {
+            setCachedEventCount(table, Math.max(0, count + delta));
+        }
+        long bytes = getCachedEventBytes(table);
+        if (bytes >= 0) {
+            setCachedEventBytes(table, Math.max(0, bytes + deltaBytes));
+        }
+    }
+
+    // the size of deleted rows is not known, so the byte total is re-read when next needed
+    private void onEventsRemoved(String table, long removed) {
+        if (removed > 0) {
+            adjustEventCount(table, -removed, 0);
+            setCachedEventBytes(table, getCachedEventCount(table) == 0 ? 0 : -1);
+        }
+    }
+
+    // forget the cached counts so they are re-read from disk after a failure or schema change
+    private void invalidateEventCounts() {
+        eventCount = -1;
+        identifyCount = -1;
+        eventBytes = -1;
+        identifyBytes = -1;
+        priorityCount = -1;
+        priorityBytes = -1;
     }
 
     private void delete() {
+        invalidateEventCounts();
         try {
             close();
             file.delete();
@@ -399,6 +1662,10 @@ class DatabaseHelper extends SQLiteOpenHelper {
         return db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
     }
 
+    Cursor rawQueryDb(SQLiteDatabase db, String sql, String[] selectionArgs) {
+        return db.rawQuery(sql, selectionArgs);
+    }
+
     /*
         Checks if the RuntimeException is an android.database.CursorWindowAllocationException.
         If it is, then wrap the message in Amplitude's CursorWindowAllocationException so the
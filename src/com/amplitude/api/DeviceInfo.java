@@ -35,6 +35,7 @@ public class DeviceInfo {
     private Context context;
 
     private CachedInfo cachedInfo;
+    private int cachedInfoVersion = 0;
 
     /**
      * Internal class serves as a cache
@@ -260,10 +261,19 @@ public class DeviceInfo {
     private CachedInfo getCachedInfo() {
         if (cachedInfo == null) {
             cachedInfo = new CachedInfo();
+            cachedInfoVersion++;
         }
         return cachedInfo;
     }
 
+    /**
+     * Changes every time the cached device info is loaded again, so callers that keep values
+     * derived from it know when to rebuild them.
+     */
+    int getCachedInfoVersion() {
+        return cachedInfoVersion;
+    }
+
     public void prefetch() {
         getCachedInfo();
     }
@@ -0,0 +1,124 @@
+package com.amplitude.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+    Deflate codec for stored event payloads. Compressed payloads are plain zlib streams, so a
+    payload compressed with a preset dictionary carries the dictionary's Adler-32 checksum in
+    its header, which is used to find the dictionary again when reading it back.
+    Not thread safe, the DatabaseHelper only uses it while holding its lock.
+ */
+class EventCodec {
+
+    private static final String UTF8 = "UTF-8";
+    private static final int BUFFER_SIZE = 1024;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(BUFFER_SIZE);
+
+    private byte[] dictionary;
+    private Map<Long, byte[]> dictionaries = new HashMap<Long, byte[]>();
+
+    /**
+     * Sets the preset dictionary used to compress new payloads. It stays available for
+     * decompressing payloads that were compressed with it.
+     *
+     * @param dictionary the dictionary text, or null to compress without one
+     */
+    void setDictionary(String dictionary) {
+        this.dictionary = dictionary == null ? null : toUtf8(dictionary);
+        if (this.dictionary != null) {
+            addDictionary(this.dictionary);
+        }
+    }
+
+    void addDictionary(byte[] dictionary) {
+        dictionaries.put(getDictionaryId(dictionary), dictionary);
+    }
+
+    boolean hasDictionary(long dictionaryId) {
+        return dictionaries.containsKey(dictionaryId);
+    }
+
+    byte[] compress(String event) {
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(toUtf8(event));
+        deflater.finish();
+
+        output.reset();
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            output.write(buffer, 0, length);
+        }
+        return output.toByteArray();
+    }
+
+    String decompress(byte[] payload) throws DataFormatException {
+        inflater.reset();
+        inflater.setInput(payload);
+
+        output.reset();
+        while (!inflater.finished()) {
+            int length = inflater.inflate(buffer);
+            if (length == 0) {
+                if (inflater.needsDictionary()) {
+                    // getAdler is the unsigned checksum squeezed into an int
+                    long dictionaryId = inflater.getAdler() & 0xffffffffL;
+                    byte[] presetDictionary = dictionaries.get(dictionaryId);
+                    if (presetDictionary == null) {
+                        throw new DataFormatException("Missing dictionary " + dictionaryId);
+                    }
+                    inflater.setDictionary(presetDictionary);
+                } else if (inflater.needsInput()) {
+                    throw new DataFormatException("Truncated payload");
+                }
+            }
+            output.write(buffer, 0, length);
+        }
+
+        try {
+            return output.toString(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e); // UTF-8 is always supported
+        }
+    }
+
+    /**
+     * Returns the id of the dictionary a payload was compressed with, read from the zlib
+     * header, or 0 if it was compressed without a preset dictionary.
+     */
+    static long getPayloadDictionaryId(byte[] payload) {
+        // FDICT flag in the second header byte, followed by the big endian DICTID
+        if (payload == null || payload.length < 6 || (payload[1] & 0x20) == 0) {
+            return 0;
+        }
+        return ((payload[2] & 0xffL) << 24) | ((payload[3] & 0xffL) << 16)
+                | ((payload[4] & 0xffL) << 8) | (payload[5] & 0xffL);
+    }
+
+    static long getDictionaryId(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary, 0, dictionary.length);
+        return adler.getValue();
+    }
+
+    static byte[] toUtf8(String s) {
+        try {
+            return s.getBytes(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e); // UTF-8 is always supported
+        }
+    }
+}
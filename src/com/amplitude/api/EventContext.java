@@ -0,0 +1,91 @@
+package com.amplitude.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The fields that are the same in every event logged for a user on this device (the user and
+ * device ids, the device info, the platform and the library), serialized once. An event then
+ * only serializes its own fields and gets the context appended as text, instead of copying
+ * the same dozen values into every JSONObject.
+ */
+class EventContext {
+
+    private final String userId;
+    private final String deviceId;
+    private final DeviceInfo deviceInfo;
+    private final int cachedInfoVersion;
+    private final String fields;
+
+    private EventContext(String userId, String deviceId, DeviceInfo deviceInfo, String fields) {
+        this.userId = userId;
+        this.deviceId = deviceId;
+        this.deviceInfo = deviceInfo;
+        this.cachedInfoVersion = deviceInfo.getCachedInfoVersion();
+        this.fields = fields;
+    }
+
+    static EventContext build(String userId, String deviceId, DeviceInfo deviceInfo)
+            throws JSONException {
+        JSONObject context = new JSONObject();
+        context.put("user_id", orNull(userId));
+        context.put("device_id", orNull(deviceId));
+        context.put("version_name", orNull(deviceInfo.getVersionName()));
+        context.put("os_name", orNull(deviceInfo.getOsName()));
+        context.put("os_version", orNull(deviceInfo.getOsVersion()));
+        context.put("device_brand", orNull(deviceInfo.getBrand()));
+        context.put("device_manufacturer", orNull(deviceInfo.getManufacturer()));
+        context.put("device_model", orNull(deviceInfo.getModel()));
+        context.put("carrier", orNull(deviceInfo.getCarrier()));
+        context.put("country", orNull(deviceInfo.getCountry()));
+        context.put("language", orNull(deviceInfo.getLanguage()));
+        context.put("platform", Constants.PLATFORM);
+
+        JSONObject library = new JSONObject();
+        library.put("name", Constants.LIBRARY);
+        library.put("version", Constants.VERSION);
+        context.put("library", library);
+
+        // keep the members without the surrounding braces
+        String serialized = context.toString();
+        return new EventContext(userId, deviceId, deviceInfo,
+                serialized.substring(1, serialized.length() - 1));
+    }
+
+    private static Object orNull(Object value) {
+        return value == null ? JSONObject.NULL : value;
+    }
+
+    /**
+     * Whether this context still matches the given ids and device info. The ids are compared
+     * by reference, any new value assigned to them counts as a change.
+     */
+    boolean isCurrent(String userId, String deviceId, DeviceInfo deviceInfo) {
+        return this.userId == userId && this.deviceId == deviceId
+                && this.deviceInfo == deviceInfo
+                && cachedInfoVersion == deviceInfo.getCachedInfoVersion();
+    }
+
+    /**
+     * Returns the serialized context fields, without the surrounding braces.
+     */
+    String getFields() {
+        return fields;
+    }
+
+    /**
+     * Serializes the event with the context fields added after its own.
+     *
+     * @param event the per-event fields, which must not repeat any of the context fields
+     * @return the serialized event
+     */
+    String serialize(JSONObject event) {
+        String eventFields = event.toString();
+        StringBuilder builder = new StringBuilder(eventFields.length() + fields.length() + 1);
+        builder.append(eventFields, 0, eventFields.length() - 1);
+        if (event.length() > 0) {
+            builder.append(',');
+        }
+        return builder.append(fields).append('}').toString();
+    }
+}
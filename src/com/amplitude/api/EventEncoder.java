@@ -0,0 +1,251 @@
+package com.amplitude.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+/*
+    Streaming writer for events. Writes an event straight into a reusable buffer instead of
+    building a tree of JSONObjects and serializing it, and applies the truncation rules of
+    AmplitudeClient.truncate to the property objects while writing them. The output is the
+    same as JSONObject.toString on Android: the same escaping, number formatting and member
+    order.
+    Not thread safe, AmplitudeClient holds the encoder's lock while writing an event.
+ */
+class EventEncoder {
+
+    private static final String TAG = "com.amplitude.api.EventEncoder";
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    private static final int INITIAL_CAPACITY = 1024;
+    // a buffer grown by an unusually large event is dropped instead of kept around
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private StringBuilder out = new StringBuilder(INITIAL_CAPACITY);
+    // whether the next member is the first one of the current object
+    private boolean first;
+
+    /**
+     * Starts a new event, discarding whatever was left of an event that failed half way.
+     */
+    EventEncoder beginEvent() {
+        out.setLength(0);
+        return beginObject();
+    }
+
+    /**
+     * Closes the event and returns it.
+     */
+    String endEvent() {
+        endObject();
+        String event = out.toString();
+        if (out.capacity() > MAX_RETAINED_CAPACITY) {
+            out = new StringBuilder(INITIAL_CAPACITY);
+        } else {
+            out.setLength(0);
+        }
+        return event;
+    }
+
+    EventEncoder beginObject() {
+        out.append('{');
+        first = true;
+        return this;
+    }
+
+    EventEncoder endObject() {
+        out.append('}');
+        first = false;
+        return this;
+    }
+
+    EventEncoder name(String name) {
+        if (!first) {
+            out.append(',');
+        }
+        first = false;
+        string(name, Integer.MAX_VALUE);
+        out.append(':');
+        return this;
+    }
+
+    /**
+     * Appends members that are already serialized, without the surrounding braces.
+     */
+    EventEncoder members(String members) {
+        if (members.length() == 0) {
+            return this;
+        }
+        if (!first) {
+            out.append(',');
+        }
+        first = false;
+        out.append(members);
+        return this;
+    }
+
+    EventEncoder value(long value) {
+        out.append(value);
+        return this;
+    }
+
+    EventEncoder value(String value) {
+        if (value == null) {
+            out.append("null");
+        } else {
+            string(value, Integer.MAX_VALUE);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a property object with the truncation rules applied, an empty object for null.
+     */
+    EventEncoder truncatedValue(JSONObject object) throws JSONException {
+        if (object == null) {
+            out.append("{}");
+        } else {
+            truncatedObject(object);
+        }
+        return this;
+    }
+
+    /**
+     * Writes the object as it is, except for the given members: an existing member keeps its
+     * place with the new value, the others are added at the end. Members with a null value
+     * are left as they are.
+     */
+    EventEncoder valueWith(JSONObject object, String[] names, Object[] values)
+            throws JSONException {
+        out.append('{');
+        boolean firstMember = true;
+        boolean[] written = new boolean[names.length];
+        if (object != null) {
+            Iterator<?> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                Object value = object.opt(key);
+                for (int i = 0; i < names.length; i++) {
+                    if (values[i] != null && names[i].equals(key)) {
+                        value = values[i];
+                        written[i] = true;
+                        break;
+                    }
+                }
+                firstMember = member(firstMember, key, value, false);
+            }
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (values[i] != null && !written[i]) {
+                firstMember = member(firstMember, names[i], values[i], false);
+            }
+        }
+        out.append('}');
+        return this;
+    }
+
+    private boolean member(boolean firstMember, String key, Object value, boolean truncate)
+            throws JSONException {
+        if (!firstMember) {
+            out.append(',');
+        }
+        string(key, Integer.MAX_VALUE);
+        out.append(':');
+        write(value, truncate);
+        return false;
+    }
+
+    private void truncatedObject(JSONObject object) throws JSONException {
+        if (object.length() > Constants.MAX_PROPERTY_KEYS) {
+            logger.w(TAG, "Warning: too many properties (more than 1000), ignoring");
+            out.append("{}");
+            return;
+        }
+
+        out.append('{');
+        boolean firstMember = true;
+        Iterator<?> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            // do not truncate revenue receipt and receipt sig fields
+            boolean truncate = !key.equals(Constants.AMP_REVENUE_RECEIPT) &&
+                    !key.equals(Constants.AMP_REVENUE_RECEIPT_SIG);
+            firstMember = member(firstMember, key, object.opt(key), truncate);
+        }
+        out.append('}');
+    }
+
+    private void truncatedArray(JSONArray array, boolean truncate) throws JSONException {
+        out.append('[');
+        for (int i = 0; i < array.length(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            write(array.opt(i), truncate);
+        }
+        out.append(']');
+    }
+
+    // truncation only applies to the exact classes AmplitudeClient.truncate handles
+    private void write(Object value, boolean truncate) throws JSONException {
+        if (value == null || value == JSONObject.NULL || value instanceof Boolean) {
+            out.append(value);
+        } else if (value instanceof String) {
+            string((String) value, truncate ? Constants.MAX_STRING_LENGTH : Integer.MAX_VALUE);
+        } else if (value instanceof Integer || value instanceof Long) {
+            out.append(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            out.append(JSONObject.numberToString((Number) value));
+        } else if (value instanceof JSONObject) {
+            if (truncate && value.getClass() == JSONObject.class) {
+                truncatedObject((JSONObject) value);
+            } else {
+                out.append(value.toString());
+            }
+        } else if (value instanceof JSONArray) {
+            truncatedArray((JSONArray) value, truncate && value.getClass() == JSONArray.class);
+        } else {
+            string(value.toString(), Integer.MAX_VALUE);
+        }
+    }
+
+    // escapes the way org.json's JSONStringer does on Android
+    private void string(String value, int maxLength) {
+        out.append('"');
+        for (int i = 0, length = Math.min(value.length(), maxLength); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.append('\\').append(c);
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+}
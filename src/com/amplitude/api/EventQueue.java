@@ -0,0 +1,153 @@
+package com.amplitude.api;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/*
+    In-memory queue of event strings ordered by id, with the same id, count and byte accounting
+    as the SQLite tables. Backs MemoryEventStore and the replayed state of FileEventStore.
+    Not thread safe, the stores only use it while holding their lock.
+ */
+class EventQueue {
+
+    private final TreeMap<Long, String> events = new TreeMap<Long, String>();
+    private long nextId = 1;
+    private long bytes = 0;
+
+    long getNextId() {
+        return nextId;
+    }
+
+    /**
+     * Raises the next id, so ids that were handed out before a restart are never reused.
+     */
+    void reserveIds(long nextId) {
+        this.nextId = Math.max(this.nextId, nextId);
+    }
+
+    long add(String event) {
+        long id = nextId;
+        put(id, event);
+        return id;
+    }
+
+    void put(long id, String event) {
+        String previous = events.put(id, event);
+        bytes += Utils.getUtf8Length(event) - Utils.getUtf8Length(previous);
+        reserveIds(id + 1);
+    }
+
+    long getCount() {
+        return events.size();
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the id of the oldest event, or -1 if the queue is empty.
+     */
+    long getFirstId() {
+        return events.isEmpty() ? -1 : events.firstKey();
+    }
+
+    List<StoredEvent> get(long upToId, long limit) {
+        Map<Long, String> range = upToId >= 0 ? events.headMap(upToId, true) : events;
+        List<StoredEvent> result = new ArrayList<StoredEvent>();
+        for (Map.Entry<Long, String> entry : range.entrySet()) {
+            if (limit >= 0 && result.size() >= limit) {
+                break;
+            }
+            if (TextUtils.isEmpty(entry.getValue())) {
+                continue;
+            }
+
+            result.add(new StoredEvent(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the id up to which events have to be removed to trim the queue down to keepCount
+     * once it holds more than maxCount, or -1 if nothing needs to be removed.
+     */
+    long getTrimId(long maxCount, long keepCount) {
+        if (events.size() <= maxCount || events.size() <= keepCount) {
+            return -1;
+        }
+
+        Iterator<Long> ids = events.descendingKeySet().iterator();
+        for (long i = 0; i < keepCount; i++) {
+            ids.next();
+        }
+        return ids.next();
+    }
+
+    /**
+     * Byte counterpart of {@link #getTrimId(long, long)}.
+     */
+    long getTrimIdForBytes(long maxBytes, long keepBytes) {
+        if (bytes <= maxBytes) {
+            return -1;
+        }
+
+        // walk from the newest event back to find the oldest one that still fits
+        long keptBytes = 0;
+        for (Map.Entry<Long, String> entry : events.descendingMap().entrySet()) {
+            long size = Utils.getUtf8Length(entry.getValue());
+            if (keptBytes + size > keepBytes) {
+                return entry.getKey();
+            }
+            keptBytes += size;
+        }
+        return -1;
+    }
+
+    /**
+     * Removes every event with an id up to maxId.
+     *
+     * @return the number of events removed
+     */
+    long removeUpTo(long maxId) {
+        NavigableMap<Long, String> removed = events.headMap(maxId, true);
+        long count = removed.size();
+        for (String event : removed.values()) {
+            bytes -= Utils.getUtf8Length(event);
+        }
+        removed.clear();
+        return count;
+    }
+
+    /**
+     * Removes the events with an id greater than afterId and up to maxId.
+     *
+     * @return the number of events removed
+     */
+    long removeRange(long afterId, long maxId) {
+        if (afterId >= maxId) {
+            return 0;
+        }
+        NavigableMap<Long, String> removed = events.subMap(afterId, false, maxId, true);
+        long count = removed.size();
+        for (String event : removed.values()) {
+            bytes -= Utils.getUtf8Length(event);
+        }
+        removed.clear();
+        return count;
+    }
+
+    boolean remove(long id) {
+        if (!events.containsKey(id)) {
+            return false;
+        }
+        bytes -= Utils.getUtf8Length(events.remove(id));
+        return true;
+    }
+}
@@ -0,0 +1,203 @@
+package com.amplitude.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <h1>EventStore</h1>
+ * Storage for the SDK's unsent events and identifys, and the key-value metadata that goes
+ * with them (device id, user id, sequence numbers and so on). The SDK uses its own SQLite
+ * database by default; pass a different store to
+ * {@link AmplitudeClient#initialize(android.content.Context, String, String, EventStore)}
+ * to replace it.
+ * <br><br>
+ * Events and identifys are kept in two separate queues. Each stored event gets an id that is
+ * greater than the id of every event added to the same queue before it, and ids are never
+ * reused. Implementations must be thread safe; the SDK calls them from its background threads.
+ */
+public interface EventStore {
+
+    /**
+     * Adds an event to the end of the events queue.
+     *
+     * @param event the event JSON string
+     * @return the id of the stored event, or -1 if it could not be stored
+     */
+    long addEvent(String event);
+
+    /**
+     * Adds an identify event to the end of the identifys queue.
+     *
+     * @param identifyEvent the identify JSON string
+     * @return the id of the stored identify, or -1 if it could not be stored
+     */
+    long addIdentify(String identifyEvent);
+
+    /**
+     * Adds several events to the end of the events queue, in order.
+     *
+     * @param events the event JSON strings
+     * @return the id of the last stored event, or -1 if nothing was stored
+     */
+    long addEvents(List<String> events);
+
+    /**
+     * Adds several identify events to the end of the identifys queue, in order.
+     *
+     * @param identifyEvents the identify JSON strings
+     * @return the id of the last stored identify, or -1 if nothing was stored
+     */
+    long addIdentifys(List<String> identifyEvents);
+
+    /**
+     * Adds an event together with the long values that describe it. The values must be
+     * stored no later than the event, so that they never fall behind the stored events.
+     *
+     * @param event the event JSON string
+     * @param eventIdKey the key set to the new event's id, may be null
+     * @param metadata other long values to store with the event, may be null
+     * @return the id of the stored event, or -1 if it could not be stored
+     */
+    long addEventWithMetadata(String event, String eventIdKey, Map<String, Long> metadata);
+
+    /**
+     * Identify counterpart of {@link #addEventWithMetadata(String, String, Map)}.
+     */
+    long addIdentifyWithMetadata(
+            String identifyEvent, String eventIdKey, Map<String, Long> metadata);
+
+    /**
+     * Batch counterpart of {@link #addEventWithMetadata(String, String, Map)}, eventIdKey is
+     * set to the id of the last stored event.
+     */
+    long addEventsWithMetadata(List<String> events, String eventIdKey, Map<String, Long> metadata);
+
+    /**
+     * Batch counterpart of {@link #addIdentifyWithMetadata(String, String, Map)}.
+     */
+    long addIdentifysWithMetadata(
+            List<String> identifyEvents, String eventIdKey, Map<String, Long> metadata);
+
+    /**
+     * Reads the oldest events, each with its id added as {@code event_id}.
+     *
+     * @param upToId only read events with an id up to this one, or -1 for no bound
+     * @param limit the max number of events to read, or -1 for no limit
+     * @return the events in id order
+     * @throws JSONException if a stored event is not valid JSON
+     */
+    List<JSONObject> getEvents(long upToId, long limit) throws JSONException;
+
+    /**
+     * Identify counterpart of {@link #getEvents(long, long)}.
+     */
+    List<JSONObject> getIdentifys(long upToId, long limit) throws JSONException;
+
+    /**
+     * Reads the oldest events as they are stored, without parsing them.
+     *
+     * @param upToId only read events with an id up to this one, or -1 for no bound
+     * @param limit the max number of events to read, or -1 for no limit
+     * @return the events in id order
+     */
+    List<StoredEvent> getStoredEvents(long upToId, long limit);
+
+    /**
+     * Identify counterpart of {@link #getStoredEvents(long, long)}.
+     */
+    List<StoredEvent> getStoredIdentifys(long upToId, long limit);
+
+    long getEventCount();
+
+    long getIdentifyCount();
+
+    long getTotalEventCount();
+
+    /**
+     * Returns the number of bytes the stored events take up.
+     */
+    long getEventBytes();
+
+    long getIdentifyBytes();
+
+    long getTotalEventBytes();
+
+    /**
+     * Drops the oldest events once there are more than maxCount of them, keeping only the
+     * newest keepCount.
+     *
+     * @param maxCount the high-water mark that triggers the trim
+     * @param keepCount the low-water mark the queue is trimmed down to
+     * @return the number of events dropped
+     */
+    long trimEvents(long maxCount, long keepCount);
+
+    long trimIdentifys(long maxCount, long keepCount);
+
+    /**
+     * Drops the oldest events once they take up more than maxBytes, keeping the newest events
+     * that fit in keepBytes.
+     *
+     * @param maxBytes the high-water mark that triggers the trim
+     * @param keepBytes the low-water mark the queue is trimmed down to
+     * @return the number of events dropped
+     */
+    long trimEventsToBytes(long maxBytes, long keepBytes);
+
+    long trimIdentifysToBytes(long maxBytes, long keepBytes);
+
+    /**
+     * Removes every event with an id up to maxId, typically after they were uploaded.
+     */
+    void removeEvents(long maxId);
+
+    void removeIdentifys(long maxId);
+
+    /**
+     * Removes the events with an id greater than afterId and up to maxId, the rows of an
+     * upload batch that was acknowledged while batches read before it are still in flight.
+     *
+     * @param afterId only remove events with an id greater than this one, or -1 for no bound
+     * @param maxId remove events with an id up to this one
+     */
+    void removeEvents(long afterId, long maxId);
+
+    void removeIdentifys(long afterId, long maxId);
+
+    void removeEvent(long id);
+
+    void removeIdentify(long id);
+
+    String getValue(String key);
+
+    Long getLongValue(String key);
+
+    /**
+     * Stores a string value, or removes the key if the value is null.
+     *
+     * @return a non-negative number on success, or -1 on failure
+     */
+    long insertOrReplaceKeyValue(String key, String value);
+
+    /**
+     * Stores a long value, or removes the key if the value is null. Long values and string
+     * values live in separate namespaces.
+     *
+     * @return a non-negative number on success, or -1 on failure
+     */
+    long insertOrReplaceKeyLongValue(String key, Long value);
+
+    /**
+     * Makes any buffered writes durable. Called when the app goes to the background.
+     */
+    void flush();
+
+    /**
+     * Releases the store's open resources. The store must reopen them transparently on the
+     * next call.
+     */
+    void close();
+}
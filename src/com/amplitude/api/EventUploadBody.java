@@ -0,0 +1,199 @@
+package com.amplitude.api;
+
+import com.amplitude.security.MD5;
+
+import java.io.IOException;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/*
+    Form body of an event upload, with the same fields as the FormBody it replaces:
+    v, client, e, upload_time and checksum. The events array is written into the sink one
+    stored event at a time, URL-encoding it on the fly, and the checksum is updated with each
+    event's characters as it goes out, without encoding them into a byte array first. The
+    batch never exists as a single string, neither as the events array, nor as the checksum
+    preimage, nor URL-encoded.
+    The body can be written more than once, OkHttp does so when it retries a request. Its
+    length is counted up front, so the request is sent with a Content-Length like the
+    FormBody, not chunked.
+ */
+class EventUploadBody extends RequestBody {
+
+    private static final String TAG = "com.amplitude.api.EventUploadBody";
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    private static final MediaType CONTENT_TYPE =
+            MediaType.parse("application/x-www-form-urlencoded");
+    private static final byte[] HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+    private static final char[] LOWER_HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    private final String apiVersion;
+    private final String apiKey;
+    private final List<StoredEvent> events;
+    private final String uploadTime;
+    // counted on first use, see contentLength
+    private long contentLength = -1;
+
+    EventUploadBody(String apiVersion, String apiKey, List<StoredEvent> events,
+                    String uploadTime) {
+        this.apiVersion = apiVersion;
+        this.apiKey = apiKey;
+        this.events = events;
+        this.uploadTime = uploadTime;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public long contentLength() {
+        if (contentLength < 0) {
+            long length = "v=".length() + getEncodedLength(apiVersion)
+                + "&client=".length() + getEncodedLength(apiKey)
+                + "&e=".length() + getEncodedLength("[");
+            StringBuilder row = new StringBuilder();
+            boolean first = true;
+            for (StoredEvent event : events) {
+                row.setLength(0);
+                if (!first) {
+                    row.append(',');
+                }
+                if (!event.appendTo(row)) {
+                    continue;
+                }
+                length += getEncodedLength(row);
+                first = false;
+            }
+            length += getEncodedLength("]")
+                + "&upload_time=".length() + getEncodedLength(uploadTime)
+                + "&checksum=".length() + 2 * 16;  // hex of the MD5 digest
+            contentLength = length;
+        }
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        // MessageDigest.getInstance(String) is not threadsafe on Android.
+        // See https://code.google.com/p/android/issues/detail?id=37937
+        MD5 digest = MD5.getThreadInstance();
+
+        writeField(sink, "v", apiVersion, digest, false);
+        writeField(sink, "client", apiKey, digest, true);
+
+        sink.writeUtf8("&e=");
+        writeEncoded(sink, "[", digest);
+        StringBuilder row = new StringBuilder();
+        boolean first = true;
+        for (StoredEvent event : events) {
+            row.setLength(0);
+            if (!first) {
+                row.append(',');
+            }
+            if (!event.appendTo(row)) {
+                logger.e(TAG, String.format(
+                    "Stored event %d is not a JSON object, skipping", event.getId()));
+                continue;
+            }
+            writeEncoded(sink, row, digest);
+            first = false;
+        }
+        writeEncoded(sink, "]", digest);
+
+        writeField(sink, "upload_time", uploadTime, digest, true);
+        sink.writeUtf8("&checksum=").writeUtf8(toHexString(digest.digest()));
+    }
+
+    private static void writeField(BufferedSink sink, String name, String value,
+                                   MD5 digest, boolean separator) throws IOException {
+        if (separator) {
+            sink.writeByte('&');
+        }
+        sink.writeUtf8(name).writeByte('=');
+        writeEncoded(sink, value, digest);
+    }
+
+    // adds the value to the checksum and writes it application/x-www-form-urlencoded
+    private static void writeEncoded(BufferedSink sink, CharSequence value, MD5 digest)
+            throws IOException {
+        digest.updateUTF8(value);
+        for (int i = 0, length = value.length(); i < length; i++) {
+            int c = value.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_' || c == '*') {
+                sink.writeByte(c);
+            } else if (c == ' ') {
+                sink.writeByte('+');
+            } else if (c < 0x80) {
+                writePercentEncoded(sink, c);
+            } else if (c < 0x800) {
+                writePercentEncoded(sink, 0xC0 | (c >>> 6));
+                writePercentEncoded(sink, 0x80 | (c & 0x3F));
+            } else if (c < 0xD800 || c > 0xDFFF) {
+                writePercentEncoded(sink, 0xE0 | (c >>> 12));
+                writePercentEncoded(sink, 0x80 | ((c >>> 6) & 0x3F));
+                writePercentEncoded(sink, 0x80 | (c & 0x3F));
+            } else if (c <= 0xDBFF && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, value.charAt(++i));
+                writePercentEncoded(sink, 0xF0 | (c >>> 18));
+                writePercentEncoded(sink, 0x80 | ((c >>> 12) & 0x3F));
+                writePercentEncoded(sink, 0x80 | ((c >>> 6) & 0x3F));
+                writePercentEncoded(sink, 0x80 | (c & 0x3F));
+            } else {
+                // unpaired surrogate, encoded as '?' the same way the checksum does
+                writePercentEncoded(sink, '?');
+            }
+        }
+    }
+
+    // the number of bytes writeEncoded writes for the value
+    private static long getEncodedLength(CharSequence value) {
+        long length = 0;
+        for (int i = 0, count = value.length(); i < count; i++) {
+            char c = value.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_' || c == '*' || c == ' ') {
+                length += 1;
+            } else if (c < 0x80) {
+                length += 3;
+            } else if (c < 0x800) {
+                length += 6;
+            } else if (c < 0xD800 || c > 0xDFFF) {
+                length += 9;
+            } else if (c <= 0xDBFF && i + 1 < count
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                i++;
+                length += 12;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void writePercentEncoded(BufferedSink sink, int b) throws IOException {
+        sink.writeByte('%');
+        sink.writeByte(HEX_DIGITS[(b >> 4) & 0xF]);
+        sink.writeByte(HEX_DIGITS[b & 0xF]);
+    }
+
+    private static String toHexString(byte[] bytes) {
+        char[] hexChars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int v = bytes[i] & 0xFF;
+            hexChars[i * 2] = LOWER_HEX_DIGITS[v >>> 4];
+            hexChars[i * 2 + 1] = LOWER_HEX_DIGITS[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+}
@@ -0,0 +1,571 @@
+package com.amplitude.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <h1>FileEventStore</h1>
+ * An {@link EventStore} backed by append-only journal files instead of SQLite. Every change is
+ * a single append to a file, and the stored events and values are kept in memory, rebuilt from
+ * the journals the first time the store is used.
+ * <br><br>
+ * Events and identifys each go into a series of segment files in the store's directory. Once
+ * every event in the oldest segment has been uploaded or dropped, the segment is deleted. The
+ * key-value metadata goes into its own log, which is rewritten when it holds mostly stale
+ * values. Appends reach the OS immediately, so they survive the app being killed, and are
+ * synced to the disk when the app goes to the background.
+ */
+public class FileEventStore implements EventStore {
+
+    private static final String TAG = "com.amplitude.api.FileEventStore";
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    static final long DEFAULT_SEGMENT_BYTES = 256 * 1024;
+    static final String EVENTS_DIRECTORY = "events";
+    static final String IDENTIFYS_DIRECTORY = "identifys";
+    static final String STORE_FILE = "store.log";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final byte RECORD_ADD = 'A';
+    private static final byte RECORD_REMOVE = 'D';
+    private static final byte RECORD_REMOVE_UP_TO = 'R';
+    private static final byte RECORD_REMOVE_RANGE = 'G';
+
+    private final File directory;
+    private final long segmentBytes;
+    private final Journal events;
+    private final Journal identifys;
+    private final KeyValueLog store;
+    private boolean loaded = false;
+
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBuffer);
+
+    /**
+     * Creates a store in the given directory, which is created if needed. Use a separate
+     * directory for every API key.
+     *
+     * @param directory the directory holding the journal files
+     */
+    public FileEventStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    FileEventStore(File directory, long segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.events = new Journal(new File(directory, EVENTS_DIRECTORY));
+        this.identifys = new Journal(new File(directory, IDENTIFYS_DIRECTORY));
+        this.store = new KeyValueLog(new File(directory, STORE_FILE));
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        // each part on its own, so the metadata survives a queue that cannot be read
+        try {
+            events.load();
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to load events, starting with whatever was read", e);
+        }
+        try {
+            identifys.load();
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to load identifys, starting with whatever was read", e);
+        }
+        try {
+            store.load();
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to load values, starting with whatever was read", e);
+        }
+    }
+
+    @Override
+    public synchronized long addEvent(String event) {
+        return addEventsWithMetadata(Collections.singletonList(event), null, null);
+    }
+
+    @Override
+    public synchronized long addIdentify(String identifyEvent) {
+        return addIdentifysWithMetadata(Collections.singletonList(identifyEvent), null, null);
+    }
+
+    @Override
+    public synchronized long addEvents(List<String> events) {
+        return addEventsWithMetadata(events, null, null);
+    }
+
+    @Override
+    public synchronized long addIdentifys(List<String> identifyEvents) {
+        return addIdentifysWithMetadata(identifyEvents, null, null);
+    }
+
+    @Override
+    public synchronized long addEventWithMetadata(
+            String event, String eventIdKey, Map<String, Long> metadata) {
+        return addEventsWithMetadata(Collections.singletonList(event), eventIdKey, metadata);
+    }
+
+    @Override
+    public synchronized long addIdentifyWithMetadata(
+            String identifyEvent, String eventIdKey, Map<String, Long> metadata) {
+        return addIdentifysWithMetadata(
+                Collections.singletonList(identifyEvent), eventIdKey, metadata);
+    }
+
+    @Override
+    public synchronized long addEventsWithMetadata(
+            List<String> events, String eventIdKey, Map<String, Long> metadata) {
+        return addToJournal(this.events, events, eventIdKey, metadata);
+    }
+
+    @Override
+    public synchronized long addIdentifysWithMetadata(
+            List<String> identifyEvents, String eventIdKey, Map<String, Long> metadata) {
+        return addToJournal(identifys, identifyEvents, eventIdKey, metadata);
+    }
+
+    private long addToJournal(
+            Journal journal, List<String> events, String eventIdKey, Map<String, Long> metadata) {
+        if (events == null || events.isEmpty()) {
+            return -1;
+        }
+        load();
+
+        long lastId = journal.queue.getNextId() + events.size() - 1;
+        Map<String, Long> values = new HashMap<String, Long>();
+        if (metadata != null) {
+            values.putAll(metadata);
+        }
+        if (eventIdKey != null) {
+            values.put(eventIdKey, lastId);
+        }
+        // the metadata goes first, a crash in between can skip ahead but never go back
+        if (!store.putLongValues(values)) {
+            return -1;
+        }
+
+        try {
+            recordBuffer.reset();
+            long id = journal.queue.getNextId();
+            for (String event : events) {
+                writeAddRecord(id++, event);
+            }
+            journal.append(recordBuffer.toByteArray(), events.size());
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to append events", e);
+            journal.closeQuietly();
+            return -1;
+        }
+
+        for (String event : events) {
+            journal.current().lastAddId = journal.queue.add(event);
+        }
+        return lastId;
+    }
+
+    private void writeAddRecord(long id, String event) throws IOException {
+        byte[] bytes = event == null ? null : EventCodec.toUtf8(event);
+        record.writeInt(1 + 8 + 4 + (bytes == null ? 0 : bytes.length));
+        record.writeByte(RECORD_ADD);
+        record.writeLong(id);
+        record.writeInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) {
+            record.write(bytes);
+        }
+    }
+
+    @Override
+    public synchronized List<JSONObject> getEvents(long upToId, long limit) throws JSONException {
+        return StoredEvent.toJSONObjects(getStoredEvents(upToId, limit));
+    }
+
+    @Override
+    public synchronized List<JSONObject> getIdentifys(long upToId, long limit)
+            throws JSONException {
+        return StoredEvent.toJSONObjects(getStoredIdentifys(upToId, limit));
+    }
+
+    @Override
+    public synchronized List<StoredEvent> getStoredEvents(long upToId, long limit) {
+        load();
+        return events.queue.get(upToId, limit);
+    }
+
+    @Override
+    public synchronized List<StoredEvent> getStoredIdentifys(long upToId, long limit) {
+        load();
+        return identifys.queue.get(upToId, limit);
+    }
+
+    @Override
+    public synchronized long getEventCount() {
+        load();
+        return events.queue.getCount();
+    }
+
+    @Override
+    public synchronized long getIdentifyCount() {
+        load();
+        return identifys.queue.getCount();
+    }
+
+    @Override
+    public synchronized long getTotalEventCount() {
+        return getEventCount() + getIdentifyCount();
+    }
+
+    @Override
+    public synchronized long getEventBytes() {
+        load();
+        return events.queue.getBytes();
+    }
+
+    @Override
+    public synchronized long getIdentifyBytes() {
+        load();
+        return identifys.queue.getBytes();
+    }
+
+    @Override
+    public synchronized long getTotalEventBytes() {
+        return getEventBytes() + getIdentifyBytes();
+    }
+
+    @Override
+    public synchronized long trimEvents(long maxCount, long keepCount) {
+        load();
+        return removeUpTo(events, events.queue.getTrimId(maxCount, keepCount));
+    }
+
+    @Override
+    public synchronized long trimIdentifys(long maxCount, long keepCount) {
+        load();
+        return removeUpTo(identifys, identifys.queue.getTrimId(maxCount, keepCount));
+    }
+
+    @Override
+    public synchronized long trimEventsToBytes(long maxBytes, long keepBytes) {
+        load();
+        return removeUpTo(events, events.queue.getTrimIdForBytes(maxBytes, keepBytes));
+    }
+
+    @Override
+    public synchronized long trimIdentifysToBytes(long maxBytes, long keepBytes) {
+        load();
+        return removeUpTo(identifys, identifys.queue.getTrimIdForBytes(maxBytes, keepBytes));
+    }
+
+    @Override
+    public synchronized void removeEvents(long maxId) {
+        load();
+        removeUpTo(events, maxId);
+    }
+
+    @Override
+    public synchronized void removeIdentifys(long maxId) {
+        load();
+        removeUpTo(identifys, maxId);
+    }
+
+    @Override
+    public synchronized void removeEvents(long afterId, long maxId) {
+        load();
+        removeRange(events, afterId, maxId);
+    }
+
+    @Override
+    public synchronized void removeIdentifys(long afterId, long maxId) {
+        load();
+        removeRange(identifys, afterId, maxId);
+    }
+
+    @Override
+    public synchronized void removeEvent(long id) {
+        load();
+        remove(events, RECORD_REMOVE, id);
+    }
+
+    @Override
+    public synchronized void removeIdentify(long id) {
+        load();
+        remove(identifys, RECORD_REMOVE, id);
+    }
+
+    private long removeUpTo(Journal journal, long maxId) {
+        long firstId = journal.queue.getFirstId();
+        if (maxId < 0 || firstId < 0 || firstId > maxId) {
+            return 0;
+        }
+        return remove(journal, RECORD_REMOVE_UP_TO, maxId);
+    }
+
+    // a single record for the whole range, however many events it holds
+    private long removeRange(Journal journal, long afterId, long maxId) {
+        if (afterId < 0) {
+            return removeUpTo(journal, maxId);
+        }
+        if (afterId >= maxId || journal.queue.getCount() == 0) {
+            return 0;
+        }
+
+        try {
+            recordBuffer.reset();
+            record.writeInt(1 + 8 + 8);
+            record.writeByte(RECORD_REMOVE_RANGE);
+            record.writeLong(afterId);
+            record.writeLong(maxId);
+            journal.append(recordBuffer.toByteArray(), 0);
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to append removal", e);
+            journal.closeQuietly();
+            return 0;
+        }
+
+        long removed = journal.queue.removeRange(afterId, maxId);
+        journal.deleteDeadSegments();
+        return removed;
+    }
+
+    private long remove(Journal journal, byte type, long id) {
+        try {
+            recordBuffer.reset();
+            record.writeInt(1 + 8);
+            record.writeByte(type);
+            record.writeLong(id);
+            journal.append(recordBuffer.toByteArray(), 0);
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to append removal", e);
+            journal.closeQuietly();
+            return 0;
+        }
+
+        long removed = type == RECORD_REMOVE ?
+                (journal.queue.remove(id) ? 1 : 0) : journal.queue.removeUpTo(id);
+        journal.deleteDeadSegments();
+        return removed;
+    }
+
+    @Override
+    public synchronized String getValue(String key) {
+        load();
+        return store.getValue(key);
+    }
+
+    @Override
+    public synchronized Long getLongValue(String key) {
+        load();
+        return store.getLongValue(key);
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
+        load();
+        return store.putValue(key, value) ? 1 : -1;
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+        load();
+        return store.putLongValue(key, value) ? 1 : -1;
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (!loaded) {
+            return;
+        }
+
+        try {
+            events.sync();
+            identifys.sync();
+            store.sync();
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to sync event store", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!loaded) {
+            return;
+        }
+
+        events.closeQuietly();
+        identifys.closeQuietly();
+        store.closeQuietly();
+    }
+
+    /**
+     * Returns the ids in the names of the segment files in a directory, in ascending order.
+     */
+    static List<Long> getSegmentIds(File directory, String suffix) {
+        List<Long> ids = new ArrayList<Long>();
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (!name.endsWith(suffix)) {
+                continue;
+            }
+            try {
+                ids.add(Long.parseLong(name.substring(0, name.length() - suffix.length())));
+            } catch (NumberFormatException e) {
+                logger.w(TAG, String.format("Ignoring unknown file %s", file));
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static class Segment extends RecordFile {
+
+        final long firstId;
+        long lastAddId = -1;
+
+        Segment(File directory, long firstId) {
+            super(new File(directory, firstId + SEGMENT_SUFFIX));
+            this.firstId = firstId;
+        }
+    }
+
+    /*
+        The segments of one event queue, oldest first. A removal record only ever refers to
+        events added before it, so replaying the segments in order rebuilds the queue, and a
+        segment can be deleted once all the events it added are gone.
+     */
+    private class Journal {
+
+        final File directory;
+        final EventQueue queue = new EventQueue();
+        final List<Segment> segments = new ArrayList<Segment>();
+
+        Journal(File directory) {
+            this.directory = directory;
+        }
+
+        void load() throws IOException {
+            try {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Failed to create " + directory);
+                }
+
+                for (long firstId : getSegmentIds(directory, SEGMENT_SUFFIX)) {
+                    Segment segment = new Segment(directory, firstId);
+                    queue.reserveIds(segment.firstId);
+                    List<byte[]> records = segment.readRecords();
+                    segments.add(segment);
+                    for (byte[] payload : records) {
+                        try {
+                            applyRecord(segment,
+                                    new DataInputStream(new ByteArrayInputStream(payload)));
+                        } catch (IOException e) {
+                            logger.w(TAG, String.format(
+                                    "Skipping unreadable record in %s", segment.file), e);
+                        }
+                    }
+                }
+            } finally {
+                startSegment();
+            }
+        }
+
+        /*
+            Appends go to the newest segment on disk if it was read. Otherwise they go to a new
+            segment after every segment on disk, with ids past any the unread ones can hold
+            (every record takes more than one byte), so ids are never handed out twice.
+         */
+        private void startSegment() {
+            List<Long> ids = getSegmentIds(directory, SEGMENT_SUFFIX);
+            long newestId = ids.isEmpty() ? -1 : ids.get(ids.size() - 1);
+            if (!segments.isEmpty() && current().firstId == newestId) {
+                return;
+            }
+
+            for (long firstId : ids) {
+                if (segments.isEmpty() || firstId > current().firstId) {
+                    File file = new File(directory, firstId + SEGMENT_SUFFIX);
+                    queue.reserveIds(firstId + file.length() + 1);
+                }
+            }
+            if (!segments.isEmpty()) {
+                queue.reserveIds(current().firstId + current().length() + 1);
+            }
+            segments.add(new Segment(directory, queue.getNextId()));
+        }
+
+        private void applyRecord(Segment segment, DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            long id = in.readLong();
+            if (type == RECORD_ADD) {
+                int length = in.readInt();
+                String event = null;
+                if (length >= 0) {
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    event = new String(bytes, "UTF-8");
+                }
+                queue.put(id, event);
+                segment.lastAddId = id;
+            } else if (type == RECORD_REMOVE) {
+                queue.remove(id);
+            } else if (type == RECORD_REMOVE_UP_TO) {
+                queue.removeUpTo(id);
+            } else if (type == RECORD_REMOVE_RANGE) {
+                queue.removeRange(id, in.readLong());
+            }
+        }
+
+        Segment current() {
+            return segments.get(segments.size() - 1);
+        }
+
+        void append(byte[] records, int adds) throws IOException {
+            // only roll over before adding, so the newest segment's name never falls behind
+            if (adds > 0 && current().length() >= segmentBytes) {
+                current().close();
+                segments.add(new Segment(directory, queue.getNextId()));
+            }
+            current().append(records);
+        }
+
+        void deleteDeadSegments() {
+            long firstLiveId = queue.getFirstId();
+            while (segments.size() > 1) {
+                Segment oldest = segments.get(0);
+                if (firstLiveId >= 0 && firstLiveId <= oldest.lastAddId) {
+                    break;
+                }
+                if (oldest.file.exists() && !oldest.file.delete()) {
+                    logger.w(TAG, String.format("Failed to delete %s", oldest.file));
+                    break;
+                }
+                segments.remove(0);
+            }
+        }
+
+        void sync() throws IOException {
+            current().sync();
+        }
+
+        void closeQuietly() {
+            for (Segment segment : segments) {
+                segment.closeQuietly();
+            }
+        }
+    }
+}
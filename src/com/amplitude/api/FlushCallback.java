@@ -0,0 +1,22 @@
+package com.amplitude.api;
+
+/**
+ * <h1>FlushCallback</h1>
+ * Receives the outcome of {@link AmplitudeClient#flush(long, FlushCallback)}, for example to
+ * wait for unsent events to leave the device before the user logs out.
+ */
+public interface FlushCallback {
+
+    /**
+     * Called once the flush is over, on one of the SDK's background threads. The flush is
+     * over when no unsent events are left, when the timeout passes, or when uploads stop
+     * before then, for example because the device is offline or a retry after a failed
+     * upload is not due until after the timeout.
+     *
+     * @param sentCount      the number of events the server accepted during the flush
+     * @param failedCount    the number of events the server rejected for good during the
+     *                       flush, which are not uploaded again
+     * @param remainingCount the number of events still waiting to be uploaded
+     */
+    void onFlushComplete(long sentCount, long failedCount, long remainingCount);
+}
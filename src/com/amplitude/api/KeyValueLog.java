@@ -0,0 +1,212 @@
+package com.amplitude.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+    The key-value metadata of the file based event stores: an append-only log of value
+    changes, replayed into memory on load and rewritten once it holds mostly stale values.
+    Not thread safe, the event stores only use it while holding their lock.
+ */
+class KeyValueLog {
+
+    private static final String TAG = "com.amplitude.api.KeyValueLog";
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    // the log is compacted once it holds this many more records than live values
+    private static final int COMPACT_SLACK = 256;
+
+    private static final byte RECORD_VALUE = 'S';
+    private static final byte RECORD_LONG_VALUE = 'L';
+    private static final byte RECORD_DELETE_VALUE = 's';
+    private static final byte RECORD_DELETE_LONG_VALUE = 'l';
+
+    private final RecordFile log;
+    private final Map<String, String> values = new HashMap<String, String>();
+    private final Map<String, Long> longValues = new HashMap<String, Long>();
+    private int records = 0;
+
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBuffer);
+
+    KeyValueLog(File file) {
+        this.log = new RecordFile(file);
+    }
+
+    void load() throws IOException {
+        for (byte[] payload : log.readRecords()) {
+            try {
+                applyRecord(new DataInputStream(new ByteArrayInputStream(payload)));
+            } catch (IOException e) {
+                logger.w(TAG, String.format("Skipping unreadable record in %s", log.file), e);
+            }
+            records++;
+        }
+    }
+
+    String getValue(String key) {
+        return values.get(key);
+    }
+
+    Long getLongValue(String key) {
+        return longValues.get(key);
+    }
+
+    /**
+     * Stores a string value, or removes it if the value is null.
+     *
+     * @return whether the change was written
+     */
+    boolean putValue(String key, String value) {
+        try {
+            recordBuffer.reset();
+            writeRecord(key, value, value == null ? RECORD_DELETE_VALUE : RECORD_VALUE);
+            log.append(recordBuffer.toByteArray());
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to append value", e);
+            log.closeQuietly();
+            return false;
+        }
+
+        if (value == null) {
+            values.remove(key);
+        } else {
+            values.put(key, value);
+        }
+        onRecordsAppended(1);
+        return true;
+    }
+
+    boolean putLongValue(String key, Long value) {
+        try {
+            recordBuffer.reset();
+            writeRecord(key, value, value == null ? RECORD_DELETE_LONG_VALUE : RECORD_LONG_VALUE);
+            log.append(recordBuffer.toByteArray());
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to append value", e);
+            log.closeQuietly();
+            return false;
+        }
+
+        if (value == null) {
+            longValues.remove(key);
+        } else {
+            longValues.put(key, value);
+        }
+        onRecordsAppended(1);
+        return true;
+    }
+
+    /**
+     * Stores several long values with a single append.
+     *
+     * @return whether the changes were written
+     */
+    boolean putLongValues(Map<String, Long> values) {
+        if (values.isEmpty()) {
+            return true;
+        }
+
+        try {
+            recordBuffer.reset();
+            for (Map.Entry<String, Long> entry : values.entrySet()) {
+                writeRecord(entry.getKey(), entry.getValue(), RECORD_LONG_VALUE);
+            }
+            log.append(recordBuffer.toByteArray());
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to append values", e);
+            log.closeQuietly();
+            return false;
+        }
+
+        longValues.putAll(values);
+        onRecordsAppended(values.size());
+        return true;
+    }
+
+    private void writeRecord(String key, Object value, byte type) throws IOException {
+        ByteArrayOutputStream payloadBuffer = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payloadBuffer);
+        payload.writeByte(type);
+        payload.writeUTF(key);
+        if (type == RECORD_VALUE) {
+            byte[] bytes = EventCodec.toUtf8((String) value);
+            payload.writeInt(bytes.length);
+            payload.write(bytes);
+        } else if (type == RECORD_LONG_VALUE) {
+            payload.writeLong((Long) value);
+        }
+        record.writeInt(payloadBuffer.size());
+        payloadBuffer.writeTo(record);
+    }
+
+    private void applyRecord(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String key = in.readUTF();
+        if (type == RECORD_VALUE) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            values.put(key, new String(bytes, "UTF-8"));
+        } else if (type == RECORD_LONG_VALUE) {
+            longValues.put(key, in.readLong());
+        } else if (type == RECORD_DELETE_VALUE) {
+            values.remove(key);
+        } else if (type == RECORD_DELETE_LONG_VALUE) {
+            longValues.remove(key);
+        }
+    }
+
+    private void onRecordsAppended(int count) {
+        records += count;
+        if (records > 2 * (values.size() + longValues.size()) + COMPACT_SLACK) {
+            compact();
+        }
+    }
+
+    // rewrites the log with one record per live value, replacing it atomically
+    private void compact() {
+        File compacted = new File(log.file.getPath() + ".tmp");
+        try {
+            recordBuffer.reset();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                writeRecord(entry.getKey(), entry.getValue(), RECORD_VALUE);
+            }
+            for (Map.Entry<String, Long> entry : longValues.entrySet()) {
+                writeRecord(entry.getKey(), entry.getValue(), RECORD_LONG_VALUE);
+            }
+
+            FileOutputStream output = new FileOutputStream(compacted);
+            try {
+                recordBuffer.writeTo(output);
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+
+            log.close();
+            if (!compacted.renameTo(log.file)) {
+                throw new IOException("Failed to replace " + log.file);
+            }
+            records = values.size() + longValues.size();
+        } catch (IOException e) {
+            // the old log is still complete, try again after the next write
+            logger.e(TAG, "Failed to compact key-value log", e);
+            compacted.delete();
+        }
+    }
+
+    void sync() throws IOException {
+        log.sync();
+    }
+
+    void closeQuietly() {
+        log.closeQuietly();
+    }
+}
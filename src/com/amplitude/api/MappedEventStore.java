@@ -0,0 +1,361 @@
+package com.amplitude.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <h1>MappedEventStore</h1>
+ * An {@link EventStore} for apps that log a lot of events, which appends them to
+ * memory-mapped segment files instead of going through SQLite. Logging an event copies it
+ * into the mapped file, and only an index of where each event sits is kept on the heap.
+ * <br><br>
+ * Uploaded events are not rewritten or deleted one by one: a small checkpoint file records
+ * which events were acknowledged, and a segment file is deleted as a whole once all of its
+ * events are. Every record carries a checksum, so a record cut short by a crash is detected
+ * and dropped when the store is loaded again. Changes are written through to the disk when
+ * the app goes to the background. The key-value metadata is kept in an append-only log.
+ */
+public class MappedEventStore implements EventStore {
+
+    private static final String TAG = "com.amplitude.api.MappedEventStore";
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    static final int DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+    static final String EVENTS_DIRECTORY = "events";
+    static final String IDENTIFYS_DIRECTORY = "identifys";
+    static final String STORE_FILE = "store.log";
+
+    private final MappedJournal events;
+    private final MappedJournal identifys;
+    private final KeyValueLog store;
+    private boolean loaded = false;
+
+    /**
+     * Creates a store in the given directory, which is created if needed. Use a separate
+     * directory for every API key.
+     *
+     * @param directory the directory holding the segment files
+     */
+    public MappedEventStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Creates a store in the given directory with segment files of the given size. Events
+     * larger than a segment get a segment of their own.
+     *
+     * @param directory the directory holding the segment files
+     * @param segmentBytes the size of each segment file
+     */
+    public MappedEventStore(File directory, int segmentBytes) {
+        this.events = new MappedJournal(new File(directory, EVENTS_DIRECTORY), segmentBytes);
+        this.identifys = new MappedJournal(new File(directory, IDENTIFYS_DIRECTORY), segmentBytes);
+        this.store = new KeyValueLog(new File(directory, STORE_FILE));
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        // each part on its own, so the metadata survives a queue that cannot be read
+        try {
+            events.load();
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to load events, starting with whatever was read", e);
+        }
+        try {
+            identifys.load();
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to load identifys, starting with whatever was read", e);
+        }
+        try {
+            store.load();
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to load values, starting with whatever was read", e);
+        }
+    }
+
+    @Override
+    public synchronized long addEvent(String event) {
+        return addEventsWithMetadata(Collections.singletonList(event), null, null);
+    }
+
+    @Override
+    public synchronized long addIdentify(String identifyEvent) {
+        return addIdentifysWithMetadata(Collections.singletonList(identifyEvent), null, null);
+    }
+
+    @Override
+    public synchronized long addEvents(List<String> events) {
+        return addEventsWithMetadata(events, null, null);
+    }
+
+    @Override
+    public synchronized long addIdentifys(List<String> identifyEvents) {
+        return addIdentifysWithMetadata(identifyEvents, null, null);
+    }
+
+    @Override
+    public synchronized long addEventWithMetadata(
+            String event, String eventIdKey, Map<String, Long> metadata) {
+        return addEventsWithMetadata(Collections.singletonList(event), eventIdKey, metadata);
+    }
+
+    @Override
+    public synchronized long addIdentifyWithMetadata(
+            String identifyEvent, String eventIdKey, Map<String, Long> metadata) {
+        return addIdentifysWithMetadata(
+                Collections.singletonList(identifyEvent), eventIdKey, metadata);
+    }
+
+    @Override
+    public synchronized long addEventsWithMetadata(
+            List<String> events, String eventIdKey, Map<String, Long> metadata) {
+        return addToJournal(this.events, events, eventIdKey, metadata);
+    }
+
+    @Override
+    public synchronized long addIdentifysWithMetadata(
+            List<String> identifyEvents, String eventIdKey, Map<String, Long> metadata) {
+        return addToJournal(identifys, identifyEvents, eventIdKey, metadata);
+    }
+
+    private long addToJournal(MappedJournal journal, List<String> events, String eventIdKey,
+                              Map<String, Long> metadata) {
+        if (events == null || events.isEmpty()) {
+            return -1;
+        }
+        load();
+
+        Map<String, Long> values = new HashMap<String, Long>();
+        if (metadata != null) {
+            values.putAll(metadata);
+        }
+        if (eventIdKey != null) {
+            values.put(eventIdKey, journal.getNextId() + events.size() - 1);
+        }
+        // the metadata goes first, a crash in between can skip ahead but never go back
+        if (!store.putLongValues(values)) {
+            return -1;
+        }
+
+        try {
+            return journal.append(events);
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to append events", e);
+            return -1;
+        }
+    }
+
+    @Override
+    public synchronized List<JSONObject> getEvents(long upToId, long limit) throws JSONException {
+        return StoredEvent.toJSONObjects(getStoredEvents(upToId, limit));
+    }
+
+    @Override
+    public synchronized List<JSONObject> getIdentifys(long upToId, long limit)
+            throws JSONException {
+        return StoredEvent.toJSONObjects(getStoredIdentifys(upToId, limit));
+    }
+
+    @Override
+    public synchronized List<StoredEvent> getStoredEvents(long upToId, long limit) {
+        load();
+        return events.get(upToId, limit);
+    }
+
+    @Override
+    public synchronized List<StoredEvent> getStoredIdentifys(long upToId, long limit) {
+        load();
+        return identifys.get(upToId, limit);
+    }
+
+    @Override
+    public synchronized long getEventCount() {
+        load();
+        return events.getCount();
+    }
+
+    @Override
+    public synchronized long getIdentifyCount() {
+        load();
+        return identifys.getCount();
+    }
+
+    @Override
+    public synchronized long getTotalEventCount() {
+        return getEventCount() + getIdentifyCount();
+    }
+
+    @Override
+    public synchronized long getEventBytes() {
+        load();
+        return events.getBytes();
+    }
+
+    @Override
+    public synchronized long getIdentifyBytes() {
+        load();
+        return identifys.getBytes();
+    }
+
+    @Override
+    public synchronized long getTotalEventBytes() {
+        return getEventBytes() + getIdentifyBytes();
+    }
+
+    @Override
+    public synchronized long trimEvents(long maxCount, long keepCount) {
+        load();
+        return removeUpTo(events, events.getTrimId(maxCount, keepCount));
+    }
+
+    @Override
+    public synchronized long trimIdentifys(long maxCount, long keepCount) {
+        load();
+        return removeUpTo(identifys, identifys.getTrimId(maxCount, keepCount));
+    }
+
+    @Override
+    public synchronized long trimEventsToBytes(long maxBytes, long keepBytes) {
+        load();
+        return removeUpTo(events, events.getTrimIdForBytes(maxBytes, keepBytes));
+    }
+
+    @Override
+    public synchronized long trimIdentifysToBytes(long maxBytes, long keepBytes) {
+        load();
+        return removeUpTo(identifys, identifys.getTrimIdForBytes(maxBytes, keepBytes));
+    }
+
+    @Override
+    public synchronized void removeEvents(long maxId) {
+        load();
+        removeUpTo(events, maxId);
+    }
+
+    @Override
+    public synchronized void removeIdentifys(long maxId) {
+        load();
+        removeUpTo(identifys, maxId);
+    }
+
+    @Override
+    public synchronized void removeEvents(long afterId, long maxId) {
+        load();
+        removeRange(events, afterId, maxId);
+    }
+
+    @Override
+    public synchronized void removeIdentifys(long afterId, long maxId) {
+        load();
+        removeRange(identifys, afterId, maxId);
+    }
+
+    @Override
+    public synchronized void removeEvent(long id) {
+        load();
+        try {
+            events.remove(id);
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to write checkpoint", e);
+        }
+    }
+
+    @Override
+    public synchronized void removeIdentify(long id) {
+        load();
+        try {
+            identifys.remove(id);
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to write checkpoint", e);
+        }
+    }
+
+    private long removeUpTo(MappedJournal journal, long maxId) {
+        if (maxId < 0) {
+            return 0;
+        }
+
+        try {
+            return journal.removeUpTo(maxId);
+        } catch (IOException e) {
+            // the events are gone from the index, and only come back after a restart
+            logger.e(TAG, "Failed to write checkpoint", e);
+            return 0;
+        }
+    }
+
+    private long removeRange(MappedJournal journal, long afterId, long maxId) {
+        if (afterId < 0) {
+            return removeUpTo(journal, maxId);
+        }
+
+        try {
+            return journal.removeRange(afterId, maxId);
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to write checkpoint", e);
+            return 0;
+        }
+    }
+
+    @Override
+    public synchronized String getValue(String key) {
+        load();
+        return store.getValue(key);
+    }
+
+    @Override
+    public synchronized Long getLongValue(String key) {
+        load();
+        return store.getLongValue(key);
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
+        load();
+        return store.putValue(key, value) ? 1 : -1;
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+        load();
+        return store.putLongValue(key, value) ? 1 : -1;
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (!loaded) {
+            return;
+        }
+
+        events.force();
+        identifys.force();
+        try {
+            store.sync();
+        } catch (IOException e) {
+            logger.e(TAG, "Failed to sync event store", e);
+        }
+    }
+
+    /**
+     * Writes all changes through to the disk and closes the metadata log. The segment files
+     * stay mapped until the store is garbage collected.
+     */
+    @Override
+    public synchronized void close() {
+        flush();
+        if (loaded) {
+            store.closeQuietly();
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package com.amplitude.api;
+
+import android.text.TextUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/*
+    One event queue of the MappedEventStore. Events are appended to memory-mapped segment
+    files of a fixed size, and only an index of where each event sits is kept on the heap.
+    Removals never touch the segments: a checkpoint file records the id up to which every
+    event was acknowledged, plus any single ids removed above it, and a segment is deleted
+    once all of its events are acknowledged.
+
+    Every record is an int payload length, an int CRC-32 of the payload, then the payload, the
+    event id followed by the UTF-8 event. The length is written last, and the unused end of a
+    segment is zero, so recovery reads records until it finds a zero length, and a record that
+    was cut short by a crash fails its checksum.
+
+    Not thread safe, MappedEventStore only uses it while holding its lock.
+ */
+class MappedJournal {
+
+    private static final String TAG = "com.amplitude.api.MappedJournal";
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    static final String SEGMENT_SUFFIX = ".map";
+    static final String CHECKPOINT_FILE = "checkpoint";
+
+    private static final int HEADER_BYTES = 8;
+    private static final int ID_BYTES = 8;
+    private static final int ALLOCATE_BYTES = 64 * 1024;
+
+    private final File directory;
+    private final int segmentBytes;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final TreeMap<Long, Entry> index = new TreeMap<Long, Entry>();
+    private final CRC32 crc = new CRC32();
+    private final byte[] idBytes = new byte[ID_BYTES];
+    private long nextId = 1;
+    private long bytes = 0;
+
+    // every id up to the checkpoint is acknowledged, as are the removed ids above it
+    private long checkpointId = 0;
+    private TreeSet<Long> removedIds = new TreeSet<Long>();
+
+    private static class Segment {
+        final long firstId;
+        final File file;
+        final MappedByteBuffer buffer;
+        int position = 0;
+        long lastId = -1;
+        boolean dirty = false;
+
+        Segment(long firstId, File file, MappedByteBuffer buffer) {
+            this.firstId = firstId;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Entry {
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Entry(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    MappedJournal(File directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    void load() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+
+        readCheckpoint();
+        nextId = checkpointId + 1;
+        List<Long> segmentIds = FileEventStore.getSegmentIds(directory, SEGMENT_SUFFIX);
+        try {
+            for (long firstId : segmentIds) {
+                File file = new File(directory, firstId + SEGMENT_SUFFIX);
+                if (file.length() < HEADER_BYTES + ID_BYTES) {
+                    // created but never written to before a crash
+                    file.delete();
+                    continue;
+                }
+
+                Segment segment = new Segment(firstId, file, map(file, file.length()));
+                segments.add(segment);
+                nextId = Math.max(nextId, firstId);
+                recover(segment);
+            }
+        } finally {
+            // segments that could not be mapped keep their ids, new ones go after them
+            long loadedId = segments.isEmpty() ? -1 : segments.get(segments.size() - 1).firstId;
+            for (long firstId : segmentIds) {
+                if (firstId > loadedId) {
+                    long length = new File(directory, firstId + SEGMENT_SUFFIX).length();
+                    nextId = Math.max(nextId, firstId + length / (HEADER_BYTES + ID_BYTES) + 1);
+                }
+            }
+        }
+        deleteAcknowledgedSegments();
+    }
+
+    private void recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int capacity = buffer.capacity();
+        int position = 0;
+        while (position + HEADER_BYTES <= capacity) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < ID_BYTES || length > capacity - position - HEADER_BYTES
+                    || buffer.getInt(position + 4) != checksum(buffer, position, length)) {
+                logger.w(TAG, String.format(
+                        "Dropping torn record at %d in %s", position, segment.file));
+                // clear it, so a shorter record written over it can't be mistaken for the end
+                for (int i = position; i < capacity; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                segment.dirty = true;
+                break;
+            }
+
+            long id = buffer.getLong(position + HEADER_BYTES);
+            if (id > checkpointId && !removedIds.contains(id)) {
+                int eventLength = length - ID_BYTES;
+                index.put(id, new Entry(segment, position + HEADER_BYTES + ID_BYTES, eventLength));
+                bytes += eventLength;
+            }
+            segment.lastId = id;
+            nextId = Math.max(nextId, id + 1);
+            position += HEADER_BYTES + length;
+        }
+        segment.position = position;
+    }
+
+    private int checksum(ByteBuffer buffer, int position, int length) {
+        byte[] payload = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + HEADER_BYTES);
+        view.get(payload);
+        crc.reset();
+        crc.update(payload, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    long getNextId() {
+        return nextId;
+    }
+
+    long getCount() {
+        return index.size();
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Appends events in order.
+     *
+     * @return the id of the last event
+     */
+    long append(List<String> events) throws IOException {
+        long id = -1;
+        for (String event : events) {
+            id = append(event == null ? new byte[0] : EventCodec.toUtf8(event));
+        }
+        return id;
+    }
+
+    private long append(byte[] event) throws IOException {
+        int length = ID_BYTES + event.length;
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null
+                || segment.position + HEADER_BYTES + length > segment.buffer.capacity()) {
+            segment = addSegment(HEADER_BYTES + length);
+        }
+
+        long id = nextId;
+        ByteBuffer.wrap(idBytes).putLong(0, id);
+        crc.reset();
+        crc.update(idBytes, 0, ID_BYTES);
+        crc.update(event, 0, event.length);
+
+        ByteBuffer buffer = segment.buffer;
+        int position = segment.position;
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + HEADER_BYTES);
+        view.put(idBytes);
+        view.put(event);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putInt(position, length);
+
+        index.put(id, new Entry(segment, position + HEADER_BYTES + ID_BYTES, event.length));
+        bytes += event.length;
+        segment.position += HEADER_BYTES + length;
+        segment.lastId = id;
+        segment.dirty = true;
+        nextId++;
+        return id;
+    }
+
+    private Segment addSegment(int recordBytes) throws IOException {
+        File file = new File(directory, nextId + SEGMENT_SUFFIX);
+        int size = Math.max(segmentBytes, recordBytes);
+        try {
+            allocate(file, size);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        Segment segment = new Segment(nextId, file, map(file, size));
+        segments.add(segment);
+        return segment;
+    }
+
+    /*
+        Writes the zeros a new segment starts with through the channel, so its blocks are on
+        disk before it is mapped. Mapping past the end of the file would leave it sparse, and
+        a full disk would then kill the process with SIGBUS on the first write to the mapping
+        instead of failing here.
+     */
+    private static void allocate(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(size, ALLOCATE_BYTES));
+            long position = 0;
+            while (position < size) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), size - position));
+                position += channel.write(zeros, position);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private String read(Entry entry) {
+        byte[] event = new byte[entry.length];
+        ByteBuffer view = entry.segment.buffer.duplicate();
+        view.position(entry.offset);
+        view.get(event);
+        try {
+            return new String(event, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e); // UTF-8 is always supported
+        }
+    }
+
+    List<StoredEvent> get(long upToId, long limit) {
+        Map<Long, Entry> range = upToId >= 0 ? index.headMap(upToId, true) : index;
+        List<StoredEvent> result = new ArrayList<StoredEvent>();
+        for (Map.Entry<Long, Entry> entry : range.entrySet()) {
+            if (limit >= 0 && result.size() >= limit) {
+                break;
+            }
+            String event = read(entry.getValue());
+            if (TextUtils.isEmpty(event)) {
+                continue;
+            }
+
+            result.add(new StoredEvent(entry.getKey(), event));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the id up to which events have to be removed to trim the journal down to
+     * keepCount once it holds more than maxCount, or -1 if nothing needs to be removed.
+     */
+    long getTrimId(long maxCount, long keepCount) {
+        if (index.size() <= maxCount || index.size() <= keepCount) {
+            return -1;
+        }
+
+        Iterator<Long> ids = index.descendingKeySet().iterator();
+        for (long i = 0; i < keepCount; i++) {
+            ids.next();
+        }
+        return ids.next();
+    }
+
+    long getTrimIdForBytes(long maxBytes, long keepBytes) {
+        if (bytes <= maxBytes) {
+            return -1;
+        }
+
+        long keptBytes = 0;
+        for (Map.Entry<Long, Entry> entry : index.descendingMap().entrySet()) {
+            long size = entry.getValue().length;
+            if (keptBytes + size > keepBytes) {
+                return entry.getKey();
+            }
+            keptBytes += size;
+        }
+        return -1;
+    }
+
+    /**
+     * Acknowledges every event with an id up to maxId.
+     *
+     * @return the number of events removed
+     */
+    long removeUpTo(long maxId) throws IOException {
+        NavigableMap<Long, Entry> removed = index.headMap(maxId, true);
+        long count = removed.size();
+        if (count == 0) {
+            return 0;
+        }
+        for (Entry entry : removed.values()) {
+            bytes -= entry.length;
+        }
+        removed.clear();
+        onRemoved();
+        return count;
+    }
+
+    /**
+     * Acknowledges the events with an id greater than afterId and up to maxId, with a single
+     * checkpoint write.
+     *
+     * @return the number of events removed
+     */
+    long removeRange(long afterId, long maxId) throws IOException {
+        if (afterId >= maxId) {
+            return 0;
+        }
+        NavigableMap<Long, Entry> removed = index.subMap(afterId, false, maxId, true);
+        long count = removed.size();
+        if (count == 0) {
+            return 0;
+        }
+        for (Map.Entry<Long, Entry> entry : removed.entrySet()) {
+            bytes -= entry.getValue().length;
+            removedIds.add(entry.getKey());
+        }
+        removed.clear();
+        onRemoved();
+        return count;
+    }
+
+    boolean remove(long id) throws IOException {
+        Entry entry = index.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        bytes -= entry.length;
+        removedIds.add(id);
+        onRemoved();
+        return true;
+    }
+
+    private void onRemoved() throws IOException {
+        // everything below the oldest live event is acknowledged, so the checkpoint moves up
+        checkpointId = index.isEmpty() ? nextId - 1 : index.firstKey() - 1;
+        removedIds = new TreeSet<Long>(removedIds.tailSet(checkpointId, false));
+        writeCheckpoint();
+        deleteAcknowledgedSegments();
+    }
+
+    // the newest segment stays, its name keeps track of the ids that were handed out
+    private void deleteAcknowledgedSegments() {
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (oldest.lastId > checkpointId) {
+                break;
+            }
+            if (oldest.file.exists() && !oldest.file.delete()) {
+                logger.w(TAG, String.format("Failed to delete %s", oldest.file));
+                break;
+            }
+            segments.remove(0);
+        }
+    }
+
+    private void readCheckpoint() throws IOException {
+        File file = new File(directory, CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            long id = in.readLong();
+            int count = in.readInt();
+            TreeSet<Long> removed = new TreeSet<Long>();
+            for (int i = 0; i < count; i++) {
+                removed.add(in.readLong());
+            }
+            crc.reset();
+            crc.update(encodeCheckpoint(id, removed));
+            if (in.readInt() != (int) crc.getValue()) {
+                throw new IOException("Checkpoint checksum mismatch");
+            }
+            checkpointId = id;
+            removedIds = removed;
+        } catch (IOException e) {
+            // the events are sent again rather than lost
+            logger.e(TAG, String.format("Ignoring unreadable checkpoint %s", file), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    // written to a new file and renamed over the old one, so it is never seen half written
+    private void writeCheckpoint() throws IOException {
+        byte[] checkpoint = encodeCheckpoint(checkpointId, removedIds);
+        crc.reset();
+        crc.update(checkpoint);
+
+        File temp = new File(directory, CHECKPOINT_FILE + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.write(checkpoint);
+            out.writeInt((int) crc.getValue());
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(new File(directory, CHECKPOINT_FILE))) {
+            throw new IOException("Failed to replace checkpoint in " + directory);
+        }
+    }
+
+    private static byte[] encodeCheckpoint(long id, TreeSet<Long> removed) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(12 + 8 * removed.size());
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeLong(id);
+        out.writeInt(removed.size());
+        for (long removedId : removed) {
+            out.writeLong(removedId);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Writes the segments' changes through to the disk.
+     */
+    void force() {
+        for (Segment segment : segments) {
+            if (segment.dirty) {
+                segment.buffer.force();
+                segment.dirty = false;
+            }
+        }
+    }
+}
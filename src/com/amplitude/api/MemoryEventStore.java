@@ -0,0 +1,233 @@
+package com.amplitude.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <h1>MemoryEventStore</h1>
+ * An {@link EventStore} that keeps everything in memory. Nothing survives the process, so
+ * unsent events are lost when the app is killed. Meant for tests and benchmarks, or apps that
+ * would rather drop events than write them to disk.
+ */
+public class MemoryEventStore implements EventStore {
+
+    private final EventQueue events = new EventQueue();
+    private final EventQueue identifys = new EventQueue();
+    private final Map<String, String> values = new HashMap<String, String>();
+    private final Map<String, Long> longValues = new HashMap<String, Long>();
+
+    @Override
+    public synchronized long addEvent(String event) {
+        return events.add(event);
+    }
+
+    @Override
+    public synchronized long addIdentify(String identifyEvent) {
+        return identifys.add(identifyEvent);
+    }
+
+    @Override
+    public synchronized long addEvents(List<String> events) {
+        return addEventsWithMetadata(events, null, null);
+    }
+
+    @Override
+    public synchronized long addIdentifys(List<String> identifyEvents) {
+        return addIdentifysWithMetadata(identifyEvents, null, null);
+    }
+
+    @Override
+    public synchronized long addEventWithMetadata(
+            String event, String eventIdKey, Map<String, Long> metadata) {
+        return addToQueue(events, event, eventIdKey, metadata);
+    }
+
+    @Override
+    public synchronized long addIdentifyWithMetadata(
+            String identifyEvent, String eventIdKey, Map<String, Long> metadata) {
+        return addToQueue(identifys, identifyEvent, eventIdKey, metadata);
+    }
+
+    @Override
+    public synchronized long addEventsWithMetadata(
+            List<String> events, String eventIdKey, Map<String, Long> metadata) {
+        return addToQueue(this.events, events, eventIdKey, metadata);
+    }
+
+    @Override
+    public synchronized long addIdentifysWithMetadata(
+            List<String> identifyEvents, String eventIdKey, Map<String, Long> metadata) {
+        return addToQueue(identifys, identifyEvents, eventIdKey, metadata);
+    }
+
+    private long addToQueue(
+            EventQueue queue, String event, String eventIdKey, Map<String, Long> metadata) {
+        long id = queue.add(event);
+        putMetadata(id, eventIdKey, metadata);
+        return id;
+    }
+
+    private long addToQueue(
+            EventQueue queue, List<String> events, String eventIdKey, Map<String, Long> metadata) {
+        if (events == null || events.isEmpty()) {
+            return -1;
+        }
+
+        long id = -1;
+        for (String event : events) {
+            id = queue.add(event);
+        }
+        putMetadata(id, eventIdKey, metadata);
+        return id;
+    }
+
+    private void putMetadata(long id, String eventIdKey, Map<String, Long> metadata) {
+        if (metadata != null) {
+            longValues.putAll(metadata);
+        }
+        if (eventIdKey != null) {
+            longValues.put(eventIdKey, id);
+        }
+    }
+
+    @Override
+    public synchronized List<JSONObject> getEvents(long upToId, long limit) throws JSONException {
+        return StoredEvent.toJSONObjects(getStoredEvents(upToId, limit));
+    }
+
+    @Override
+    public synchronized List<JSONObject> getIdentifys(long upToId, long limit)
+            throws JSONException {
+        return StoredEvent.toJSONObjects(getStoredIdentifys(upToId, limit));
+    }
+
+    @Override
+    public synchronized List<StoredEvent> getStoredEvents(long upToId, long limit) {
+        return events.get(upToId, limit);
+    }
+
+    @Override
+    public synchronized List<StoredEvent> getStoredIdentifys(long upToId, long limit) {
+        return identifys.get(upToId, limit);
+    }
+
+    @Override
+    public synchronized long getEventCount() {
+        return events.getCount();
+    }
+
+    @Override
+    public synchronized long getIdentifyCount() {
+        return identifys.getCount();
+    }
+
+    @Override
+    public synchronized long getTotalEventCount() {
+        return events.getCount() + identifys.getCount();
+    }
+
+    @Override
+    public synchronized long getEventBytes() {
+        return events.getBytes();
+    }
+
+    @Override
+    public synchronized long getIdentifyBytes() {
+        return identifys.getBytes();
+    }
+
+    @Override
+    public synchronized long getTotalEventBytes() {
+        return events.getBytes() + identifys.getBytes();
+    }
+
+    @Override
+    public synchronized long trimEvents(long maxCount, long keepCount) {
+        return events.removeUpTo(events.getTrimId(maxCount, keepCount));
+    }
+
+    @Override
+    public synchronized long trimIdentifys(long maxCount, long keepCount) {
+        return identifys.removeUpTo(identifys.getTrimId(maxCount, keepCount));
+    }
+
+    @Override
+    public synchronized long trimEventsToBytes(long maxBytes, long keepBytes) {
+        return events.removeUpTo(events.getTrimIdForBytes(maxBytes, keepBytes));
+    }
+
+    @Override
+    public synchronized long trimIdentifysToBytes(long maxBytes, long keepBytes) {
+        return identifys.removeUpTo(identifys.getTrimIdForBytes(maxBytes, keepBytes));
+    }
+
+    @Override
+    public synchronized void removeEvents(long maxId) {
+        events.removeUpTo(maxId);
+    }
+
+    @Override
+    public synchronized void removeIdentifys(long maxId) {
+        identifys.removeUpTo(maxId);
+    }
+
+    @Override
+    public synchronized void removeEvents(long afterId, long maxId) {
+        events.removeRange(afterId, maxId);
+    }
+
+    @Override
+    public synchronized void removeIdentifys(long afterId, long maxId) {
+        identifys.removeRange(afterId, maxId);
+    }
+
+    @Override
+    public synchronized void removeEvent(long id) {
+        events.remove(id);
+    }
+
+    @Override
+    public synchronized void removeIdentify(long id) {
+        identifys.remove(id);
+    }
+
+    @Override
+    public synchronized String getValue(String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public synchronized Long getLongValue(String key) {
+        return longValues.get(key);
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
+        if (value == null) {
+            values.remove(key);
+        } else {
+            values.put(key, value);
+        }
+        return 1;
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+        if (value == null) {
+            longValues.remove(key);
+        } else {
+            longValues.put(key, value);
+        }
+        return 1;
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+}
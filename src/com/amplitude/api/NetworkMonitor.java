@@ -0,0 +1,46 @@
+package com.amplitude.api;
+
+import android.content.Context;
+
+/**
+ * <h1>NetworkMonitor</h1>
+ * Tells the SDK whether the device is online, so it does not attempt uploads that are bound
+ * to fail. Enable the SDK's own monitor, which follows Android's connectivity broadcasts, with
+ * {@link AmplitudeClient#enableNetworkMonitoring()}, or pass a different one to
+ * {@link AmplitudeClient#enableNetworkMonitoring(NetworkMonitor)}.
+ * <br><br>
+ * Implementations must be thread safe; the SDK calls them from its background threads.
+ */
+public interface NetworkMonitor {
+
+    /**
+     * Receives the monitor's change notifications.
+     */
+    interface Listener {
+
+        /**
+         * Called when the device's connectivity may have changed, on any thread.
+         */
+        void onNetworkChanged();
+    }
+
+    /**
+     * Starts watching the network.
+     *
+     * @param context the application context
+     * @param listener the listener to notify of changes until {@link #stop()} is called
+     */
+    void start(Context context, Listener listener);
+
+    void stop();
+
+    /**
+     * Returns whether the device currently has a connection that can carry uploads.
+     */
+    boolean isConnected();
+
+    /**
+     * Returns whether the current connection is metered, for example mobile data.
+     */
+    boolean isMetered();
+}
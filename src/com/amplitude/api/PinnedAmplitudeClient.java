@@ -191,8 +191,9 @@ public class PinnedAmplitudeClient extends AmplitudeClient {
     protected boolean initializedSSLSocketFactory = false;
 
     @Override
-    public synchronized AmplitudeClient initialize(Context context, String apiKey, String userId){
-        super.initialize(context, apiKey, userId);
+    public synchronized AmplitudeClient initialize(Context context, String apiKey, String userId,
+            EventStore eventStore) {
+        super.initialize(context, apiKey, userId, eventStore);
         final PinnedAmplitudeClient client = this;
         runOnLogThread(new Runnable() {
             @Override
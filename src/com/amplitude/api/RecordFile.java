@@ -0,0 +1,127 @@
+package com.amplitude.api;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    A file of length-prefixed records, opened for appending on first write. A record cut short
+    by a crash is dropped, and the file truncated back to the last whole record. An append
+    that fails, for example because the disk is full, is cut off right away, so no whole
+    record is ever written after a partial one; if that fails too, the file takes no more
+    records until it is read again.
+    Not thread safe, the event stores only use it while holding their lock.
+ */
+class RecordFile {
+
+    private static final String TAG = "com.amplitude.api.RecordFile";
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    final File file;
+    private FileOutputStream output;
+    // a failed append could not be cut off, the file ends with part of a record
+    private boolean damaged;
+
+    RecordFile(File file) {
+        this.file = file;
+    }
+
+    List<byte[]> readRecords() throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        if (!file.exists()) {
+            return records;
+        }
+
+        long validLength = 0;
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < 0) {
+                    throw new EOFException("Invalid record length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                records.add(payload);
+                validLength += 4 + length;
+            }
+        } catch (EOFException e) {
+            // end of file, or a record cut short
+        } finally {
+            in.close();
+        }
+
+        if (validLength < file.length()) {
+            logger.w(TAG, String.format("Dropping incomplete record in %s", file));
+            truncate(validLength);
+        }
+        damaged = false;
+        return records;
+    }
+
+    long length() {
+        return file.length();
+    }
+
+    // records are already framed by the caller
+    void append(byte[] records) throws IOException {
+        if (damaged) {
+            throw new IOException("Incomplete record at the end of " + file);
+        }
+        if (output == null) {
+            output = new FileOutputStream(file, true);
+        }
+
+        long length = file.length();
+        try {
+            output.write(records);
+        } catch (IOException e) {
+            closeQuietly();
+            try {
+                truncate(length);
+            } catch (IOException truncateError) {
+                logger.e(TAG, String.format("Failed to drop incomplete record in %s", file),
+                        truncateError);
+                damaged = true;
+            }
+            throw e;
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+        try {
+            truncate.setLength(length);
+        } finally {
+            truncate.close();
+        }
+    }
+
+    void sync() throws IOException {
+        if (output != null) {
+            output.getFD().sync();
+        }
+    }
+
+    void close() throws IOException {
+        if (output != null) {
+            FileOutputStream closing = output;
+            output = null;
+            closing.close();
+        }
+    }
+
+    void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            logger.w(TAG, e);
+        }
+    }
+}
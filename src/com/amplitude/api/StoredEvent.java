@@ -0,0 +1,185 @@
+package com.amplitude.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <h1>StoredEvent</h1>
+ * An unsent event as read from an {@link EventStore}: its id, its sequence number and its
+ * JSON text, which is not parsed. Uploads copy the text into the request as it is.
+ */
+public class StoredEvent {
+
+    private static final String SEQUENCE_NUMBER_KEY = "sequence_number";
+
+    private final long id;
+    private final String event;
+    private final long sequenceNumber;
+
+    /**
+     * Creates a stored event, reading the sequence number out of the event text.
+     *
+     * @param id the event's id in the store
+     * @param event the event's JSON text
+     */
+    public StoredEvent(long id, String event) {
+        this(id, event, findSequenceNumber(event));
+    }
+
+    /**
+     * Creates a stored event whose sequence number is already known.
+     *
+     * @param id the event's id in the store
+     * @param event the event's JSON text
+     * @param sequenceNumber the event's sequence number, or -1 if it has none
+     */
+    public StoredEvent(long id, String event, long sequenceNumber) {
+        this.id = id;
+        this.event = event;
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    /**
+     * Returns the sequence number, or -1 for events logged before SDK v2.1.0, which have none.
+     */
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public boolean hasSequenceNumber() {
+        return sequenceNumber >= 0;
+    }
+
+    /**
+     * Appends the event text to the builder with its id added as {@code event_id}.
+     *
+     * @return false if the text is not an object, in which case nothing is appended
+     */
+    boolean appendTo(StringBuilder builder) {
+        int start = event.indexOf('{');
+        int end = event.lastIndexOf('}');
+        if (start < 0 || end < start) {
+            return false;
+        }
+
+        builder.append(event, 0, end);
+        if (!isEmptyObject(start, end)) {
+            builder.append(',');
+        }
+        builder.append("\"event_id\":").append(id).append('}');
+        return true;
+    }
+
+    // an empty object has nothing but whitespace between its braces
+    private boolean isEmptyObject(int start, int end) {
+        for (int i = start + 1; i < end; i++) {
+            if (!Character.isWhitespace(event.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the event, with its id added as {@code event_id}.
+     *
+     * @throws JSONException if the event text is not a JSON object
+     */
+    public JSONObject toJSONObject() throws JSONException {
+        JSONObject obj = new JSONObject(event);
+        obj.put("event_id", id);
+        return obj;
+    }
+
+    static List<JSONObject> toJSONObjects(List<StoredEvent> events) throws JSONException {
+        List<JSONObject> result = new ArrayList<JSONObject>(events.size());
+        for (StoredEvent event : events) {
+            result.add(event.toJSONObject());
+        }
+        return result;
+    }
+
+    /**
+     * Finds the top-level sequence_number member in an event's JSON text without parsing the
+     * event. Nested objects and string contents are skipped over.
+     *
+     * @return the sequence number, or -1 if the event has none or it is not a number
+     */
+    static long findSequenceNumber(String event) {
+        if (event == null) {
+            return -1;
+        }
+
+        int depth = 0;
+        // whether the next string at the top level is a member name
+        boolean expectName = false;
+        for (int i = 0, length = event.length(); i < length; i++) {
+            char c = event.charAt(i);
+            if (c == '"') {
+                int end = skipString(event, i);
+                if (depth == 1 && expectName && end - i - 1 == SEQUENCE_NUMBER_KEY.length()
+                        && event.startsWith(SEQUENCE_NUMBER_KEY, i + 1)) {
+                    return readLong(event, end + 1);
+                }
+                expectName = false;
+                i = end;
+            } else if (c == '{' || c == '[') {
+                depth++;
+                expectName = depth == 1 && c == '{';
+            } else if (c == '}' || c == ']') {
+                depth--;
+            } else if (c == ',' && depth == 1) {
+                expectName = true;
+            }
+        }
+        return -1;
+    }
+
+    // returns the index of the quote that closes the string starting at start
+    private static int skipString(String text, int start) {
+        for (int i = start + 1, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        return text.length();
+    }
+
+    // reads the number after the colon that follows a member name
+    private static long readLong(String text, int start) {
+        int i = start;
+        int length = text.length();
+        while (i < length && (Character.isWhitespace(text.charAt(i)) || text.charAt(i) == ':')) {
+            i++;
+        }
+        int begin = i;
+        if (i < length && text.charAt(i) == '-') {
+            i++;
+        }
+        while (i < length && Character.isDigit(text.charAt(i))) {
+            i++;
+        }
+        if (i == begin || (i < length && ".eE".indexOf(text.charAt(i)) >= 0)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(text.substring(begin, i));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.amplitude.api;
+
+import java.util.List;
+
+/*
+    One upload request's worth of events and identifys. A batch covers the events with an id
+    greater than afterEventId and up to maxEventId, and likewise for identifys; batches read
+    while others are still being uploaded start where the previous batch ended, so the ranges
+    of the batches in flight never overlap. A bound of -1 means the batch has no lower bound,
+    or no rows from that queue. Batches of high-priority events hold only rows of the
+    priority queue, which the event bounds refer to.
+ */
+class UploadBatch {
+
+    final long afterEventId;
+    final long maxEventId;
+    final long afterIdentifyId;
+    final long maxIdentifyId;
+    final List<StoredEvent> events;
+    // the UTF-8 length of the events, before the request adds its own encoding
+    final long bytes;
+    // the upload thread the batch was posted to, see AmplitudeClient.getUploadThread
+    int slot;
+    // part of a batch the server rejected as too large, see AmplitudeClient.isolateOversizedEvents
+    boolean isolating;
+    // rows of the high-priority queue, see DatabaseHelper.getPriorityEvents
+    boolean priority;
+
+    UploadBatch(long afterEventId, long maxEventId, long afterIdentifyId, long maxIdentifyId,
+                List<StoredEvent> events) {
+        this.afterEventId = afterEventId;
+        this.maxEventId = maxEventId;
+        this.afterIdentifyId = afterIdentifyId;
+        this.maxIdentifyId = maxIdentifyId;
+        this.events = events;
+
+        long bytes = 0;
+        for (StoredEvent event : events) {
+            bytes += Utils.getUtf8Length(event.getEvent());
+        }
+        this.bytes = bytes;
+    }
+
+    boolean isEmpty() {
+        return maxEventId < 0 && maxIdentifyId < 0;
+    }
+}
@@ -0,0 +1,179 @@
+package com.amplitude.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Sizes upload batches by event count and by payload bytes, adapting both to how uploads go.
+    Batches start at the configured maximums. A 413 response halves them; a response slower
+    than slowLatencyMillis shrinks them by a quarter, so poor networks get smaller requests
+    that are more likely to get through. Every fast success grows them back by a tenth of the
+    maximum, so on good networks requests quickly get full again.
+    It also plans how to split a rejected batch to find the events the server will never take.
+    Thread safe, the limits are set on the caller's thread, read and adjusted on logThread.
+ */
+class UploadBatchPlanner {
+
+    // the byte budget never shrinks below this, a batch always holds at least one event
+    static final long MIN_BATCH_BYTES = 16 * 1024;
+
+    private int maxBatchSize;
+    private long maxBatchBytes;
+    private long slowLatencyMillis;
+
+    private int batchSize;
+    private long batchBytes;
+    // the largest batch the server accepted, rows up to this size are known to be fine
+    private long largestAcceptedBytes;
+
+    UploadBatchPlanner(int maxBatchSize, long maxBatchBytes, long slowLatencyMillis) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchBytes = maxBatchBytes;
+        this.slowLatencyMillis = slowLatencyMillis;
+        reset();
+    }
+
+    synchronized void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+        reset();
+    }
+
+    /**
+     * Sets the target payload size of a batch, 0 for no byte limit.
+     */
+    synchronized void setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+        reset();
+    }
+
+    synchronized void setSlowLatencyMillis(long slowLatencyMillis) {
+        this.slowLatencyMillis = slowLatencyMillis;
+    }
+
+    private void reset() {
+        batchSize = maxBatchSize;
+        batchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Returns the max number of events in the next batch.
+     */
+    synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Returns the max payload bytes of the next batch, or 0 for no limit. A single event
+     * larger than this still goes out on its own.
+     */
+    synchronized long getBatchBytes() {
+        return batchBytes;
+    }
+
+    /**
+     * Whether batches are currently smaller than the maximums.
+     */
+    synchronized boolean isBackingOff() {
+        return batchSize < maxBatchSize || batchBytes < maxBatchBytes;
+    }
+
+    /**
+     * Records a batch the server accepted.
+     *
+     * @param bytes         the payload bytes of the batch
+     * @param latencyMillis the time from sending the request to reading the response
+     */
+    synchronized void onSuccess(long bytes, long latencyMillis) {
+        largestAcceptedBytes = Math.max(largestAcceptedBytes, bytes);
+        if (slowLatencyMillis > 0 && latencyMillis > slowLatencyMillis) {
+            batchSize = Math.max(1, batchSize - Math.max(1, batchSize / 4));
+            if (maxBatchBytes > 0) {
+                batchBytes = Math.max(MIN_BATCH_BYTES, batchBytes - batchBytes / 4);
+            }
+            return;
+        }
+
+        batchSize = Math.min(maxBatchSize, batchSize + Math.max(1, maxBatchSize / 10));
+        if (maxBatchBytes > 0) {
+            batchBytes = Math.min(maxBatchBytes, batchBytes + Math.max(1, maxBatchBytes / 10));
+        }
+    }
+
+    /**
+     * Records a batch the server rejected as too large.
+     *
+     * @param count the number of events in the batch
+     * @param bytes the payload bytes of the batch
+     */
+    synchronized void onTooLarge(int count, long bytes) {
+        batchSize = (int) Math.ceil(Math.min(count, batchSize) / 2.0);
+        batchSize = Math.max(1, batchSize);
+        if (maxBatchBytes > 0) {
+            batchBytes = Math.max(MIN_BATCH_BYTES, Math.min(bytes, batchBytes) / 2);
+        }
+    }
+
+    /**
+     * Splits the rows of a batch the server rejected as too large into smaller batches. Rows
+     * no larger than the largest batch the server accepted are known to be fine: runs of them
+     * are grouped into batches up to that size and each larger row goes out on its own, so a
+     * single request finds out whether a row is oversized. Without a known good size the batch
+     * is cut into two halves of about the same bytes.
+     *
+     * @param events the rows of the batch, at least two
+     * @param bytes  the payload bytes of the batch
+     * @return the number of rows in each smaller batch, in upload order
+     */
+    synchronized List<Integer> split(List<StoredEvent> events, long bytes) {
+        if (bytes <= largestAcceptedBytes) {
+            // the server took a batch this size before, its limit must have gone down
+            largestAcceptedBytes = 0;
+        }
+
+        List<Integer> counts = new ArrayList<Integer>();
+        if (largestAcceptedBytes > 0) {
+            int run = 0;
+            long runBytes = 0;
+            for (StoredEvent event : events) {
+                long size = Utils.getUtf8Length(event.getEvent());
+                if (size > largestAcceptedBytes) {
+                    if (run > 0) {
+                        counts.add(run);
+                    }
+                    counts.add(1);
+                    run = 0;
+                    runBytes = 0;
+                    continue;
+                }
+                if (run > 0 && runBytes + size > largestAcceptedBytes) {
+                    counts.add(run);
+                    run = 0;
+                    runBytes = 0;
+                }
+                run++;
+                runBytes += size;
+            }
+            if (run > 0) {
+                counts.add(run);
+            }
+            if (counts.size() > 1) {
+                return counts;
+            }
+            counts.clear();
+        }
+
+        int head = 1;
+        long headBytes = Utils.getUtf8Length(events.get(0).getEvent());
+        while (head < events.size() - 1) {
+            long size = Utils.getUtf8Length(events.get(head).getEvent());
+            if (headBytes + size > bytes / 2) {
+                break;
+            }
+            headBytes += size;
+            head++;
+        }
+        counts.add(head);
+        counts.add(events.size() - head);
+        return counts;
+    }
+}
@@ -0,0 +1,23 @@
+package com.amplitude.api;
+
+/*
+    A flush in progress, see AmplitudeClient.flush. It counts the events uploaded while it is
+    running and ends by its deadline at the latest. Only used on logThread.
+ */
+class UploadFlush {
+
+    final FlushCallback callback;
+    // the uptime the flush times out at
+    final long deadlineMillis;
+    // AmplitudeClient.quarantinedEventCount when the flush started
+    final long quarantinedCountAtStart;
+    long sentCount;
+    // posted to end the flush at its deadline
+    Runnable timeoutRunnable;
+
+    UploadFlush(FlushCallback callback, long deadlineMillis, long quarantinedCountAtStart) {
+        this.callback = callback;
+        this.deadlineMillis = deadlineMillis;
+        this.quarantinedCountAtStart = quarantinedCountAtStart;
+    }
+}
@@ -0,0 +1,176 @@
+package com.amplitude.api;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/*
+    Schedules retries of failed uploads with capped exponential backoff and jitter. Each
+    consecutive failure doubles the delay, starting at baseDelayMillis and capped at
+    maxDelayMillis, and the actual delay is picked at random between half of it and all of it,
+    so devices that lost the network together do not all come back at the same time. A
+    successful upload resets it. While a retry is pending new events do not trigger uploads,
+    so logging events on a bad network does not wake up the radio every time.
+    A 429 or 503 response means the server is shedding load. It sets a deadline no upload may
+    be sent before, however it was triggered: the server's Retry-After plus up to a tenth more,
+    so throttled devices do not all come back at once, or the next backoff delay without one.
+    Unlike the backoff, the deadline is not lifted when the device comes back online.
+    Times are SystemClock.uptimeMillis values, the clock Handler.postDelayed runs on.
+    Thread safe, the state is updated on logThread and read by tests.
+ */
+class UploadRetryScheduler {
+
+    private final Random random;
+    private long baseDelayMillis;
+    private long maxDelayMillis;
+
+    private int consecutiveFailures;
+    // when the pending retry is due, -1 if there is none
+    private long retryAtMillis = -1;
+    // no upload may be sent before this, 0 while the server is not throttling uploads
+    private long notBeforeMillis;
+    private int throttledCount;
+
+    UploadRetryScheduler(long baseDelayMillis, long maxDelayMillis, Random random) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.random = random;
+    }
+
+    synchronized void setDelays(long baseDelayMillis, long maxDelayMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Records a failed upload and schedules the retry.
+     *
+     * @param nowMillis the current uptime
+     * @return the delay until the retry in milliseconds
+     */
+    synchronized long onFailure(long nowMillis) {
+        consecutiveFailures++;
+        long delay = baseDelayMillis;
+        for (int i = 1; i < consecutiveFailures && delay < maxDelayMillis; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayMillis);
+        delay = delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+        retryAtMillis = nowMillis + delay;
+        return delay;
+    }
+
+    /**
+     * Records a successful upload, which ends the backoff.
+     */
+    synchronized void onSuccess() {
+        reset();
+    }
+
+    /**
+     * Ends the backoff, for example when the device is back online.
+     */
+    synchronized void reset() {
+        consecutiveFailures = 0;
+        retryAtMillis = -1;
+    }
+
+    /**
+     * Whether a retry is pending, during which uploads should only be triggered by the retry.
+     */
+    synchronized boolean isBackingOff(long nowMillis) {
+        return (retryAtMillis >= 0 && nowMillis < retryAtMillis) || isThrottled(nowMillis);
+    }
+
+    /**
+     * Records a response throttling uploads and schedules the retry after the deadline it sets.
+     * Throttled responses of batches that were in flight together only move the deadline.
+     *
+     * @param nowMillis        the current uptime
+     * @param retryAfterMillis the delay the server asked for, or -1 if it did not say
+     * @return the delay until the retry in milliseconds
+     */
+    synchronized long onThrottled(long nowMillis, long retryAfterMillis) {
+        throttledCount++;
+        if (retryAfterMillis >= 0) {
+            if (!isThrottled(nowMillis)) {
+                consecutiveFailures++;
+            }
+            long delay = retryAfterMillis + (long) (random.nextDouble() * (retryAfterMillis / 10));
+            notBeforeMillis = Math.max(notBeforeMillis, nowMillis + delay);
+        } else if (!isThrottled(nowMillis)) {
+            notBeforeMillis = nowMillis + onFailure(nowMillis);
+        }
+        retryAtMillis = Math.max(retryAtMillis, notBeforeMillis);
+        return notBeforeMillis - nowMillis;
+    }
+
+    /**
+     * Whether the server asked not to send any uploads until later.
+     */
+    synchronized boolean isThrottled(long nowMillis) {
+        return nowMillis < notBeforeMillis;
+    }
+
+    /**
+     * Returns the uptime uploads may be sent again at, in the past if they are not throttled.
+     */
+    synchronized long getNotBeforeMillis() {
+        return notBeforeMillis;
+    }
+
+    /**
+     * Returns the number of responses that throttled uploads.
+     */
+    synchronized int getThrottledCount() {
+        return throttledCount;
+    }
+
+    synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Returns the uptime the pending retry is due at, or -1 if there is none.
+     */
+    synchronized long getRetryAtMillis() {
+        return retryAtMillis;
+    }
+
+    /**
+     * Parses a Retry-After header, which is either a number of seconds or an HTTP date. The
+     * delay is capped at Constants.UPLOAD_THROTTLE_MAX_DELAY_MILLIS.
+     *
+     * @param value             the header value, may be null
+     * @param currentTimeMillis the current wall clock time, an HTTP date is relative to it
+     * @return the delay in milliseconds, or -1 if there is no valid header
+     */
+    static long parseRetryAfter(String value, long currentTimeMillis) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+
+        long delay;
+        try {
+            long seconds = Long.parseLong(value);
+            if (seconds < 0) {
+                return -1;
+            }
+            delay = Math.min(seconds, Constants.UPLOAD_THROTTLE_MAX_DELAY_MILLIS / 1000) * 1000;
+        } catch (NumberFormatException e) {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                Date date = format.parse(value);
+                delay = Math.max(0, date.getTime() - currentTimeMillis);
+            } catch (ParseException pe) {
+                return -1;
+            }
+        }
+        return Math.min(delay, Constants.UPLOAD_THROTTLE_MAX_DELAY_MILLIS);
+    }
+}
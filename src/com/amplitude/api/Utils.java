@@ -88,4 +88,31 @@ public class Utils {
         } catch (JSONException e) {}
         return false;
     }
+
+    /**
+     * Returns the number of bytes the string takes up when encoded as UTF-8, without encoding
+     * it. Unpaired surrogates are counted as 3 bytes.
+     */
+    static int getUtf8Length(String s) {
+        if (s == null) {
+            return 0;
+        }
+
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
 }
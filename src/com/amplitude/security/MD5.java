@@ -94,6 +94,16 @@ public final class MD5 extends MessageDigest implements Cloneable {
     private int padded;
     private byte[] pad;
 
+    /**
+     * Per-thread instances returned by getThreadInstance().
+     */
+    private static final ThreadLocal<MD5> threadInstances = new ThreadLocal<MD5>() {
+        @Override
+        protected MD5 initialValue() {
+            return new MD5();
+        }
+    };
+
     /**
      * Private context that contains the current digest key.
      */
@@ -108,6 +118,18 @@ public final class MD5 extends MessageDigest implements Cloneable {
         init();
     }
 
+    /**
+     * Returns an MD5 instance owned by the calling thread, reset and ready
+     * to use, so that hashing does not allocate a new digest each time.
+     * The instance must not be handed to another thread, and must not be
+     * used after calling getThreadInstance() again on the same thread.
+     */
+    public static MD5 getThreadInstance() {
+        final MD5 md5 = threadInstances.get();
+        md5.engineReset();
+        return md5;
+    }
+
     /**
      * Clones this object.
      */
@@ -170,7 +192,7 @@ public final class MD5 extends MessageDigest implements Cloneable {
             return;
         }
         pad[63] = input;
-        engineUpdate(pad, padded);
+        engineUpdate(pad, 0);
         padded = 0;
     }
 
@@ -229,6 +251,74 @@ public final class MD5 extends MessageDigest implements Cloneable {
         throw new ArrayIndexOutOfBoundsException(offset);
     }
 
+    /**
+     * Updates the digest using the UTF-8 encoding of the specified
+     * characters, as String.getBytes("UTF-8") would encode them, without
+     * creating the encoded array: the bytes are put straight into the
+     * block being filled.<br/>
+     *
+     * A surrogate pair split between two calls is not joined, so chunks
+     * should end on a character boundary. Unpaired surrogates are encoded
+     * as '?', like String.getBytes does.
+     * @param input  the characters to use for the update.
+     * @modifies  this
+     */
+    public void updateUTF8(final CharSequence input) {
+        updateUTF8(input, 0, input.length());
+    }
+
+    /**
+     * Updates the digest using the UTF-8 encoding of the characters of
+     * input from start (inclusive) to end (exclusive). See
+     * updateUTF8(CharSequence).
+     * @param input  the characters to use for the update.
+     * @param start  the index of the first character to use.
+     * @param end  the index after the last character to use.
+     * @modifies  this
+     */
+    public void updateUTF8(final CharSequence input, int start, final int end) {
+        if (start < 0 || start > end || end > input.length()) {
+            throw new StringIndexOutOfBoundsException(start);
+        }
+        while (start < end) {
+            int c = input.charAt(start++);
+            if (c < 0x80) {
+                putByte(c);
+            } else if (c < 0x800) {
+                putByte(0xC0 | (c >>> 6));
+                putByte(0x80 | (c & 0x3F));
+            } else if (c < 0xD800 || c > 0xDFFF) {
+                putByte(0xE0 | (c >>> 12));
+                putByte(0x80 | ((c >>> 6) & 0x3F));
+                putByte(0x80 | (c & 0x3F));
+            } else if (c <= 0xDBFF && start < end
+                    && Character.isLowSurrogate(input.charAt(start))) {
+                c = Character.toCodePoint((char)c, input.charAt(start++));
+                putByte(0xF0 | (c >>> 18));
+                putByte(0x80 | ((c >>> 12) & 0x3F));
+                putByte(0x80 | ((c >>> 6) & 0x3F));
+                putByte(0x80 | (c & 0x3F));
+            } else {
+                putByte('?');
+            }
+        }
+    }
+
+    /**
+     * Adds one byte to the block being filled, computing the block once it
+     * is complete.
+     * @modifies  this
+     */
+    private void putByte(final int input) {
+        bytes++;
+        final byte[] buf = pad;
+        buf[padded] = (byte)input;
+        if (++padded == 64) {
+            engineUpdate(buf, 0);
+            padded = 0;
+        }
+    }
+
     /**
      * Completes the hash computation by performing final operations
      * such as padding. Computes the final hash and returns the final
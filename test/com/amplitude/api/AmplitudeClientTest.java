@@ -2,6 +2,7 @@ package com.amplitude.api;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.SystemClock;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -16,12 +17,15 @@ import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLooper;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.RecordedRequest;
+import okio.GzipSource;
+import okio.Okio;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertEquals;
@@ -746,7 +750,7 @@ public class AmplitudeClientTest extends BaseTest {
         Shadows.shadowOf(amplitude.logThread.getLooper()).runToEndOfTasks();
         Shadows.shadowOf(amplitude.logThread.getLooper()).runToEndOfTasks();
 
-        event = getLastUnsentEvent();
+        event = getLastUnsentPriorityEvent();
         apiProps = event.optJSONObject("api_properties");
         assertEquals(Constants.AMP_REVENUE_EVENT, event.optString("event_type"));
         assertEquals(Constants.AMP_REVENUE_EVENT, apiProps.optString("special"));
@@ -760,7 +764,7 @@ public class AmplitudeClientTest extends BaseTest {
         Shadows.shadowOf(amplitude.logThread.getLooper()).runToEndOfTasks();
         Shadows.shadowOf(amplitude.logThread.getLooper()).runToEndOfTasks();
 
-        event = getLastUnsentEvent();
+        event = getLastUnsentPriorityEvent();
         apiProps = event.optJSONObject("api_properties");;
         assertEquals(Constants.AMP_REVENUE_EVENT, event.optString("event_type"));
         assertEquals(Constants.AMP_REVENUE_EVENT, apiProps.optString("special"));
@@ -774,7 +778,7 @@ public class AmplitudeClientTest extends BaseTest {
         Shadows.shadowOf(amplitude.logThread.getLooper()).runToEndOfTasks();
         Shadows.shadowOf(amplitude.logThread.getLooper()).runToEndOfTasks();
 
-        event = getLastUnsentEvent();
+        event = getLastUnsentPriorityEvent();
         apiProps = event.optJSONObject("api_properties");
         assertEquals(Constants.AMP_REVENUE_EVENT, event.optString("event_type"));
         assertEquals(Constants.AMP_REVENUE_EVENT, apiProps.optString("special"));
@@ -787,6 +791,59 @@ public class AmplitudeClientTest extends BaseTest {
         assertNotNull(runRequest(amplitude));
     }
 
+    @Test
+    public void testHighPriorityEventsUploadFirst() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        // bulk events wait for the periodic upload, idle does not run delayed tasks
+        for (int i = 0; i < 3; i++) {
+            amplitude.logEvent("bulk" + i);
+        }
+        looper.idle();
+        assertEquals(0, amplitude.uploadBatches.size());
+
+        // a high-priority event is uploaded right away, on its own
+        amplitude.logEvent("purchase", null, null, System.currentTimeMillis(), false, true);
+        looper.idle();
+        assertEquals(3, getUnsentEventCount());
+        assertEquals(1, getUnsentPriorityEventCount());
+        assertEquals(1, amplitude.uploadBatches.size());
+        assertTrue(amplitude.uploadBatches.get(0).priority);
+
+        RecordedRequest request = runRequest(amplitude);
+        JSONArray events = getEventsFromRequest(request);
+        assertEquals(1, events.length());
+        assertEquals("purchase", events.getJSONObject(0).getString("event_type"));
+        looper.idle();
+        assertEquals(0, getUnsentPriorityEventCount());
+        assertEquals(3, getUnsentEventCount());
+        assertEquals(0, amplitude.uploadBatches.size());
+
+        // the bulk events keep their cadence
+        looper.runToEndOfTasks();
+        request = runRequest(amplitude);
+        assertEquals(3, getEventsFromRequest(request).length());
+        looper.runToEndOfTasks();
+        assertEquals(0, getUnsentEventCount());
+    }
+
+    @Test
+    public void testHighPriorityEventsNotEvicted() {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setEventMaxCount(3).setOffline(true);
+
+        amplitude.logRevenueV2(new Revenue().setPrice(9.99));
+        for (int i = 0; i < 10; i++) {
+            amplitude.logEvent("bulk" + i);
+        }
+        looper.runToEndOfTasks();
+        assertEquals(3, getUnsentEventCount());
+        assertEquals(1, getUnsentPriorityEventCount());
+        assertEquals(Constants.AMP_REVENUE_EVENT,
+            getLastUnsentPriorityEvent().optString("event_type"));
+    }
+
     @Test
     public void testLogRevenueV2() throws JSONException {
         ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
@@ -797,7 +854,7 @@ public class AmplitudeClientTest extends BaseTest {
         looper.runToEndOfTasks();
         amplitude.logRevenueV2(new Revenue());
         looper.runToEndOfTasks();
-        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(getUnsentPriorityEventCount(), 0);
 
         // log valid revenue object
         double price = 10.99;
@@ -814,9 +871,10 @@ public class AmplitudeClientTest extends BaseTest {
 
         amplitude.logRevenueV2(revenue);
         looper.runToEndOfTasks();
-        assertEquals(getUnsentEventCount(), 1);
+        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(getUnsentPriorityEventCount(), 1);
 
-        JSONObject event = getLastUnsentEvent();
+        JSONObject event = getLastUnsentPriorityEvent();
         assertEquals(event.optString("event_type"), "revenue_amount");
 
         JSONObject obj = event.optJSONObject("event_properties");
@@ -915,8 +973,58 @@ public class AmplitudeClientTest extends BaseTest {
         assertEquals(server.getRequestCount(), 2);
     }
 
+    private String gunzipBody(RecordedRequest request) throws IOException {
+        return Okio.buffer(new GzipSource(request.getBody())).readUtf8();
+    }
+
     @Test
-    public void testRequestTooLargeBackoffLogic() {
+    public void testUploadCompression() throws IOException, JSONException {
+        amplitude.setUploadCompression(true);
+        RecordedRequest request = sendEvent(amplitude, "test", null);
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+
+        // the checksum matches the uncompressed events
+        String body = gunzipBody(request);
+        JSONArray events = new JSONArray(parseRequest(body).get("e"));
+        assertEquals(1, events.length());
+        assertEquals("test", events.getJSONObject(0).optString("event_type"));
+        assertTrue(body.contains("checksum="));
+        assertEquals(0, getUnsentEventCount());
+    }
+
+    @Test
+    public void testUploadCompressionRejected() throws JSONException {
+        amplitude.setUploadCompression(true);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
+        amplitude.logEvent("test");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        server.enqueue(new MockResponse().setResponseCode(415));
+        httpLooper.runToEndOfTasks();
+        assertEquals(1, getUnsentEventCount());
+        try {
+            RecordedRequest rejected = server.takeRequest(1, SECONDS);
+            assertEquals("gzip", rejected.getHeader("Content-Encoding"));
+        } catch (InterruptedException e) {
+            fail(e.toString());
+        }
+
+        // the batch is resent uncompressed, and so are later uploads
+        looper.runToEndOfTasks();
+        RecordedRequest request = runRequest(amplitude);
+        assertNull(request.getHeader("Content-Encoding"));
+        looper.runToEndOfTasks();
+        assertEquals(0, getUnsentEventCount());
+
+        request = sendEvent(amplitude, "test", null);
+        assertNull(request.getHeader("Content-Encoding"));
+        assertEquals(1, getEventsFromRequest(request).length());
+    }
+
+    @Test
+    public void testRequestTooLargeBackoffLogic() throws InterruptedException {
         amplitude.trackSessionEvents(true);
         Robolectric.getForegroundThreadScheduler().advanceTo(1);
 
@@ -925,7 +1033,7 @@ public class AmplitudeClientTest extends BaseTest {
         looper.runToEndOfTasks();
         assertEquals(getUnsentEventCount(), 0);
 
-        // 413 error force backoff with 2 events --> new upload limit will be 1
+        // 413 error with 2 events --> batch split into 2 batches of 1 event
         amplitude.logEvent("test");
         looper.runToEndOfTasks();
         looper.runToEndOfTasks();
@@ -933,35 +1041,33 @@ public class AmplitudeClientTest extends BaseTest {
         server.enqueue(new MockResponse().setResponseCode(413));
         ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
         httpLooper.runToEndOfTasks();
-
-        // 413 error with upload limit 1 will remove the top (start session) event
-        amplitude.logEvent("test");
-        looper.runToEndOfTasks();
+        assertEquals(2, getEventsFromRequest(server.takeRequest(1, SECONDS)).length());
         looper.runToEndOfTasks();
-        assertEquals(getUnsentEventCount(), 3);
-        server.enqueue(new MockResponse().setResponseCode(413));
-        httpLooper.runToEndOfTasks();
 
-        // verify only start session event removed
-        assertEquals(getUnsentEventCount(), 2);
-        JSONArray events = getUnsentEvents(2);
-        assertEquals(events.optJSONObject(0).optString("event_type"), "test");
-        assertEquals(events.optJSONObject(1).optString("event_type"), "test");
-
-        // upload limit persists until event count below threshold
+        // 413 error with 1 event quarantines the top (start session) event, the other goes out
+        server.enqueue(new MockResponse().setResponseCode(413));
         server.enqueue(new MockResponse().setBody("success"));
-        looper.runToEndOfTasks(); // retry uploading after removing large event
-        httpLooper.runToEndOfTasks(); // send success --> 1 event sent
-        looper.runToEndOfTasks(); // event count below threshold --> disable backoff
+        httpLooper.runToEndOfTasks();
+        JSONArray events = getEventsFromRequest(server.takeRequest(1, SECONDS));
+        assertEquals(1, events.length());
+        assertEquals(AmplitudeClient.START_SESSION_EVENT,
+            events.optJSONObject(0).optString("event_type"));
+        events = getEventsFromRequest(server.takeRequest(1, SECONDS));
+        assertEquals(1, events.length());
+        assertEquals("test", events.optJSONObject(0).optString("event_type"));
         looper.runToEndOfTasks();
-        assertEquals(getUnsentEventCount(), 1);
 
-        // verify backoff disabled - queue 2 more events, see that all get uploaded
+        assertEquals(getUnsentEventCount(), 0);
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context, apiKey);
+        assertEquals(1, dbHelper.getQuarantinedEventCount());
+        assertEquals(1, amplitude.quarantinedEventCount);
+
+        // queue 2 more events, see that all get uploaded
         amplitude.logEvent("test");
         amplitude.logEvent("test");
         looper.runToEndOfTasks();
         looper.runToEndOfTasks();
-        assertEquals(getUnsentEventCount(), 3);
+        assertEquals(getUnsentEventCount(), 2);
         server.enqueue(new MockResponse().setBody("success"));
         httpLooper.runToEndOfTasks();
         looper.runToEndOfTasks();
@@ -969,6 +1075,59 @@ public class AmplitudeClientTest extends BaseTest {
         assertEquals(getUnsentEventCount(), 0);
     }
 
+    @Test
+    public void testRequestTooLargeIsolatesLargeEvent() throws InterruptedException, JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
+        looper.runToEndOfTasks();
+
+        // a successful upload of 4 events shows batches that size are fine
+        for (int i = 0; i < 4; i++) {
+            amplitude.logEvent("small");
+        }
+        looper.runToEndOfTasks();
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+        assertEquals(4, getEventsFromRequest(runRequest(amplitude)).length());
+        looper.runToEndOfTasks();
+        assertEquals(0, getUnsentEventCount());
+
+        JSONObject large = new JSONObject();
+        for (int i = 0; i < 20; i++) {
+            large.put("value" + i, generateStringWithLength(1000, 'l'));
+        }
+        amplitude.logEvent("small");
+        amplitude.logEvent("small");
+        amplitude.logEvent("small");
+        amplitude.logEvent("large", large);
+        amplitude.logEvent("small");
+        amplitude.logEvent("small");
+        looper.runToEndOfTasks();
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+        server.enqueue(new MockResponse().setResponseCode(413));
+        httpLooper.runToEndOfTasks();
+        assertEquals(6, getEventsFromRequest(server.takeRequest(1, SECONDS)).length());
+        looper.runToEndOfTasks();
+
+        // the small events go out in batches known to be fine, the large event on its own
+        server.enqueue(new MockResponse().setBody("success"));
+        server.enqueue(new MockResponse().setResponseCode(413));
+        server.enqueue(new MockResponse().setBody("success"));
+        httpLooper.runToEndOfTasks();
+        assertEquals(3, getEventsFromRequest(server.takeRequest(1, SECONDS)).length());
+        JSONArray events = getEventsFromRequest(server.takeRequest(1, SECONDS));
+        assertEquals(1, events.length());
+        assertEquals("large", events.getJSONObject(0).optString("event_type"));
+        assertEquals(2, getEventsFromRequest(server.takeRequest(1, SECONDS)).length());
+        looper.runToEndOfTasks();
+
+        assertEquals(0, getUnsentEventCount());
+        assertEquals(1, DatabaseHelper.getDatabaseHelper(context, apiKey)
+            .getQuarantinedEventCount());
+        assertEquals(5, server.getRequestCount());
+    }
+
     @Test
     public void testUploadRemainingEvents() {
         long [] timestamps = {1, 2, 3, 4, 5, 6, 7};
@@ -1032,7 +1191,232 @@ public class AmplitudeClientTest extends BaseTest {
     }
 
     @Test
-    public void testBackoffRemoveIdentify() {
+    public void testConcurrentUploads() throws JSONException, InterruptedException {
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context, apiKey);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        amplitude.setUploadConcurrency(2);
+        amplitude.setEventUploadMaxBatchSize(2);
+        amplitude.setEventUploadThreshold(5);
+        amplitude.uploadingCurrently.set(true); // block uploading until we queue up enough events
+        for (int i = 0; i < 4; i++) {
+            amplitude.logEvent(String.format("test%d", i));
+        }
+        looper.runToEndOfTasks();
+        amplitude.uploadingCurrently.set(false);
+        amplitude.logEvent("test4");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        // two batches of 2 in flight, the pipeline is full
+        assertEquals(2, amplitude.uploadBatches.size());
+        assertTrue(amplitude.uploadingCurrently.get());
+        assertEquals(5, dbHelper.getEventCount());
+
+        // the second batch is acknowledged first, only its events are removed
+        ShadowLooper secondLooper = Shadows.shadowOf(amplitude.getUploadThread(1).getLooper());
+        RecordedRequest request = runRequest(amplitude, secondLooper);
+        JSONArray events = getEventsFromRequest(request);
+        assertEquals(2, events.length());
+        assertEquals("test2", events.getJSONObject(0).optString("event_type"));
+        looper.runToEndOfTasks();
+        assertEquals(3, dbHelper.getEventCount());
+        assertEquals("test0", getUnsentEvents(3).getJSONObject(0).optString("event_type"));
+        assertEquals("test4", getUnsentEvents(3).getJSONObject(2).optString("event_type"));
+
+        // the first batch fails, its events are uploaded again with the rest
+        server.enqueue(new MockResponse().setBody("request_db_write_failed"));
+        Shadows.shadowOf(amplitude.httpThread.getLooper()).runToEndOfTasks();
+        assertEquals(2, getEventsFromRequest(server.takeRequest(1, SECONDS)).length());
+        looper.idle();
+        assertEquals(0, amplitude.uploadBatches.size());
+        assertEquals(3, dbHelper.getEventCount());
+
+        looper.runToEndOfTasks(); // retry once the backoff is over
+        assertEquals(2, amplitude.uploadBatches.size());
+        request = runRequest(amplitude);
+        events = getEventsFromRequest(request);
+        assertEquals(2, events.length());
+        assertEquals("test0", events.getJSONObject(0).optString("event_type"));
+        request = runRequest(amplitude, secondLooper);
+        events = getEventsFromRequest(request);
+        assertEquals(1, events.length());
+        assertEquals("test4", events.getJSONObject(0).optString("event_type"));
+        looper.runToEndOfTasks();
+        assertEquals(0, dbHelper.getEventCount());
+    }
+
+    @Test
+    public void testUploadRetryBackoff() throws InterruptedException {
+        amplitude.setUploadRetryDelayMillis(1000, 4000);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
+        looper.runToEndOfTasks();
+
+        // a failed upload schedules a retry
+        amplitude.logEvent("test");
+        looper.runToEndOfTasks();
+        server.enqueue(new MockResponse().setResponseCode(500));
+        httpLooper.runToEndOfTasks();
+        server.takeRequest(1, SECONDS);
+        looper.idle();
+        UploadRetryScheduler retryScheduler = amplitude.uploadRetryScheduler;
+        assertEquals(1, retryScheduler.getConsecutiveFailures());
+        long delay = retryScheduler.getRetryAtMillis() - SystemClock.uptimeMillis();
+        assertTrue(delay >= 500 && delay <= 1000);
+        assertTrue(retryScheduler.isBackingOff(SystemClock.uptimeMillis()));
+
+        // events logged during the backoff do not trigger uploads, even past the threshold
+        for (int i = 0; i < Constants.EVENT_UPLOAD_THRESHOLD; i++) {
+            amplitude.logEvent("test");
+        }
+        looper.idle();
+        assertEquals(0, amplitude.uploadBatches.size());
+        assertEquals(Constants.EVENT_UPLOAD_THRESHOLD + 1, getUnsentEventCount());
+
+        // the retry fails too, the backoff doubles
+        looper.runToEndOfTasks();
+        assertEquals(1, amplitude.uploadBatches.size());
+        server.enqueue(new MockResponse().setBody("request_db_write_failed"));
+        httpLooper.runToEndOfTasks();
+        server.takeRequest(1, SECONDS);
+        looper.idle();
+        assertEquals(2, retryScheduler.getConsecutiveFailures());
+        delay = retryScheduler.getRetryAtMillis() - SystemClock.uptimeMillis();
+        assertTrue(delay >= 1000 && delay <= 2000);
+
+        // a successful retry ends the backoff
+        looper.runToEndOfTasks();
+        RecordedRequest request = runRequest(amplitude);
+        assertEquals(Constants.EVENT_UPLOAD_THRESHOLD + 1, getEventsFromRequest(request).length());
+        looper.runToEndOfTasks();
+        assertEquals(0, getUnsentEventCount());
+        assertEquals(0, retryScheduler.getConsecutiveFailures());
+        assertEquals(-1, retryScheduler.getRetryAtMillis());
+        assertFalse(retryScheduler.isBackingOff(SystemClock.uptimeMillis()));
+    }
+
+    @Test
+    public void testThrottledUploadWaitsForRetryAfter() throws InterruptedException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
+        looper.runToEndOfTasks();
+
+        amplitude.logEvent("test");
+        looper.runToEndOfTasks();
+        server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "30"));
+        httpLooper.runToEndOfTasks();
+        server.takeRequest(1, SECONDS);
+        looper.idle();
+        UploadRetryScheduler retryScheduler = amplitude.uploadRetryScheduler;
+        assertEquals(1, retryScheduler.getThrottledCount());
+        long delay = retryScheduler.getNotBeforeMillis() - SystemClock.uptimeMillis();
+        assertTrue(delay >= 30000 && delay <= 33000);
+
+        // explicit uploads respect the deadline too
+        amplitude.uploadEvents();
+        looper.idle();
+        assertEquals(0, amplitude.uploadBatches.size());
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, getUnsentEventCount());
+
+        // a 503 without Retry-After backs off like a failure
+        looper.runToEndOfTasks();
+        assertEquals(1, amplitude.uploadBatches.size());
+        server.enqueue(new MockResponse().setResponseCode(503));
+        httpLooper.runToEndOfTasks();
+        server.takeRequest(1, SECONDS);
+        looper.idle();
+        assertEquals(2, retryScheduler.getThrottledCount());
+        assertTrue(retryScheduler.isThrottled(SystemClock.uptimeMillis()));
+
+        looper.runToEndOfTasks();
+        RecordedRequest request = runRequest(amplitude);
+        assertEquals(1, getEventsFromRequest(request).length());
+        looper.runToEndOfTasks();
+        assertEquals(0, getUnsentEventCount());
+    }
+
+    @Test
+    public void testFlushDrainsBacklog() {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        amplitude.setEventUploadMaxBatchSize(2);
+
+        for (int i = 0; i < 5; i++) {
+            amplitude.logEvent("test" + i);
+        }
+        looper.idle();
+        final long[] result = new long[] { -1, -1, -1 };
+        amplitude.flush(10000, new FlushCallback() {
+            @Override
+            public void onFlushComplete(long sentCount, long failedCount, long remainingCount) {
+                result[0] = sentCount;
+                result[1] = failedCount;
+                result[2] = remainingCount;
+            }
+        });
+
+        // one batch at a time, until none are left
+        looper.idle();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, amplitude.uploadBatches.size());
+            assertEquals(-1, result[0]);
+            runRequest(amplitude);
+            looper.idle();
+        }
+        assertEquals(0, amplitude.uploadBatches.size());
+        assertEquals(0, getUnsentEventCount());
+        assertEquals(5, result[0]);
+        assertEquals(0, result[1]);
+        assertEquals(0, result[2]);
+    }
+
+    @Test
+    public void testFlushEndsWhenUploadsStop() throws InterruptedException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
+        looper.runToEndOfTasks();
+        final long[] result = new long[3];
+        FlushCallback callback = new FlushCallback() {
+            @Override
+            public void onFlushComplete(long sentCount, long failedCount, long remainingCount) {
+                result[0] = sentCount;
+                result[1] = failedCount;
+                result[2] = remainingCount;
+            }
+        };
+
+        // nothing is sent while offline
+        amplitude.setOffline(true);
+        amplitude.logEvent("test1");
+        amplitude.logEvent("test2");
+        amplitude.flush(10000, callback);
+        looper.idle();
+        assertEquals(0, server.getRequestCount());
+        assertEquals(2, result[2]);
+
+        // the retry of a failed upload is due after the timeout
+        amplitude.setOffline(false);
+        looper.idle();
+        Arrays.fill(result, -1);
+        amplitude.flush(500, callback);
+        looper.idle();
+        assertEquals(1, amplitude.uploadBatches.size());
+        server.enqueue(new MockResponse().setResponseCode(500));
+        httpLooper.runToEndOfTasks();
+        server.takeRequest(1, SECONDS);
+        looper.idle();
+        assertTrue(amplitude.uploadRetryScheduler.isBackingOff(SystemClock.uptimeMillis()));
+        assertTrue(amplitude.flushes.isEmpty());
+        assertEquals(0, result[0]);
+        assertEquals(0, result[1]);
+        assertEquals(2, result[2]);
+    }
+
+    @Test
+    public void testBackoffRemoveIdentify() throws InterruptedException {
         long [] timestamps = {1, 1, 2, 3, 4, 5};
         clock.setTimestamps(timestamps);
         Robolectric.getForegroundThreadScheduler().advanceTo(1);
@@ -1042,7 +1426,7 @@ public class AmplitudeClientTest extends BaseTest {
         assertEquals(getUnsentEventCount(), 0);
         assertEquals(getUnsentIdentifyCount(), 0);
 
-        // 413 error force backoff with 2 events --> new upload limit will be 1
+        // 413 error with 2 events --> batch split into 2 batches of 1 event
         amplitude.identify(new Identify().add("photo_count", 1));
         amplitude.logEvent("test1");
         looper.runToEndOfTasks();
@@ -1054,15 +1438,19 @@ public class AmplitudeClientTest extends BaseTest {
         server.enqueue(new MockResponse().setResponseCode(413));
         ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
         httpLooper.runToEndOfTasks();
+        server.takeRequest(1, SECONDS);
+        looper.runToEndOfTasks();
 
-        // 413 error with upload limit 1 will remove the top identify
+        // 413 error with 1 event quarantines the identify
         amplitude.logEvent("test2");
         looper.runToEndOfTasks();
         looper.runToEndOfTasks();
         assertEquals(getUnsentEventCount(), 2);
         assertEquals(getUnsentIdentifyCount(), 1);
         server.enqueue(new MockResponse().setResponseCode(413));
+        server.enqueue(new MockResponse().setResponseCode(500));
         httpLooper.runToEndOfTasks();
+        looper.runToEndOfTasks();
 
         // verify only identify removed
         assertEquals(getUnsentEventCount(), 2);
@@ -1070,6 +1458,8 @@ public class AmplitudeClientTest extends BaseTest {
         JSONArray events = getUnsentEvents(2);
         assertEquals(events.optJSONObject(0).optString("event_type"), "test1");
         assertEquals(events.optJSONObject(1).optString("event_type"), "test2");
+        assertEquals(1, DatabaseHelper.getDatabaseHelper(context, apiKey)
+            .getQuarantinedEventCount());
     }
 
     @Test
@@ -1250,6 +1640,98 @@ public class AmplitudeClientTest extends BaseTest {
         assertEquals(getUnsentEventCount(), eventMaxCount - (eventMaxCount/10) + 1);
     }
 
+    @Test
+    public void testTruncateEventsQueuesByBytes() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setOffline(true);
+        amplitude.logEvent("test");
+        looper.runToEndOfTasks();
+        long eventBytes = amplitude.getUnsentEventBytes();
+        assertTrue(eventBytes > 0);
+
+        // room for about 10 events, trimmed back to 9 once exceeded
+        amplitude.setEventMaxBytes(eventBytes * 10 + eventBytes / 2);
+        for (int i = 0; i < 10; i++) {
+            amplitude.logEvent("test");
+        }
+        looper.runToEndOfTasks();
+        assertTrue(getUnsentEventCount() < 11);
+        assertTrue(amplitude.getUnsentEventBytes() <= eventBytes * 10 + eventBytes / 2);
+        assertEquals(
+            DatabaseHelper.getDatabaseHelper(context, apiKey).getEventBytes(),
+            amplitude.getUnsentEventBytes()
+        );
+
+        // the oldest events were dropped
+        JSONArray events = getUnsentEvents((int) getUnsentEventCount());
+        assertTrue(events.getJSONObject(0).getLong("event_id") > 1);
+        assertEquals(11, getLastUnsentEvent().getLong("event_id"));
+    }
+
+    @Test
+    public void testUnsentEventBytesAfterUpload() {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        amplitude.logEvent("test");
+        looper.idle();
+        assertTrue(amplitude.getUnsentEventBytes() > 0);
+
+        looper.runToEndOfTasks();
+        assertNotNull(runRequest(amplitude));
+        looper.runToEndOfTasks();
+        assertEquals(0, getUnsentEventCount());
+        assertEquals(0, amplitude.getUnsentEventBytes());
+    }
+
+    @Test
+    public void testEventCompression() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setOffline(true);
+        amplitude.logEvent("test_plain");
+        looper.runToEndOfTasks();
+        long plainBytes = amplitude.getUnsentEventBytes();
+
+        amplitude.setEventCompression(true);
+        looper.runToEndOfTasks();
+        assertTrue(DatabaseHelper.getDatabaseHelper(context, apiKey).isEventCompression());
+        amplitude.logEvent("test_compressed");
+        looper.runToEndOfTasks();
+        assertTrue(amplitude.getUnsentEventBytes() - plainBytes < plainBytes / 2);
+
+        JSONArray events = getUnsentEvents(2);
+        assertEquals("test_plain", events.getJSONObject(0).getString("event_type"));
+        assertEquals("test_compressed", events.getJSONObject(1).getString("event_type"));
+        assertEquals(2, events.getJSONObject(1).getLong("event_id"));
+    }
+
+    @Test
+    public void testEventContextFollowsIds() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setOffline(true);
+        amplitude.logEvent("test_before", new JSONObject().put("key", "value"));
+        looper.runToEndOfTasks();
+        amplitude.setUserId("test_user");
+        amplitude.setDeviceId("test_device");
+        looper.runToEndOfTasks();
+        amplitude.logEvent("test_after");
+        looper.runToEndOfTasks();
+
+        JSONArray events = getUnsentEvents(2);
+        JSONObject before = events.getJSONObject(0);
+        assertEquals(JSONObject.NULL, before.get("user_id"));
+        assertEquals("value", before.getJSONObject("event_properties").getString("key"));
+        assertEquals(Constants.PLATFORM, before.getString("platform"));
+        assertEquals(Constants.LIBRARY, before.getJSONObject("library").getString("name"));
+        assertEquals(Constants.VERSION, before.getJSONObject("library").getString("version"));
+
+        JSONObject after = events.getJSONObject(1);
+        assertEquals("test_after", after.getString("event_type"));
+        assertEquals("test_user", after.getString("user_id"));
+        assertEquals("test_device", after.getString("device_id"));
+        assertEquals(before.getString("os_name"), after.getString("os_name"));
+        assertEquals(before.getLong("sequence_number") + 1, after.getLong("sequence_number"));
+    }
+
     @Test
     public void testTruncateEventsQueuesWithOneEvent() {
         DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context, apiKey);
@@ -1509,4 +1991,89 @@ public class AmplitudeClientTest extends BaseTest {
         assertEquals(events.length(), 1);
         assertEquals(events.optJSONObject(0).optString("event_type"), "test event");
     }
+
+    @Test
+    public void testBatchedEventInserts() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        amplitude.setEventInsertMaxBatchSize(10);
+        amplitude.setEventInsertMaxDelayMillis(1000);
+        amplitude.setEventUploadThreshold(100);
+        looper.runToEndOfTasks();
+
+        // events are held back until a full batch is pending or the delay has passed,
+        // idle after each event since the paused looper does not keep posting order
+        for (int i = 0; i < 5; i++) {
+            amplitude.logEvent("test_batch" + i);
+            looper.idle();
+        }
+        assertEquals(0, getUnsentEventCount());
+
+        for (int i = 5; i < 25; i++) {
+            amplitude.logEvent("test_batch" + i);
+            looper.idle();
+        }
+        amplitude.identify(new Identify().set("batch", true));
+        looper.idle();
+        assertEquals(20, getUnsentEventCount());
+        assertEquals(0, getUnsentIdentifyCount());
+
+        looper.runToEndOfTasks();
+        assertEquals(25, getUnsentEventCount());
+        assertEquals(1, getUnsentIdentifyCount());
+        assertEquals(25, amplitude.lastEventId);
+        assertEquals(1, amplitude.lastIdentifyId);
+
+        JSONArray events = getUnsentEvents(25);
+        for (int i = 0; i < 25; i++) {
+            assertEquals("test_batch" + i, events.getJSONObject(i).getString("event_type"));
+            assertEquals(i + 1, events.getJSONObject(i).getLong("event_id"));
+        }
+
+        // the periodic upload scheduled by the batches picks up everything written so far
+        RecordedRequest request = runRequest(amplitude);
+        assertEquals(26, getEventsFromRequest(request).length());
+        looper.runToEndOfTasks();
+
+        // pending events are written before an upload reads the table
+        amplitude.logEvent("test_batch25");
+        looper.idle();
+        amplitude.uploadEvents();
+        looper.idle();
+        request = runRequest(amplitude);
+        JSONArray uploaded = getEventsFromRequest(request);
+        assertEquals(1, uploaded.length());
+        assertEquals("test_batch25", uploaded.getJSONObject(0).getString("event_type"));
+    }
+
+    @Test
+    public void testMetadataWriteBack() {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        amplitude.setMetadataWriteBack(true);
+        looper.runToEndOfTasks();
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context, apiKey);
+        // a second helper on the same file only sees what was committed to disk
+        DatabaseHelper disk = new DatabaseHelper(context, apiKey);
+        assertTrue(dbHelper.isWriteBack());
+
+        // the event's metadata is committed together with the event
+        amplitude.logEvent("test_write_back");
+        looper.idle();
+        assertEquals(1L, (long) disk.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY));
+        assertEquals(1L, (long) disk.getLongValue(AmplitudeClient.LAST_EVENT_ID_KEY));
+
+        // values set after the last event are committed by the timed flush
+        amplitude.setUserId("test_write_back_user");
+        looper.idle();
+        assertNull(disk.getValue(AmplitudeClient.USER_ID_KEY));
+        looper.runToEndOfTasks();
+        assertEquals("test_write_back_user", disk.getValue(AmplitudeClient.USER_ID_KEY));
+
+        // and when the app goes to the background
+        amplitude.onExitForeground(1000L);
+        looper.idle();
+        assertFalse(dbHelper.hasPendingValues());
+        assertEquals(1000L, (long) disk.getLongValue(AmplitudeClient.LAST_EVENT_TIME_KEY));
+    }
 }
@@ -129,8 +129,11 @@ public class BaseTest {
     }
 
     public RecordedRequest runRequest(AmplitudeClient amplitude) {
+        return runRequest(amplitude, Shadows.shadowOf(amplitude.httpThread.getLooper()));
+    }
+
+    public RecordedRequest runRequest(AmplitudeClient amplitude, ShadowLooper httplooper) {
         server.enqueue(new MockResponse().setBody("success"));
-        ShadowLooper httplooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
         httplooper.runToEndOfTasks();
 
         try {
@@ -166,6 +169,10 @@ public class BaseTest {
         return DatabaseHelper.getDatabaseHelper(context, apiKey).getIdentifyCount();
     }
 
+    public long getUnsentPriorityEventCount() {
+        return DatabaseHelper.getDatabaseHelper(context, apiKey).getPriorityEventCount();
+    }
+
 
     public JSONObject getLastUnsentEvent() {
         JSONArray events = getUnsentEventsFromTable(DatabaseHelper.EVENT_TABLE_NAME, 1);
@@ -177,6 +184,11 @@ public class BaseTest {
         return (JSONObject)events.opt(events.length() - 1);
     }
 
+    public JSONObject getLastUnsentPriorityEvent() {
+        JSONArray events = getUnsentEventsFromTable(DatabaseHelper.PRIORITY_TABLE_NAME, 1);
+        return (JSONObject)events.opt(events.length() - 1);
+    }
+
     public JSONArray getUnsentEvents(int limit) {
         return getUnsentEventsFromTable(DatabaseHelper.EVENT_TABLE_NAME, limit);
     }
@@ -188,8 +200,13 @@ public class BaseTest {
     public JSONArray getUnsentEventsFromTable(String table, int limit) {
         try {
             DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context, apiKey);
-            List<JSONObject> events = table.equals(DatabaseHelper.IDENTIFY_TABLE_NAME) ?
-                    dbHelper.getIdentifys(-1, -1) : dbHelper.getEvents(-1, -1);
+            List<JSONObject> events;
+            if (table.equals(DatabaseHelper.PRIORITY_TABLE_NAME)) {
+                events = StoredEvent.toJSONObjects(dbHelper.getPriorityEvents(-1, -1, -1, 0).second);
+            } else {
+                events = table.equals(DatabaseHelper.IDENTIFY_TABLE_NAME) ?
+                        dbHelper.getIdentifys(-1, -1) : dbHelper.getEvents(-1, -1);
+            }
 
             JSONArray out = new JSONArray();
             int start = Math.max(limit - events.size(), 0);
@@ -0,0 +1,24 @@
+package com.amplitude.api;
+
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Runs the event store conformance tests against the SDK's own SQLite database.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DatabaseEventStoreTest extends EventStoreConformance {
+
+    @Override
+    protected EventStore createStore() {
+        return DatabaseHelper.getDatabaseHelper(context, apiKey);
+    }
+
+    @Override
+    protected EventStore reopenStore(EventStore store) {
+        store.close();
+        return new DatabaseHelper(context, apiKey);
+    }
+}
@@ -0,0 +1,72 @@
+package com.amplitude.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+    Throughput benchmark for DatabaseHelper storage modes. Not part of the regular test run
+    (the ant test target only picks up *Test classes), run it directly with JUnit.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DatabaseHelperBenchmark extends BaseTest {
+
+    private static final int WARMUP_EVENTS = 200;
+    private static final int EVENTS = 2000;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void benchmarkPersistentConnection() throws JSONException {
+        double transientRate = measure("transient", false);
+        double persistentRate = measure("persistent", true);
+        System.out.println(String.format(
+            "DatabaseHelper: transient %.0f events/s, persistent %.0f events/s (%.1fx)",
+            transientRate, persistentRate, persistentRate / transientRate
+        ));
+    }
+
+    // replays the database calls AmplitudeClient.saveEvent makes for every logged event
+    private double measure(String key, boolean persistent) throws JSONException {
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context, key);
+        dbHelper.setPersistentConnection(persistent);
+        String event = new JSONObject().put("event_type", "benchmark").toString();
+
+        logEvents(dbHelper, event, WARMUP_EVENTS);
+        long start = System.nanoTime();
+        logEvents(dbHelper, event, EVENTS);
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(WARMUP_EVENTS + EVENTS, dbHelper.getEventCount());
+        dbHelper.closeConnection();
+        return EVENTS / (elapsed / 1e9);
+    }
+
+    private void logEvents(DatabaseHelper dbHelper, String event, int count) {
+        for (int i = 0; i < count; i++) {
+            dbHelper.insertOrReplaceKeyLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY, (long) i);
+            dbHelper.insertOrReplaceKeyLongValue(AmplitudeClient.LAST_EVENT_TIME_KEY, (long) i);
+            long id = dbHelper.addEvent(event);
+            dbHelper.insertOrReplaceKeyLongValue(AmplitudeClient.LAST_EVENT_ID_KEY, id);
+            dbHelper.getEventCount();
+            dbHelper.getIdentifyCount();
+            dbHelper.getTotalEventCount();
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package com.amplitude.api;
 
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Pair;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
@@ -10,10 +15,16 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -489,5 +500,666 @@ public class DatabaseHelperTest extends BaseTest {
         List<JSONObject> events = dbInstance.getEvents(-1, -1);
         assertTrue(events.isEmpty());
     }
-}
 
+    @Test
+    public void testPersistentConnection() {
+        dbInstance.setPersistentConnection(true);
+        assertTrue(dbInstance.isPersistentConnection());
+
+        assertEquals(1, addEvent("test_persistent_1"));
+        SQLiteDatabase db = dbInstance.getReadableDatabase();
+        assertEquals(2, addEvent("test_persistent_2"));
+        insertOrReplaceKeyLongValue("test_key", 1L);
+        assertEquals(2, dbInstance.getEventCount());
+
+        // the same handle is reused across calls
+        assertTrue(db.isOpen());
+        assertSame(db, dbInstance.getReadableDatabase());
+
+        // explicit close releases the handle, next call reopens transparently
+        dbInstance.closeConnection();
+        assertFalse(db.isOpen());
+        assertEquals(3, addEvent("test_persistent_3"));
+        assertEquals(3, dbInstance.getEventCount());
+        assertEquals(1L, (long) getLongValue("test_key"));
+
+        dbInstance.setPersistentConnection(false);
+        assertFalse(dbInstance.isPersistentConnection());
+        assertEquals(4, addEvent("test_persistent_4"));
+    }
+
+    @Test
+    public void testPersistentConnectionRecoversFromClosedHandle() {
+        dbInstance.setPersistentConnection(true);
+        assertEquals(1, addEvent("test_recover_1"));
+
+        // simulate the handle going bad underneath the helper
+        dbInstance.getWritableDatabase().close();
+
+        assertEquals(2, addEvent("test_recover_2"));
+        assertEquals(2, dbInstance.getEventCount());
+    }
+
+    @Test
+    public void testAddEvents() throws JSONException {
+        assertEquals(-1, dbInstance.addEvents(new ArrayList<String>()));
+        assertEquals(1, addEvent("test_add_events_0"));
+
+        List<String> batch = new ArrayList<String>();
+        for (int i = 1; i <= 3; i++) {
+            batch.add(new JSONObject().put("event_type", "test_add_events_" + i).toString());
+        }
+        assertEquals(4, dbInstance.addEvents(batch));
+        assertEquals(4, dbInstance.getEventCount());
+
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(i + 1, events.get(i).getLong("event_id"));
+            assertEquals("test_add_events_" + i, events.get(i).getString("event_type"));
+        }
+
+        assertEquals(2, dbInstance.addIdentifys(batch.subList(0, 2)));
+        assertEquals(2, dbInstance.getIdentifyCount());
+        assertEquals(4, dbInstance.getEventCount());
+    }
+
+    @Test
+    public void testCachedEventCounts() {
+        // rows written behind the helper's back are picked up when the count is first read
+        dbInstance.getWritableDatabase().execSQL(
+                "INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME + " (event) VALUES ('a')");
+        dbInstance.getWritableDatabase().execSQL(
+                "INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME + " (event) VALUES ('b')");
+        assertEquals(2, dbInstance.getEventCount());
+        assertEquals(0, dbInstance.getIdentifyCount());
+
+        // after that the count is kept up to date in memory
+        dbInstance.getWritableDatabase().execSQL(
+                "INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME + " (event) VALUES ('c')");
+        assertEquals(2, dbInstance.getEventCount());
+        assertEquals(4, addEvent("test_cached_count"));
+        assertEquals(1, addIdentify("test_cached_count"));
+        assertEquals(3, dbInstance.getEventCount());
+        assertEquals(4, dbInstance.getTotalEventCount());
+
+        // deletes adjust by the number of rows actually removed
+        dbInstance.removeEvents(2);
+        assertEquals(1, dbInstance.getEventCount());
+        dbInstance.removeEvent(2);
+        assertEquals(1, dbInstance.getEventCount());
+        dbInstance.removeIdentifys(1);
+        assertEquals(0, dbInstance.getIdentifyCount());
+
+        // a failed write re-validates the counts from disk, picking up the row added above
+        dbInstance.getWritableDatabase().execSQL(
+                "DROP TABLE IF EXISTS " + DatabaseHelper.IDENTIFY_TABLE_NAME);
+        dbInstance.removeIdentifys(10);
+        assertEquals(2, dbInstance.getEventCount());
+        assertEquals(5, addEvent("test_cached_count"));
+        assertEquals(3, dbInstance.getEventCount());
+    }
+
+    @Test
+    public void testWriteBack() {
+        // a second helper on the same file only sees what was committed to disk
+        DatabaseHelper disk = new DatabaseHelper(context, apiKey);
+        dbInstance.setWriteBack(true);
+
+        assertEquals(0, insertOrReplaceKeyLongValue("test_seq", 1L));
+        assertEquals(0, insertOrReplaceKeyLongValue("test_seq", 2L));
+        assertEquals(0, insertOrReplaceKeyValue("test_key", "test_value"));
+        assertTrue(dbInstance.hasPendingValues());
+        assertEquals(2L, (long) getLongValue("test_seq"));
+        assertEquals("test_value", getValue("test_key"));
+        assertNull(disk.getLongValue("test_seq"));
+        assertNull(disk.getValue("test_key"));
+
+        // the event insert commits the staged values in the same transaction
+        assertEquals(1, addEvent("test_write_back"));
+        assertFalse(dbInstance.hasPendingValues());
+        assertEquals(2L, (long) disk.getLongValue("test_seq"));
+        assertEquals("test_value", disk.getValue("test_key"));
+
+        // deletes are staged too
+        insertOrReplaceKeyValue("test_key", null);
+        insertOrReplaceKeyLongValue("test_seq", 3L);
+        assertNull(getValue("test_key"));
+        assertEquals("test_value", disk.getValue("test_key"));
+        dbInstance.flushPendingValues();
+        assertNull(disk.getValue("test_key"));
+        assertEquals(3L, (long) disk.getLongValue("test_seq"));
+
+        // disabling write-back flushes and goes back to writing through
+        insertOrReplaceKeyLongValue("test_seq", 4L);
+        dbInstance.setWriteBack(false);
+        assertEquals(4L, (long) disk.getLongValue("test_seq"));
+        assertTrue(insertOrReplaceKeyLongValue("test_seq", 5L) > 0);
+        assertEquals(5L, (long) disk.getLongValue("test_seq"));
+    }
+
+    @Test
+    public void testWriteBackScheduler() {
+        final int[] scheduled = {0};
+        dbInstance.setWriteBackScheduler(new Runnable() {
+            @Override
+            public void run() {
+                scheduled[0]++;
+            }
+        });
+        dbInstance.setWriteBack(true);
+
+        // only the first staged value after a flush schedules one
+        insertOrReplaceKeyLongValue("test_seq", 1L);
+        insertOrReplaceKeyLongValue("test_time", 1L);
+        assertEquals(1, scheduled[0]);
+        dbInstance.flushPendingValues();
+        insertOrReplaceKeyLongValue("test_seq", 2L);
+        assertEquals(2, scheduled[0]);
+    }
+
+    @Test
+    public void testAddEventWithMetadata() {
+        Map<String, Long> metadata = new HashMap<String, Long>();
+        metadata.put(AmplitudeClient.SEQUENCE_NUMBER_KEY, 5L);
+        metadata.put(AmplitudeClient.LAST_EVENT_TIME_KEY, 1000L);
+        assertEquals(1, dbInstance.addEventWithMetadata(
+                "{\"event_type\":\"test\"}", AmplitudeClient.LAST_EVENT_ID_KEY, metadata));
+        assertEquals(1, dbInstance.getEventCount());
+        assertEquals(1L, (long) getLongValue(AmplitudeClient.LAST_EVENT_ID_KEY));
+        assertEquals(5L, (long) getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY));
+        assertEquals(1000L, (long) getLongValue(AmplitudeClient.LAST_EVENT_TIME_KEY));
+
+        List<String> identifys = new ArrayList<String>();
+        identifys.add("{\"event_type\":\"$identify\"}");
+        identifys.add("{\"event_type\":\"$identify\"}");
+        metadata.put(AmplitudeClient.SEQUENCE_NUMBER_KEY, 7L);
+        assertEquals(2, dbInstance.addIdentifysWithMetadata(
+                identifys, AmplitudeClient.LAST_IDENTIFY_ID_KEY, metadata));
+        assertEquals(2L, (long) getLongValue(AmplitudeClient.LAST_IDENTIFY_ID_KEY));
+        assertEquals(7L, (long) getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY));
+
+        // if the metadata cannot be written the event is not kept either
+        dbInstance.getWritableDatabase().execSQL(
+                "DROP TABLE IF EXISTS " + DatabaseHelper.LONG_STORE_TABLE_NAME);
+        assertEquals(-1, dbInstance.addEventWithMetadata(
+                "{\"event_type\":\"test\"}", AmplitudeClient.LAST_EVENT_ID_KEY, metadata));
+        assertTrue(dbInstance.getEventCount() < 2);
+    }
+
+    @Test
+    public void testAddEventsAndIdentifysWithMetadata() {
+        Map<String, Long> metadata = new HashMap<String, Long>();
+        metadata.put(AmplitudeClient.SEQUENCE_NUMBER_KEY, 3L);
+        List<String> events = Arrays.asList(
+                "{\"event_type\":\"test\"}", "{\"event_type\":\"test\"}");
+        List<String> identifys = Arrays.asList("{\"event_type\":\"$identify\"}");
+        Pair<Long, Long> ids = dbInstance.addEventsAndIdentifysWithMetadata(
+                events, AmplitudeClient.LAST_EVENT_ID_KEY,
+                identifys, AmplitudeClient.LAST_IDENTIFY_ID_KEY, metadata);
+        assertEquals(2L, (long) ids.first);
+        assertEquals(1L, (long) ids.second);
+        assertEquals(2, dbInstance.getEventCount());
+        assertEquals(1, dbInstance.getIdentifyCount());
+        assertEquals(2L, (long) getLongValue(AmplitudeClient.LAST_EVENT_ID_KEY));
+        assertEquals(1L, (long) getLongValue(AmplitudeClient.LAST_IDENTIFY_ID_KEY));
+        assertEquals(3L, (long) getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY));
+
+        // either list may be empty, the key of the other queue is left alone
+        ids = dbInstance.addEventsAndIdentifysWithMetadata(
+                new ArrayList<String>(), AmplitudeClient.LAST_EVENT_ID_KEY,
+                identifys, AmplitudeClient.LAST_IDENTIFY_ID_KEY, null);
+        assertEquals(-1L, (long) ids.first);
+        assertEquals(2L, (long) ids.second);
+        assertEquals(2L, (long) getLongValue(AmplitudeClient.LAST_EVENT_ID_KEY));
+
+        // if the identifys cannot be written the events are not kept either
+        dbInstance.getWritableDatabase().execSQL(
+                "DROP TABLE IF EXISTS " + DatabaseHelper.IDENTIFY_TABLE_NAME);
+        ids = dbInstance.addEventsAndIdentifysWithMetadata(
+                events, AmplitudeClient.LAST_EVENT_ID_KEY,
+                identifys, AmplitudeClient.LAST_IDENTIFY_ID_KEY, metadata);
+        assertEquals(-1L, (long) ids.first);
+        assertTrue(dbInstance.getEventCount() <= 2);
+    }
+
+    @Test
+    public void testTrimEvents() throws JSONException {
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i, addEvent("test_trim_" + i));
+        }
+        dbInstance.removeEvent(3);
+
+        // nothing to do while at or under the high-water mark
+        assertEquals(0, dbInstance.trimEvents(9, 5));
+        assertEquals(9, dbInstance.getEventCount());
+
+        // drops the oldest events down to the low-water mark
+        assertEquals(4, dbInstance.trimEvents(8, 5));
+        assertEquals(5, dbInstance.getEventCount());
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        assertEquals(6, events.get(0).getLong("event_id"));
+        assertEquals(10, events.get(4).getLong("event_id"));
+
+        assertEquals(1, addIdentify("test_trim"));
+        assertEquals(2, addIdentify("test_trim"));
+        assertEquals(1, dbInstance.trimIdentifys(1, 1));
+        assertEquals(2, getLastIdentify().getLong("event_id"));
+        assertEquals(1, dbInstance.trimIdentifys(0, 0));
+        assertEquals(0, dbInstance.getIdentifyCount());
+    }
+
+    @Test
+    public void testUpgradeVersion3ToVersion4() {
+        // recreate the v3 tables, which have no size column
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.EVENT_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.IDENTIFY_TABLE_NAME);
+        db.execSQL("CREATE TABLE " + DatabaseHelper.EVENT_TABLE_NAME
+                + " (id INTEGER PRIMARY KEY AUTOINCREMENT, event TEXT);");
+        db.execSQL("CREATE TABLE " + DatabaseHelper.IDENTIFY_TABLE_NAME
+                + " (id INTEGER PRIMARY KEY AUTOINCREMENT, event TEXT);");
+        db.execSQL("INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME
+                + " (event) VALUES ('{\"event_type\":\"caf\u00e9\"}')");
+        db.execSQL("INSERT INTO " + DatabaseHelper.IDENTIFY_TABLE_NAME
+                + " (event) VALUES ('{}')");
+
+        dbInstance.onUpgrade(db, 3, Constants.DATABASE_VERSION);
+        // the sizes of existing rows are backfilled in bytes, not characters
+        assertEquals(22, dbInstance.getEventBytes());
+        assertEquals(2, dbInstance.getIdentifyBytes());
+
+        assertEquals(2, addEvent("test_upgrade"));
+        assertEquals(22 + 29, dbInstance.getEventBytes());
+        assertEquals(22 + 29 + 2, dbInstance.getTotalEventBytes());
+    }
+
+    @Test
+    public void testTrimEventsToBytes() throws JSONException {
+        // every event is {"event_type":"test_trim_N"}, 28 bytes
+        for (int i = 1; i <= 9; i++) {
+            addEvent("test_trim_" + i);
+        }
+        assertEquals(9 * 28, dbInstance.getEventBytes());
+
+        assertEquals(0, dbInstance.trimEventsToBytes(9 * 28, 100));
+        assertEquals(6, dbInstance.trimEventsToBytes(200, 100));
+        assertEquals(3, dbInstance.getEventCount());
+        assertEquals(3 * 28, dbInstance.getEventBytes());
+        assertEquals(7, dbInstance.getEvents(-1, -1).get(0).getLong("event_id"));
+
+        // the byte total is re-read after deletes that do not know the size of the rows
+        dbInstance.removeEvent(7);
+        assertEquals(2 * 28, dbInstance.getEventBytes());
+        dbInstance.removeEvents(9);
+        assertEquals(0, dbInstance.getEventBytes());
+    }
+
+    @Test
+    public void testCompressedEvents() throws JSONException {
+        assertEquals(1, addEvent("test_plain"));
+        dbInstance.setCompressionDictionary("{\"event_type\":\"test_compressed\"}");
+        dbInstance.setEventCompression(true);
+        assertEquals(2, addEvent("test_compressed"));
+        assertEquals(4, dbInstance.addEvents(Arrays.asList(
+                "{\"event_type\":\"test_compressed\"}", "{\"event_type\":\"test_compressed\"}"
+        )));
+
+        // the stored size is the size of the compressed payload
+        assertTrue(dbInstance.getEventBytes() < 4 * 29);
+
+        // plain and compressed rows are read back alike
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        assertEquals(4, events.size());
+        assertEquals("test_plain", events.get(0).getString("event_type"));
+        for (int i = 1; i < 4; i++) {
+            assertEquals("test_compressed", events.get(i).getString("event_type"));
+            assertEquals(i + 1, events.get(i).getLong("event_id"));
+        }
+
+        dbInstance.setEventCompression(false);
+        assertEquals(5, addEvent("test_plain"));
+        assertEquals(5, dbInstance.getEvents(-1, -1).size());
+    }
+
+    @Test
+    public void testCompressionDictionaryPersisted() throws JSONException {
+        String dictionary = "{\"event_type\":\"test_dictionary\"}";
+        dbInstance.setCompressionDictionary(dictionary);
+        dbInstance.setEventCompression(true);
+        addEvent("test_dictionary");
+        assertEquals(dictionary, dbInstance.getValue(DatabaseHelper.DICTIONARY_KEY_PREFIX
+                + EventCodec.getDictionaryId(EventCodec.toUtf8(dictionary))));
+
+        // a new helper has not seen the dictionary and loads it from the store table
+        DatabaseHelper reopened = new DatabaseHelper(context, apiKey);
+        List<JSONObject> events = reopened.getEvents(-1, -1);
+        assertEquals(1, events.size());
+        assertEquals("test_dictionary", events.get(0).getString("event_type"));
+
+        // without the dictionary the row cannot be decoded and is skipped
+        dbInstance.insertOrReplaceKeyValue(DatabaseHelper.DICTIONARY_KEY_PREFIX
+                + EventCodec.getDictionaryId(EventCodec.toUtf8(dictionary)), null);
+        assertEquals(0, new DatabaseHelper(context, apiKey).getEvents(-1, -1).size());
+    }
+
+    @Test
+    public void testUpgradeVersion4ToVersion5() throws JSONException {
+        // recreate the v4 tables, which have no payload column
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.EVENT_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.IDENTIFY_TABLE_NAME);
+        db.execSQL("CREATE TABLE " + DatabaseHelper.EVENT_TABLE_NAME + " (id INTEGER PRIMARY KEY"
+                + " AUTOINCREMENT, event TEXT, size INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("CREATE TABLE " + DatabaseHelper.IDENTIFY_TABLE_NAME + " (id INTEGER PRIMARY KEY"
+                + " AUTOINCREMENT, event TEXT, size INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME
+                + " (event, size) VALUES ('{\"event_type\":\"test_v4\"}', 24)");
+
+        dbInstance.onUpgrade(db, 4, Constants.DATABASE_VERSION);
+        dbInstance.setEventCompression(true);
+        assertEquals(2, addEvent("test_v5"));
+        assertEquals(1, addIdentify("test_v5"));
+
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        assertEquals(2, events.size());
+        assertEquals("test_v4", events.get(0).getString("event_type"));
+        assertEquals("test_v5", events.get(1).getString("event_type"));
+        assertEquals(1, dbInstance.getIdentifys(-1, -1).size());
+    }
+
+    @Test
+    public void testUpgradeVersion5ToVersion6() throws JSONException {
+        // recreate the v5 tables, which have no sequence number column
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.EVENT_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.IDENTIFY_TABLE_NAME);
+        db.execSQL("CREATE TABLE " + DatabaseHelper.EVENT_TABLE_NAME + " (id INTEGER PRIMARY KEY"
+                + " AUTOINCREMENT, event TEXT, size INTEGER NOT NULL DEFAULT 0, payload BLOB);");
+        db.execSQL("CREATE TABLE " + DatabaseHelper.IDENTIFY_TABLE_NAME + " (id INTEGER PRIMARY KEY"
+                + " AUTOINCREMENT, event TEXT, size INTEGER NOT NULL DEFAULT 0, payload BLOB);");
+        db.execSQL("INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME + " (event, size) VALUES "
+                + "('{\"event_type\":\"test_v5\",\"sequence_number\":7}', 44)");
+
+        dbInstance.onUpgrade(db, 5, 6);
+        dbInstance.addEvent("{\"event_type\":\"test_v6\",\"sequence_number\":8}");
+        dbInstance.addIdentify("{\"event_type\":\"$identify\"}");
+
+        // the old row has no sequence number column value, it is read from the event
+        List<StoredEvent> events = dbInstance.getStoredEvents(-1, -1);
+        assertEquals(2, events.size());
+        assertEquals(7, events.get(0).getSequenceNumber());
+        assertEquals(8, events.get(1).getSequenceNumber());
+        assertFalse(dbInstance.getStoredIdentifys(-1, -1).get(0).hasSequenceNumber());
+        assertEquals(1, events.get(0).toJSONObject().getLong("event_id"));
+    }
+
+    @Test
+    public void testUpgradeVersion6ToVersion7() {
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("INSERT INTO " + DatabaseHelper.IDENTIFY_TABLE_NAME + " (event) VALUES ('"
+                + sequencedEvent("identify_4", 4) + "')");
+
+        dbInstance.onUpgrade(db, 6, 7);
+        assertEquals(4, DatabaseUtils.longForQuery(db, "SELECT sequence_number FROM "
+                + DatabaseHelper.IDENTIFY_TABLE_NAME, null));
+    }
+
+    @Test
+    public void testUpgradeVersion7ToVersion8() {
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.QUARANTINE_TABLE_NAME);
+
+        dbInstance.onUpgrade(db, 7, 8);
+        assertEquals(0, dbInstance.getQuarantinedEventCount());
+        dbInstance.addEvent("{\"event_type\":\"test\"}");
+        assertTrue(dbInstance.quarantineEvent(1, "413"));
+        assertEquals(1, dbInstance.getQuarantinedEventCount());
+    }
+
+    @Test
+    public void testUpgradeVersion8ToVersion9() {
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.PRIORITY_TABLE_NAME);
+
+        dbInstance.onUpgrade(db, 8, 9);
+        assertEquals(0, dbInstance.getPriorityEventCount());
+        dbInstance.addPriorityEventWithMetadata("{\"event_type\":\"test\"}", null, null);
+        assertEquals(1, dbInstance.getPriorityEventCount());
+    }
+
+    private String sequencedEvent(String type, long sequenceNumber) {
+        return "{\"event_type\":\"" + type + "\",\"sequence_number\":" + sequenceNumber + "}";
+    }
+
+    @Test
+    public void testGetMergedEvents() {
+        dbInstance.addEvent("{\"event_type\":\"legacy\"}");
+        dbInstance.addIdentify(sequencedEvent("identify_1", 1));
+        dbInstance.addEvent(sequencedEvent("event_2", 2));
+        dbInstance.addEvent(sequencedEvent("event_3", 3));
+        dbInstance.addIdentify(sequencedEvent("identify_4", 4));
+        dbInstance.addEvent(sequencedEvent("event_5", 5));
+
+        Pair<Pair<Long, Long>, List<StoredEvent>> merged = dbInstance.getMergedEvents(-1, -1, 10);
+        List<StoredEvent> events = merged.second;
+        assertEquals(6, events.size());
+        assertTrue(events.get(0).getEvent().contains("legacy"));
+        for (int i = 1; i < 6; i++) {
+            assertEquals(i, events.get(i).getSequenceNumber());
+        }
+        assertEquals(4, (long) merged.first.first);
+        assertEquals(2, (long) merged.first.second);
+
+        // the limit and the id bounds apply to the merged result
+        merged = dbInstance.getMergedEvents(-1, -1, 3);
+        assertEquals(3, merged.second.size());
+        assertEquals(2, (long) merged.first.first);
+        assertEquals(1, (long) merged.first.second);
+
+        merged = dbInstance.getMergedEvents(3, 0, 10);
+        assertEquals(3, merged.second.size());
+        assertEquals(3, (long) merged.first.first);
+        assertEquals(-1, (long) merged.first.second);
+    }
+
+    @Test
+    public void testGetMergedEventsAfter() {
+        dbInstance.addEvent(sequencedEvent("event_1", 1));
+        dbInstance.addIdentify(sequencedEvent("identify_2", 2));
+        dbInstance.addEvent(sequencedEvent("event_3", 3));
+        dbInstance.addIdentify(sequencedEvent("identify_4", 4));
+        dbInstance.addEvent(sequencedEvent("event_5", 5));
+
+        // the batch after one holding event 1 and identify 1
+        Pair<Pair<Long, Long>, List<StoredEvent>> merged =
+                dbInstance.getMergedEvents(1, -1, 1, -1, 2);
+        assertEquals(2, merged.second.size());
+        assertEquals(3, merged.second.get(0).getSequenceNumber());
+        assertEquals(4, merged.second.get(1).getSequenceNumber());
+        assertEquals(2, (long) merged.first.first);
+        assertEquals(2, (long) merged.first.second);
+    }
+
+    @Test
+    public void testGetMergedEventsMaxBytes() {
+        String event = "{\"event_type\":\"a\"}"; // 18 bytes
+        for (int i = 0; i < 5; i++) {
+            dbInstance.addEvent(event);
+        }
+
+        Pair<Pair<Long, Long>, List<StoredEvent>> merged =
+                dbInstance.getMergedEvents(-1, -1, -1, -1, 10, 40);
+        assertEquals(2, merged.second.size());
+        assertEquals(2, (long) merged.first.first);
+
+        // an event larger than the limit still goes out on its own
+        merged = dbInstance.getMergedEvents(-1, -1, -1, -1, 10, 10);
+        assertEquals(1, merged.second.size());
+        assertEquals(1, (long) merged.first.first);
+    }
+
+    @Test
+    public void testRemoveEventsRange() {
+        for (int i = 0; i < 5; i++) {
+            dbInstance.addEvent("{\"event_type\":\"test\"}");
+            dbInstance.addIdentify("{\"event_type\":\"$identify\"}");
+        }
+        dbInstance.removeEvents(1, 3);
+        dbInstance.removeIdentifys(3, 4);
+        assertEquals(3, dbInstance.getEventCount());
+        assertEquals(4, dbInstance.getIdentifyCount());
+        List<StoredEvent> events = dbInstance.getStoredEvents(-1, -1);
+        assertEquals(1, events.get(0).getId());
+        assertEquals(4, events.get(1).getId());
+    }
+
+    @Test
+    public void testQuarantineEvent() {
+        String event = "{\"event_type\":\"test\"}";
+        for (int i = 0; i < 3; i++) {
+            dbInstance.addEvent(event);
+        }
+        dbInstance.addIdentify(event);
+
+        assertTrue(dbInstance.quarantineEvent(2, "413"));
+        assertTrue(dbInstance.quarantineIdentify(1, "413"));
+        assertFalse(dbInstance.quarantineEvent(2, "413"));
+        assertEquals(2, dbInstance.getEventCount());
+        assertEquals(0, dbInstance.getIdentifyCount());
+        assertEquals(2 * Utils.getUtf8Length(event), dbInstance.getEventBytes());
+        assertEquals(3, dbInstance.getStoredEvents(-1, -1).get(1).getId());
+
+        assertEquals(2, dbInstance.getQuarantinedEventCount());
+        assertEquals(2 * Utils.getUtf8Length(event), dbInstance.getQuarantinedEventBytes());
+        Cursor cursor = dbInstance.getReadableDatabase().rawQuery("SELECT source_table, source_id,"
+                + " event, reason FROM " + DatabaseHelper.QUARANTINE_TABLE_NAME, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(DatabaseHelper.EVENT_TABLE_NAME, cursor.getString(0));
+        assertEquals(2, cursor.getLong(1));
+        assertEquals(event, cursor.getString(2));
+        assertEquals("413", cursor.getString(3));
+        cursor.close();
+
+        // only the newest quarantined events are kept
+        for (int i = 0; i < Constants.QUARANTINE_MAX_COUNT; i++) {
+            dbInstance.quarantineEvent(dbInstance.addEvent(event), "413");
+        }
+        assertEquals(Constants.QUARANTINE_MAX_COUNT, dbInstance.getQuarantinedEventCount());
+        assertEquals(2, dbInstance.getEventCount());
+    }
+
+    @Test
+    public void testPriorityEvents() {
+        dbInstance.addEvent(sequencedEvent("event_1", 1));
+        for (int i = 2; i <= 4; i++) {
+            dbInstance.addPriorityEventWithMetadata(sequencedEvent("priority_" + i, i), null, null);
+        }
+        assertEquals(1, dbInstance.getEventCount());
+        assertEquals(1, dbInstance.getTotalEventCount());
+        assertEquals(3, dbInstance.getPriorityEventCount());
+
+        // the priority queue has its own ids
+        Pair<Long, List<StoredEvent>> read = dbInstance.getPriorityEvents(-1, -1, 2, 0);
+        assertEquals(2, (long) read.first);
+        assertEquals(2, read.second.size());
+        assertEquals(1, read.second.get(0).getId());
+        assertEquals(2, read.second.get(0).getSequenceNumber());
+        read = dbInstance.getPriorityEvents(1, 2, 10, 0);
+        assertEquals(1, read.second.size());
+        assertEquals(2, read.second.get(0).getId());
+
+        // only events up to the byte budget are read, and always at least one
+        long bytes = Utils.getUtf8Length(sequencedEvent("priority_2", 2));
+        assertEquals(2, dbInstance.getPriorityEvents(-1, -1, 10, bytes * 2).second.size());
+        assertEquals(1, dbInstance.getPriorityEvents(-1, -1, 10, 1).second.size());
+
+        dbInstance.removePriorityEvents(-1, 2);
+        assertEquals(1, dbInstance.getPriorityEventCount());
+        assertEquals(1, dbInstance.getEventCount());
+        assertTrue(dbInstance.quarantinePriorityEvent(3, "413"));
+        assertEquals(0, dbInstance.getPriorityEventCount());
+        assertEquals(1, dbInstance.getQuarantinedEventCount());
+
+        for (int i = 0; i < 5; i++) {
+            dbInstance.addPriorityEventWithMetadata(sequencedEvent("priority", 10 + i), null, null);
+        }
+        assertEquals(2, dbInstance.trimPriorityEvents(4, 3));
+        assertEquals(3, dbInstance.getPriorityEventCount());
+        assertEquals(1, dbInstance.getEventCount());
+    }
+
+    @Test
+    public void testGetMergedEventsTies() {
+        // identifys go before events with the same sequence number, like the in-memory merge
+        dbInstance.addEvent("{\"event_type\":\"legacy\"}");
+        dbInstance.addIdentify("{\"event_type\":\"legacy_identify\"}");
+        dbInstance.addEvent(sequencedEvent("event_1", 1));
+        dbInstance.addIdentify(sequencedEvent("identify_1", 1));
+
+        List<StoredEvent> merged = dbInstance.getMergedEvents(-1, -1, 10).second;
+        List<StoredEvent> expected = amplitude.mergeEventsAndIdentifys(
+                dbInstance.getStoredEvents(-1, -1), dbInstance.getStoredIdentifys(-1, -1),
+                10).second;
+        assertEquals(4, merged.size());
+        assertTrue(merged.get(0).getEvent().contains("\"legacy\""));
+        assertTrue(merged.get(2).getEvent().contains("identify_1"));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(expected.get(i).getEvent(), merged.get(i).getEvent());
+        }
+    }
+
+    @Test
+    public void testGetMergedEventsTakesEachTableInIdOrder() {
+        // sequence numbers out of id order, a batch must still be a prefix of each table
+        // since uploaded batches are removed by id range
+        dbInstance.addEvent(sequencedEvent("event_5", 5));
+        dbInstance.addEvent(sequencedEvent("event_1", 1));
+        dbInstance.addEvent(sequencedEvent("event_2", 2));
+        dbInstance.addIdentify(sequencedEvent("identify_3", 3));
+        dbInstance.addIdentify(sequencedEvent("identify_0", 0));
+
+        Pair<Pair<Long, Long>, List<StoredEvent>> merged = dbInstance.getMergedEvents(-1, -1, 3);
+        List<StoredEvent> expected = amplitude.mergeEventsAndIdentifys(
+                dbInstance.getStoredEvents(-1, -1), dbInstance.getStoredIdentifys(-1, -1),
+                3).second;
+        assertEquals(3, merged.second.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(expected.get(i).getEvent(), merged.second.get(i).getEvent());
+        }
+        assertEquals(1, (long) merged.first.first);
+        assertEquals(2, (long) merged.first.second);
+    }
+
+    @Test
+    public void testUpgradeFillsMissingSequenceNumbers() {
+        // rows from before the sequence number column have none stored
+        dbInstance.addIdentify(sequencedEvent("identify_1", 1));
+        dbInstance.addEvent(sequencedEvent("event_2", 2));
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME + " (event) VALUES ('"
+                + sequencedEvent("event_0", 0) + "')");
+        db.execSQL("INSERT INTO " + DatabaseHelper.IDENTIFY_TABLE_NAME + " (event) VALUES ('"
+                + sequencedEvent("identify_3", 3) + "')");
+        dbInstance.onUpgrade(db, 6, 7);
+        assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                + DatabaseHelper.EVENT_TABLE_NAME + " WHERE sequence_number IS NULL", null));
+
+        List<StoredEvent> events = dbInstance.getMergedEvents(-1, -1, 10).second;
+        assertEquals(4, events.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, events.get(i).getSequenceNumber());
+        }
+        assertEquals(0, dbInstance.getStoredEvents(-1, -1).get(1).getSequenceNumber());
+    }
+
+    @Test
+    public void testGetMergedEventsCompressed() {
+        dbInstance.setEventCompression(true);
+        dbInstance.addEvent(sequencedEvent("event_2", 2));
+        dbInstance.addIdentify(sequencedEvent("identify_1", 1));
+
+        List<StoredEvent> events = dbInstance.getMergedEvents(-1, -1, 10).second;
+        assertEquals(sequencedEvent("identify_1", 1), events.get(0).getEvent());
+        assertEquals(sequencedEvent("event_2", 2), events.get(1).getEvent());
+    }
+}
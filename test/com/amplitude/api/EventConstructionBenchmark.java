@@ -0,0 +1,177 @@
+package com.amplitude.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+    Allocation benchmark of building and serializing an event: with every field put into the
+    event's JSONObject (the way logEvent used to do it), with the cached event context appended
+    to the event's JSONObject, and written by the streaming EventEncoder. Not part of the
+    regular test run (the ant test target only picks up *Test classes), run it directly with
+    JUnit on a HotSpot JVM, which reports the bytes allocated by a thread.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventConstructionBenchmark extends BaseTest {
+
+    private static final int WARMUP_EVENTS = 20000;
+    private static final int EVENTS = 100000;
+    private static final String[] API_PROPERTY_NAMES = new String[] {
+        "location", "androidADID", "limit_ad_tracking", "gps_enabled"
+    };
+
+    private com.sun.management.ThreadMXBean threads;
+    private DeviceInfo deviceInfo;
+    private EventEncoder encoder = new EventEncoder();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(false);
+        amplitude.initialize(context, apiKey);
+        Shadows.shadowOf(amplitude.logThread.getLooper()).runToEndOfTasks();
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        deviceInfo = new DeviceInfo(context);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private interface EventBuilder {
+        String build(long i) throws JSONException;
+    }
+
+    @Test
+    public void benchmarkEventConstruction() throws Exception {
+        EventBuilder full = new EventBuilder() {
+            @Override
+            public String build(long i) throws JSONException {
+                return buildFullEvent(i);
+            }
+        };
+        EventBuilder withContext = new EventBuilder() {
+            @Override
+            public String build(long i) throws JSONException {
+                return buildWithContext(i);
+            }
+        };
+        EventBuilder encoded = new EventBuilder() {
+            @Override
+            public String build(long i) throws JSONException {
+                return encode(i);
+            }
+        };
+        assertEquals(full.build(0).length(), withContext.build(0).length());
+        assertEquals(full.build(0).length(), encoded.build(0).length());
+
+        measure(full, WARMUP_EVENTS);
+        measure(withContext, WARMUP_EVENTS);
+        measure(encoded, WARMUP_EVENTS);
+        long[] fullCost = measure(full, EVENTS);
+        long[] contextCost = measure(withContext, EVENTS);
+        long[] encodedCost = measure(encoded, EVENTS);
+        System.out.println(String.format(
+            "Event construction: full JSONObject %d bytes/event %d ns/event, "
+                + "event context %d bytes/event %d ns/event, "
+                + "event encoder %d bytes/event %d ns/event",
+            fullCost[0], fullCost[1], contextCost[0], contextCost[1],
+            encodedCost[0], encodedCost[1]
+        ));
+    }
+
+    // returns the bytes allocated and the nanoseconds spent per event
+    private long[] measure(EventBuilder builder, int count) throws JSONException {
+        long threadId = Thread.currentThread().getId();
+        long length = 0;
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            length += builder.build(i).length();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = threads.getThreadAllocatedBytes(threadId) - startBytes;
+        assertEquals(true, length > 0);
+        return new long[] { bytes / count, elapsed / count };
+    }
+
+    // the calls logEvent makes
+    private String encode(long i) throws JSONException {
+        Object[] apiPropertyValues = new Object[] { null, null, false, false };
+        return encoder.beginEvent()
+            .name("event_type").value("benchmark")
+            .name("timestamp").value(i)
+            .name("session_id").value(i)
+            .name("uuid").value(UUID.randomUUID().toString())
+            .name("sequence_number").value(i)
+            .name("api_properties").valueWith(null, API_PROPERTY_NAMES, apiPropertyValues)
+            .name("event_properties").truncatedValue(null)
+            .name("user_properties").truncatedValue(null)
+            .name("groups").truncatedValue(null)
+            .members(amplitude.getEventContext().getFields())
+            .endEvent();
+    }
+
+    private JSONObject buildEventFields(JSONObject event, long i) throws JSONException {
+        event.put("event_type", "benchmark");
+        event.put("timestamp", i);
+        event.put("session_id", i);
+        event.put("uuid", UUID.randomUUID().toString());
+        event.put("sequence_number", i);
+        return event;
+    }
+
+    private JSONObject buildProperties(JSONObject event) throws JSONException {
+        JSONObject apiProperties = new JSONObject();
+        apiProperties.put("limit_ad_tracking", false);
+        apiProperties.put("gps_enabled", false);
+        event.put("api_properties", apiProperties);
+        event.put("event_properties", new JSONObject());
+        event.put("user_properties", new JSONObject());
+        event.put("groups", new JSONObject());
+        return event;
+    }
+
+    private String buildWithContext(long i) throws JSONException {
+        JSONObject event = buildProperties(buildEventFields(new JSONObject(), i));
+        return amplitude.getEventContext().serialize(event);
+    }
+
+    private String buildFullEvent(long i) throws JSONException {
+        JSONObject event = buildEventFields(new JSONObject(), i);
+        event.put("user_id", JSONObject.NULL);
+        event.put("device_id", amplitude.getDeviceId());
+        event.put("version_name", replaceWithJSONNull(deviceInfo.getVersionName()));
+        event.put("os_name", replaceWithJSONNull(deviceInfo.getOsName()));
+        event.put("os_version", replaceWithJSONNull(deviceInfo.getOsVersion()));
+        event.put("device_brand", replaceWithJSONNull(deviceInfo.getBrand()));
+        event.put("device_manufacturer", replaceWithJSONNull(deviceInfo.getManufacturer()));
+        event.put("device_model", replaceWithJSONNull(deviceInfo.getModel()));
+        event.put("carrier", replaceWithJSONNull(deviceInfo.getCarrier()));
+        event.put("country", replaceWithJSONNull(deviceInfo.getCountry()));
+        event.put("language", replaceWithJSONNull(deviceInfo.getLanguage()));
+        event.put("platform", Constants.PLATFORM);
+
+        JSONObject library = new JSONObject();
+        library.put("name", Constants.LIBRARY);
+        library.put("version", Constants.VERSION);
+        event.put("library", library);
+        return buildProperties(event).toString();
+    }
+
+    private static Object replaceWithJSONNull(Object value) {
+        return value == null ? JSONObject.NULL : value;
+    }
+}
@@ -0,0 +1,147 @@
+package com.amplitude.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventEncoderTest extends BaseTest {
+
+    private EventEncoder encoder;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(false);
+        encoder = new EventEncoder();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    // a fresh copy every call, as truncate changes the object it is given
+    private JSONObject properties() throws JSONException {
+        StringBuilder escapes = new StringBuilder();
+        for (char c = 0; c < 0x80; c++) {
+            escapes.append(c);
+        }
+        escapes.append("é 中😀");
+
+        JSONObject nested = new JSONObject();
+        nested.put("long", repeat('n', 2000));
+        nested.put("array", new JSONArray().put(repeat('a', 1500)).put(new JSONArray().put(1.5)));
+
+        JSONObject properties = new JSONObject();
+        properties.put("escapes", escapes.toString());
+        properties.put("long", repeat('x', 1100));
+        properties.put(Constants.AMP_REVENUE_RECEIPT, repeat('r', 1100));
+        properties.put(Constants.AMP_REVENUE_RECEIPT_SIG, repeat('s', 1100));
+        properties.put("int", 42);
+        properties.put("long_number", Long.MAX_VALUE);
+        properties.put("double", 3.25);
+        properties.put("whole_double", 10.0);
+        properties.put("float", 0.1f);
+        properties.put("negative_zero", -0.0);
+        properties.put("boolean", true);
+        properties.put("null", JSONObject.NULL);
+        properties.put("nested", nested);
+        properties.put("empty", new JSONObject());
+        properties.put(repeat('k', 1100), "long key");
+        return properties;
+    }
+
+    @Test
+    public void testMatchesJSONObject() throws JSONException {
+        String eventType = "test/event \"quoted\"";
+        String encoded = encoder.beginEvent()
+            .name("event_type").value(eventType)
+            .name("timestamp").value(1234567890123L)
+            .name("user_id").value((String) null)
+            .name("event_properties").truncatedValue(properties())
+            .name("user_properties").truncatedValue(null)
+            .endEvent();
+
+        // the JSONObject on the test classpath does not keep the members in order
+        String expected = "{\"event_type\":" + JSONObject.quote(eventType)
+                + ",\"timestamp\":1234567890123,\"user_id\":null,\"event_properties\":"
+                + amplitude.truncate(properties()).toString() + ",\"user_properties\":{}}";
+        assertEquals(expected, encoded);
+    }
+
+    @Test
+    public void testTooManyProperties() throws JSONException {
+        JSONObject properties = new JSONObject();
+        for (int i = 0; i < Constants.MAX_PROPERTY_KEYS + 1; i++) {
+            properties.put("key" + i, i);
+        }
+        JSONObject nested = new JSONObject().put("nested", properties).put("key", "value");
+
+        assertEquals("{\"properties\":{}}", encoder.beginEvent()
+                .name("properties").truncatedValue(properties).endEvent());
+        assertEquals("{\"properties\":{\"nested\":{},\"key\":\"value\"}}", encoder.beginEvent()
+                .name("properties").truncatedValue(nested).endEvent());
+    }
+
+    @Test
+    public void testValueWith() throws JSONException {
+        JSONObject location = new JSONObject().put("lat", 37.7);
+        JSONObject apiProperties = new JSONObject();
+        apiProperties.put("special", "revenue_amount");
+        apiProperties.put("gps_enabled", "replaced in place");
+        apiProperties.put("androidADID", "kept");
+        apiProperties.put("price", "1.99");
+
+        String encoded = encoder.beginEvent().name("api_properties").valueWith(apiProperties,
+                new String[] { "location", "androidADID", "gps_enabled" },
+                new Object[] { location, null, false }).endEvent();
+
+        StringBuilder expected = new StringBuilder("{\"api_properties\":{");
+        Iterator<?> keys = apiProperties.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            String value = JSONObject.quote(apiProperties.getString(key));
+            expected.append(JSONObject.quote(key)).append(':')
+                    .append(key.equals("gps_enabled") ? "false" : value).append(',');
+        }
+        expected.append("\"location\":{\"lat\":37.7}}}");
+        assertEquals(expected.toString(), encoded);
+
+        assertEquals("{\"api_properties\":{\"a\":1}}", encoder.beginEvent()
+                .name("api_properties").valueWith(null, new String[] { "a", "b" },
+                        new Object[] { 1, null }).endEvent());
+    }
+
+    @Test
+    public void testMembers() throws JSONException {
+        assertEquals("{\"a\":1,\"b\":2}",
+                encoder.beginEvent().name("a").value(1).members("\"b\":2").endEvent());
+        assertEquals("{\"b\":2}", encoder.beginEvent().members("\"b\":2").endEvent());
+        assertEquals("{\"a\":1}", encoder.beginEvent().name("a").value(1).members("").endEvent());
+    }
+
+    @Test
+    public void testFailedEventIsDiscarded() throws JSONException {
+        encoder.beginEvent().name("a").beginObject().name("b");
+        assertEquals("{\"c\":3}", encoder.beginEvent().name("c").value(3).endEvent());
+    }
+}
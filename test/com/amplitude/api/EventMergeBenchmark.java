@@ -0,0 +1,103 @@
+package com.amplitude.api;
+
+import android.util.Pair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+    Benchmark of draining a 10k row backlog of interleaved events and identifys in upload
+    batches: reading a batch from each table and merging them in Java (the way updateServer
+    used to do it), against the merged query that reads exactly one batch. Not part of the
+    regular test run (the ant test target only picks up *Test classes), run it directly with
+    JUnit. Robolectric's SQLite runs on the JVM, so the numbers only compare the two paths.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventMergeBenchmark extends BaseTest {
+
+    private static final int BACKLOG = 10000;
+    private static final int UPLOAD_BATCH_SIZE = 100;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(false);
+        amplitude.initialize(context, apiKey);
+        Shadows.shadowOf(amplitude.logThread.getLooper()).runToEndOfTasks();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private interface BatchReader {
+        Pair<Pair<Long, Long>, List<StoredEvent>> read(DatabaseHelper dbHelper);
+    }
+
+    @Test
+    public void benchmarkEventMerge() {
+        BatchReader javaMerge = new BatchReader() {
+            @Override
+            public Pair<Pair<Long, Long>, List<StoredEvent>> read(DatabaseHelper dbHelper) {
+                List<StoredEvent> events = dbHelper.getStoredEvents(-1, UPLOAD_BATCH_SIZE);
+                List<StoredEvent> identifys = dbHelper.getStoredIdentifys(-1, UPLOAD_BATCH_SIZE);
+                return amplitude.mergeEventsAndIdentifys(events, identifys, UPLOAD_BATCH_SIZE);
+            }
+        };
+        BatchReader sqlMerge = new BatchReader() {
+            @Override
+            public Pair<Pair<Long, Long>, List<StoredEvent>> read(DatabaseHelper dbHelper) {
+                return dbHelper.getMergedEvents(-1, -1, UPLOAD_BATCH_SIZE);
+            }
+        };
+
+        DatabaseHelper javaHelper = DatabaseHelper.getDatabaseHelper(context, "java_merge");
+        DatabaseHelper sqlHelper = DatabaseHelper.getDatabaseHelper(context, "sql_merge");
+        fillBacklog(javaHelper);
+        fillBacklog(sqlHelper);
+        double javaRate = drain(javaHelper, javaMerge);
+        double sqlRate = drain(sqlHelper, sqlMerge);
+        System.out.println(String.format(
+            "Event merge over %d rows: two reads and Java merge %.0f events/s, "
+                + "merged query %.0f events/s (%.1fx)",
+            BACKLOG, javaRate, sqlRate, sqlRate / javaRate
+        ));
+    }
+
+    // one identify for every four events, sequence numbers in logging order
+    private void fillBacklog(DatabaseHelper dbHelper) {
+        for (int i = 0; i < BACKLOG; i++) {
+            String event = "{\"event_type\":\"benchmark\",\"sequence_number\":" + i + "}";
+            if (i % 5 == 4) {
+                dbHelper.addIdentify(event);
+            } else {
+                dbHelper.addEvent(event);
+            }
+        }
+    }
+
+    // uploads the whole backlog batch by batch, returns events per second
+    private double drain(DatabaseHelper dbHelper, BatchReader reader) {
+        long uploaded = 0;
+        long start = System.nanoTime();
+        while (dbHelper.getTotalEventCount() > 0) {
+            Pair<Pair<Long, Long>, List<StoredEvent>> batch = reader.read(dbHelper);
+            if (batch.first.first >= 0) dbHelper.removeEvents(batch.first.first);
+            if (batch.first.second >= 0) dbHelper.removeIdentifys(batch.first.second);
+            uploaded += UPLOAD_BATCH_SIZE;
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals(BACKLOG, uploaded);
+        return BACKLOG / (elapsed / 1e9);
+    }
+}
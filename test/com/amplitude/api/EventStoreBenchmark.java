@@ -0,0 +1,93 @@
+package com.amplitude.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+    Throughput benchmark of the event store backends against the SQLite database. Not part of
+    the regular test run (the ant test target only picks up *Test classes), run it directly
+    with JUnit. Robolectric's SQLite runs on the JVM, so the numbers only compare the backends
+    with each other, not with a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventStoreBenchmark extends BaseTest {
+
+    private static final int WARMUP_EVENTS = 500;
+    private static final int EVENTS = 5000;
+    private static final int UPLOAD_BATCH_SIZE = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void benchmarkEventStores() throws Exception {
+        DatabaseHelper persistent = DatabaseHelper.getDatabaseHelper(context, "persistent");
+        persistent.setPersistentConnection(true);
+
+        double sqliteRate = measure(DatabaseHelper.getDatabaseHelper(context, "transient"));
+        double persistentRate = measure(persistent);
+        double fileRate = measure(new FileEventStore(folder.newFolder()));
+        double mappedRate = measure(new MappedEventStore(folder.newFolder()));
+        System.out.println(String.format(
+            "EventStore: SQLite %.0f events/s, persistent SQLite %.0f events/s (%.1fx), "
+                + "file journal %.0f events/s (%.1fx), mapped journal %.0f events/s (%.1fx)",
+            sqliteRate, persistentRate, persistentRate / sqliteRate, fileRate,
+            fileRate / sqliteRate, mappedRate, mappedRate / sqliteRate
+        ));
+    }
+
+    private double measure(EventStore store) throws JSONException {
+        String event = new JSONObject().put("event_type", "benchmark").toString();
+
+        logAndUpload(store, event, WARMUP_EVENTS);
+        long start = System.nanoTime();
+        logAndUpload(store, event, EVENTS);
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(0, store.getEventCount());
+        store.close();
+        return EVENTS / (elapsed / 1e9);
+    }
+
+    // replays the store calls AmplitudeClient makes to save events and upload them in batches
+    private void logAndUpload(EventStore store, String event, int count) {
+        Map<String, Long> metadata = new HashMap<String, Long>();
+        for (int i = 0; i < count; i++) {
+            metadata.put(AmplitudeClient.SEQUENCE_NUMBER_KEY, (long) i);
+            metadata.put(AmplitudeClient.LAST_EVENT_TIME_KEY, (long) i);
+            store.addEventWithMetadata(event, AmplitudeClient.LAST_EVENT_ID_KEY, metadata);
+            store.getTotalEventCount();
+
+            if (store.getEventCount() >= UPLOAD_BATCH_SIZE) {
+                List<StoredEvent> batch = store.getStoredEvents(-1, UPLOAD_BATCH_SIZE);
+                store.removeEvents(batch.get(batch.size() - 1).getId());
+            }
+        }
+        store.removeEvents(Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,322 @@
+package com.amplitude.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Behaviour every {@link EventStore} has to share, run against each backend by its subclass.
+ * Not named *Test so the test runner does not pick up the abstract class itself.
+ */
+public abstract class EventStoreConformance extends BaseTest {
+
+    protected EventStore store;
+
+    /**
+     * Returns a new, empty store.
+     */
+    protected abstract EventStore createStore() throws Exception;
+
+    /**
+     * Returns the store as it would be read back after the app restarts. Stores that keep
+     * nothing across restarts return the same instance.
+     */
+    protected abstract EventStore reopenStore(EventStore store) throws Exception;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(false);
+        store = createStore();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        super.tearDown();
+    }
+
+    protected static String event(String type) {
+        return "{\"event_type\":\"" + type + "\"}";
+    }
+
+    @Test
+    public void testAddAndGetEvents() throws JSONException {
+        assertEquals(1, store.addEvent(event("test_1")));
+        assertEquals(2, store.addEvent(event("test_2")));
+        assertEquals(3, store.addEvent(event("test_3")));
+
+        List<JSONObject> events = store.getEvents(-1, -1);
+        assertEquals(3, events.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("test_" + (i + 1), events.get(i).getString("event_type"));
+            assertEquals(i + 1, events.get(i).getLong("event_id"));
+        }
+
+        assertEquals(2, store.getEvents(2, -1).size());
+        assertEquals(1, store.getEvents(-1, 1).size());
+        assertEquals(1, store.getEvents(-1, 1).get(0).getLong("event_id"));
+        assertEquals(0, store.getEvents(0, -1).size());
+    }
+
+    @Test
+    public void testGetStoredEvents() throws Exception {
+        String event = "{\"event_type\":\"test\",\"sequence_number\":7}";
+        store.addEvent(event);
+        store.addEvent(event("no_sequence_number"));
+        store.addIdentify(event);
+
+        store = reopenStore(store);
+        List<StoredEvent> events = store.getStoredEvents(-1, -1);
+        assertEquals(2, events.size());
+        assertEquals(1, events.get(0).getId());
+        assertEquals(event, events.get(0).getEvent());
+        assertEquals(7, events.get(0).getSequenceNumber());
+        assertEquals(-1, events.get(1).getSequenceNumber());
+        assertEquals(1, store.getStoredEvents(1, -1).size());
+        assertEquals(1, store.getStoredEvents(-1, 1).size());
+        assertEquals(7, store.getStoredIdentifys(-1, -1).get(0).getSequenceNumber());
+    }
+
+    @Test
+    public void testQueuesAreSeparate() throws JSONException {
+        assertEquals(1, store.addEvent(event("test_event")));
+        assertEquals(1, store.addIdentify(event("test_identify")));
+        assertEquals(2, store.addIdentify(event("test_identify")));
+
+        assertEquals(1, store.getEventCount());
+        assertEquals(2, store.getIdentifyCount());
+        assertEquals(3, store.getTotalEventCount());
+        assertEquals("test_identify", store.getIdentifys(-1, -1).get(0).getString("event_type"));
+
+        store.removeIdentifys(2);
+        assertEquals(1, store.getEventCount());
+        assertEquals(0, store.getIdentifyCount());
+    }
+
+    @Test
+    public void testAddEvents() throws JSONException {
+        assertEquals(-1, store.addEvents(Arrays.<String>asList()));
+        assertEquals(3, store.addEvents(Arrays.asList(
+                event("test_1"), event("test_2"), event("test_3"))));
+        assertEquals(2, store.addIdentifys(Arrays.asList(event("test_1"), event("test_2"))));
+
+        assertEquals(3, store.getEventCount());
+        assertEquals(2, store.getIdentifyCount());
+        assertEquals("test_3", store.getEvents(-1, -1).get(2).getString("event_type"));
+    }
+
+    @Test
+    public void testAddEventWithMetadata() {
+        Map<String, Long> metadata = new HashMap<String, Long>();
+        metadata.put("sequence_number", 5L);
+
+        assertEquals(1, store.addEventWithMetadata(event("test"), "last_event_id", metadata));
+        assertEquals(1L, (long) store.getLongValue("last_event_id"));
+        assertEquals(5L, (long) store.getLongValue("sequence_number"));
+
+        assertEquals(3, store.addEventsWithMetadata(
+                Arrays.asList(event("test"), event("test")), "last_event_id", null));
+        assertEquals(3L, (long) store.getLongValue("last_event_id"));
+
+        assertEquals(1, store.addIdentifyWithMetadata(event("test"), "last_identify_id", null));
+        assertEquals(1L, (long) store.getLongValue("last_identify_id"));
+        assertEquals(3, store.addIdentifysWithMetadata(
+                Arrays.asList(event("test"), event("test")), "last_identify_id", metadata));
+        assertEquals(3L, (long) store.getLongValue("last_identify_id"));
+    }
+
+    @Test
+    public void testRemoveEvents() throws JSONException {
+        for (int i = 1; i <= 5; i++) {
+            store.addEvent(event("test_" + i));
+        }
+
+        store.removeEvents(2);
+        assertEquals(3, store.getEventCount());
+        assertEquals(3, store.getEvents(-1, -1).get(0).getLong("event_id"));
+
+        store.removeEvent(4);
+        List<JSONObject> events = store.getEvents(-1, -1);
+        assertEquals(2, events.size());
+        assertEquals(3, events.get(0).getLong("event_id"));
+        assertEquals(5, events.get(1).getLong("event_id"));
+
+        // removing ids that are already gone is a no-op
+        store.removeEvent(4);
+        store.removeEvents(1);
+        assertEquals(2, store.getEventCount());
+
+        store.removeEvents(100);
+        assertEquals(0, store.getEventCount());
+    }
+
+    @Test
+    public void testRemoveEventsRange() throws Exception {
+        for (int i = 1; i <= 6; i++) {
+            store.addEvent(event("test_" + i));
+            store.addIdentify(event("identify_" + i));
+        }
+
+        // the rows of a batch acknowledged before the one read ahead of it
+        store.removeEvents(2, 4);
+        List<JSONObject> events = store.getEvents(-1, -1);
+        assertEquals(4, events.size());
+        assertEquals(1, events.get(0).getLong("event_id"));
+        assertEquals(2, events.get(1).getLong("event_id"));
+        assertEquals(5, events.get(2).getLong("event_id"));
+        assertEquals(6, store.getIdentifyCount());
+
+        // without a lower bound it removes everything up to maxId
+        store.removeIdentifys(-1, 3);
+        assertEquals(3, store.getIdentifyCount());
+        assertEquals(4, store.getIdentifys(-1, -1).get(0).getLong("event_id"));
+
+        // empty and already removed ranges are a no-op
+        store.removeEvents(2, 4);
+        store.removeEvents(4, 4);
+        assertEquals(4, store.getEventCount());
+
+        store.flush();
+        store = reopenStore(store);
+        events = store.getEvents(-1, -1);
+        assertEquals(4, events.size());
+        assertEquals(5, events.get(2).getLong("event_id"));
+        assertEquals(3, store.getIdentifyCount());
+
+        store.removeEvents(0, 100);
+        assertEquals(0, store.getEventCount());
+    }
+
+    @Test
+    public void testIdsAreNotReused() throws Exception {
+        store.addEvent(event("test_1"));
+        store.addEvent(event("test_2"));
+        store.removeEvents(2);
+        assertEquals(3, store.addEvent(event("test_3")));
+
+        store = reopenStore(store);
+        assertEquals(4, store.addEvent(event("test_4")));
+        assertEquals(2, store.getEventCount());
+    }
+
+    @Test
+    public void testEventBytes() {
+        // {"event_type":"test"} is 21 bytes, the accented e takes up two
+        assertEquals(0, store.getTotalEventBytes());
+        store.addEvent(event("test"));
+        store.addEvent(event("t\u00e9st"));
+        store.addIdentify(event("test"));
+        assertEquals(21 + 22, store.getEventBytes());
+        assertEquals(21, store.getIdentifyBytes());
+        assertEquals(21 + 22 + 21, store.getTotalEventBytes());
+
+        store.removeEvent(1);
+        assertEquals(22, store.getEventBytes());
+        store.removeIdentifys(1);
+        assertEquals(0, store.getIdentifyBytes());
+    }
+
+    @Test
+    public void testTrimEvents() throws JSONException {
+        for (int i = 1; i <= 10; i++) {
+            store.addEvent(event("test_" + i));
+        }
+
+        assertEquals(0, store.trimEvents(10, 5));
+        assertEquals(7, store.trimEvents(9, 3));
+        List<JSONObject> events = store.getEvents(-1, -1);
+        assertEquals(3, events.size());
+        assertEquals(8, events.get(0).getLong("event_id"));
+
+        store.addIdentify(event("test_1"));
+        store.addIdentify(event("test_2"));
+        assertEquals(1, store.trimIdentifys(1, 1));
+        assertEquals(2, store.getIdentifys(-1, -1).get(0).getLong("event_id"));
+    }
+
+    @Test
+    public void testTrimEventsToBytes() throws JSONException {
+        // every event is {"event_type":"test_N"}, 23 bytes
+        for (int i = 1; i <= 9; i++) {
+            store.addEvent(event("test_" + i));
+        }
+        assertEquals(9 * 23, store.getEventBytes());
+
+        assertEquals(0, store.trimEventsToBytes(9 * 23, 100));
+        assertEquals(5, store.trimEventsToBytes(200, 100));
+        assertEquals(4, store.getEventCount());
+        assertEquals(4 * 23, store.getEventBytes());
+        assertEquals(6, store.getEvents(-1, -1).get(0).getLong("event_id"));
+
+        store.addIdentify(event("test_1"));
+        store.addIdentify(event("test_2"));
+        assertEquals(1, store.trimIdentifysToBytes(30, 30));
+        assertEquals(23, store.getIdentifyBytes());
+    }
+
+    @Test
+    public void testKeyValues() {
+        assertNull(store.getValue("key"));
+        assertNull(store.getLongValue("key"));
+
+        assertTrue(store.insertOrReplaceKeyValue("key", "value") >= 0);
+        assertTrue(store.insertOrReplaceKeyLongValue("key", 1L) >= 0);
+        assertEquals("value", store.getValue("key"));
+        assertEquals(1L, (long) store.getLongValue("key"));
+
+        store.insertOrReplaceKeyValue("key", "new value");
+        store.insertOrReplaceKeyLongValue("key", 2L);
+        assertEquals("new value", store.getValue("key"));
+        assertEquals(2L, (long) store.getLongValue("key"));
+
+        // null removes the key, and only in its own namespace
+        store.insertOrReplaceKeyValue("key", null);
+        assertNull(store.getValue("key"));
+        assertEquals(2L, (long) store.getLongValue("key"));
+        store.insertOrReplaceKeyLongValue("key", null);
+        assertNull(store.getLongValue("key"));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        store.addEvent(event("test_1"));
+        store.addEvent(event("test_2"));
+        store.addIdentify(event("test_identify"));
+        store.removeEvent(1);
+        store.insertOrReplaceKeyValue("device_id", "test_device");
+        store.insertOrReplaceKeyLongValue("sequence_number", 2L);
+        store.flush();
+
+        store = reopenStore(store);
+        List<JSONObject> events = store.getEvents(-1, -1);
+        assertEquals(1, events.size());
+        assertEquals("test_2", events.get(0).getString("event_type"));
+        assertEquals(2, events.get(0).getLong("event_id"));
+        assertEquals(1, store.getIdentifyCount());
+        assertEquals(23, store.getEventBytes());
+        assertEquals("test_device", store.getValue("device_id"));
+        assertEquals(2L, (long) store.getLongValue("sequence_number"));
+    }
+
+    @Test
+    public void testCloseReopensTransparently() throws JSONException {
+        store.addEvent(event("test_1"));
+        store.close();
+        assertEquals(2, store.addEvent(event("test_2")));
+        assertEquals(2, store.getEvents(-1, -1).size());
+        store.close();
+        store.insertOrReplaceKeyValue("key", "value");
+        assertEquals("value", store.getValue("key"));
+    }
+}
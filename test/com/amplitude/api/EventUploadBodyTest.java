@@ -0,0 +1,75 @@
+package com.amplitude.api;
+
+import com.amplitude.security.MD5;
+
+import org.json.JSONArray;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventUploadBodyTest {
+
+    private String write(EventUploadBody body) throws Exception {
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        return buffer.readUtf8();
+    }
+
+    private String md5(String preimage) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : new MD5().digest(preimage.getBytes("UTF-8"))) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+
+    @Test
+    public void testWriteTo() throws Exception {
+        List<StoredEvent> events = Arrays.asList(
+            new StoredEvent(1, "{\"event_type\":\"a b&c=d\"}"),
+            new StoredEvent(2, "not json"),
+            new StoredEvent(3, "{\"event_type\":\"\u00e9\u6f22\ud83d\ude00\"}")
+        );
+        EventUploadBody body = new EventUploadBody("2", "api key", events, "1000");
+        String written = write(body);
+
+        Map<String, String> fields = BaseTest.parseRequest(written);
+        assertEquals(Arrays.asList("v", "client", "e", "upload_time", "checksum"),
+                Arrays.asList(fields.keySet().toArray()));
+        assertEquals("2", fields.get("v"));
+        assertEquals("api key", fields.get("client"));
+        assertEquals("1000", fields.get("upload_time"));
+
+        String expectedEvents = "[{\"event_type\":\"a b&c=d\",\"event_id\":1},"
+                + "{\"event_type\":\"\u00e9\u6f22\ud83d\ude00\",\"event_id\":3}]";
+        assertEquals(expectedEvents, fields.get("e"));
+        assertEquals(2, new JSONArray(fields.get("e")).length());
+        assertEquals(md5("2" + "api key" + expectedEvents + "1000"), fields.get("checksum"));
+
+        // retries write the same body again
+        assertEquals(written, write(body));
+        assertEquals(written.getBytes("UTF-8").length, body.contentLength());
+    }
+
+    @Test
+    public void testWriteToEmpty() throws Exception {
+        List<StoredEvent> events = Arrays.asList();
+        EventUploadBody body = new EventUploadBody("2", "key", events, "5");
+        String written = write(body);
+        assertEquals(written.length(), body.contentLength());
+        Map<String, String> fields = BaseTest.parseRequest(written);
+        assertEquals("[]", fields.get("e"));
+        assertEquals(md5("2key[]5"), fields.get("checksum"));
+    }
+}
@@ -0,0 +1,132 @@
+package com.amplitude.api;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class FileEventStoreTest extends EventStoreConformance {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Override
+    protected EventStore createStore() throws Exception {
+        directory = folder.newFolder();
+        return new FileEventStore(directory);
+    }
+
+    @Override
+    protected EventStore reopenStore(EventStore store) {
+        store.close();
+        return new FileEventStore(directory);
+    }
+
+    private File[] getSegments() {
+        return new File(directory, FileEventStore.EVENTS_DIRECTORY).listFiles();
+    }
+
+    @Test
+    public void testSegmentsAreDeletedOnceUploaded() throws Exception {
+        // each record is 40 bytes, so every segment holds two events
+        store = new FileEventStore(directory, 64);
+        for (int i = 1; i <= 10; i++) {
+            store.addEvent(event("test_" + i));
+        }
+        assertEquals(5, getSegments().length);
+
+        store.removeEvent(1);
+        assertEquals(5, getSegments().length);
+        store.removeEvents(7);
+        assertEquals(2, getSegments().length);
+
+        store = reopenStore(store);
+        List<JSONObject> events = store.getEvents(-1, -1);
+        assertEquals(3, events.size());
+        assertEquals(8, events.get(0).getLong("event_id"));
+
+        // the newest segment stays to keep track of the ids that were handed out
+        store.removeEvents(10);
+        assertEquals(1, getSegments().length);
+        store = reopenStore(store);
+        assertEquals(11, store.addEvent(event("test_11")));
+    }
+
+    @Test
+    public void testIncompleteRecordIsDropped() throws Exception {
+        store.addEvent(event("test_1"));
+        store.addEvent(event("test_2"));
+        store.close();
+
+        // a crash in the middle of an append leaves a record cut short
+        File segment = getSegments()[0];
+        long length = segment.length();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(segment, true));
+        out.writeInt(100);
+        out.write(new byte[] { 'A', 0, 0 });
+        out.close();
+
+        store = new FileEventStore(directory);
+        assertEquals(2, store.getEventCount());
+        assertEquals(length, segment.length());
+        assertEquals(3, store.addEvent(event("test_3")));
+
+        store = reopenStore(store);
+        assertEquals(3, store.getEventCount());
+        assertEquals("test_3", store.getEvents(-1, -1).get(2).getString("event_type"));
+    }
+
+    @Test
+    public void testUnreadableQueueKeepsOtherParts() throws Exception {
+        store.addEvent(event("test_1"));
+        store.addIdentify(event("test_identify"));
+        store.insertOrReplaceKeyValue("device_id", "test_device");
+        store.close();
+
+        // the events directory cannot be read or created
+        File events = new File(directory, FileEventStore.EVENTS_DIRECTORY);
+        for (File segment : getSegments()) {
+            assertTrue(segment.delete());
+        }
+        assertTrue(events.delete());
+        assertTrue(events.createNewFile());
+
+        store = new FileEventStore(directory);
+        assertEquals("test_device", store.getValue("device_id"));
+        assertEquals(1, store.getIdentifyCount());
+        assertEquals(0, store.getEventCount());
+        assertEquals(-1, store.addEvent(event("test_2")));
+        assertEquals(2, store.addIdentify(event("test_identify")));
+    }
+
+    @Test
+    public void testStoreLogIsCompacted() throws Exception {
+        for (long i = 0; i < 1000; i++) {
+            store.insertOrReplaceKeyLongValue("sequence_number", i);
+        }
+        store.insertOrReplaceKeyValue("device_id", "test_device");
+
+        // each sequence number record is 30 bytes, the log is rewritten every few hundred
+        File log = new File(directory, FileEventStore.STORE_FILE);
+        assertTrue(log.length() < 300 * 30);
+
+        store = reopenStore(store);
+        assertEquals(999L, (long) store.getLongValue("sequence_number"));
+        assertEquals("test_device", store.getValue("device_id"));
+    }
+}
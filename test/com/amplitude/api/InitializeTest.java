@@ -308,4 +308,28 @@ public class InitializeTest extends BaseTest {
         assertEquals(amplitude.previousSessionId, 14000L);
         assertEquals(amplitude.lastEventTime, 14000L);
     }
+
+    @Test
+    public void testInitializeWithEventStore() throws JSONException {
+        EventStore store = new MemoryEventStore();
+        amplitude.initialize(context, apiKey, "testUserId", store);
+        Shadows.shadowOf(amplitude.logThread.getLooper()).runOneTask();
+
+        // the metadata and events go to the store instead of the SDK's database
+        assertEquals("testUserId", store.getValue(AmplitudeClient.USER_ID_KEY));
+        assertNotNull(store.getValue(AmplitudeClient.DEVICE_ID_KEY));
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context, apiKey);
+        assertNull(dbHelper.getValue(AmplitudeClient.USER_ID_KEY));
+
+        RecordedRequest request = sendEvent(amplitude, "store_test_event", null);
+        JSONArray events = getEventsFromRequest(request);
+        assertEquals(1, events.length());
+        assertEquals("store_test_event", events.getJSONObject(0).getString("event_type"));
+        assertEquals(1, (long) store.getLongValue(AmplitudeClient.LAST_EVENT_ID_KEY));
+        assertEquals(0, dbHelper.getEventCount());
+
+        // uploaded events are removed from the store
+        Shadows.shadowOf(amplitude.logThread.getLooper()).runToEndOfTasks();
+        assertEquals(0, store.getEventCount());
+    }
 }
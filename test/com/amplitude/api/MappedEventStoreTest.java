@@ -0,0 +1,166 @@
+package com.amplitude.api;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MappedEventStoreTest extends EventStoreConformance {
+
+    // every {"event_type":"test_N"} record is 39 bytes, so a segment holds two
+    private static final int SEGMENT_BYTES = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Override
+    protected EventStore createStore() throws Exception {
+        directory = folder.newFolder();
+        return new MappedEventStore(directory, SEGMENT_BYTES);
+    }
+
+    @Override
+    protected EventStore reopenStore(EventStore store) {
+        store.close();
+        return new MappedEventStore(directory, SEGMENT_BYTES);
+    }
+
+    private File getEventsDirectory() {
+        return new File(directory, MappedEventStore.EVENTS_DIRECTORY);
+    }
+
+    @Test
+    public void testSegmentsAreDeletedOnceAcknowledged() throws Exception {
+        for (int i = 1; i <= 10; i++) {
+            store.addEvent(event("test_" + i));
+        }
+        assertEquals(5, FileEventStore.getSegmentIds(
+                getEventsDirectory(), MappedJournal.SEGMENT_SUFFIX).size());
+
+        // a single removal is recorded in the checkpoint, the segment stays
+        store.removeEvent(1);
+        assertEquals(5, FileEventStore.getSegmentIds(
+                getEventsDirectory(), MappedJournal.SEGMENT_SUFFIX).size());
+        store.removeEvents(7);
+        assertEquals(2, FileEventStore.getSegmentIds(
+                getEventsDirectory(), MappedJournal.SEGMENT_SUFFIX).size());
+
+        store = reopenStore(store);
+        List<JSONObject> events = store.getEvents(-1, -1);
+        assertEquals(3, events.size());
+        assertEquals(8, events.get(0).getLong("event_id"));
+
+        store.removeEvents(10);
+        assertEquals(1, FileEventStore.getSegmentIds(
+                getEventsDirectory(), MappedJournal.SEGMENT_SUFFIX).size());
+        store = reopenStore(store);
+        assertEquals(0, store.getEventCount());
+        assertEquals(11, store.addEvent(event("test_11")));
+    }
+
+    @Test
+    public void testSingleRemovalsSurviveRestart() throws Exception {
+        for (int i = 1; i <= 4; i++) {
+            store.addEvent(event("test_" + i));
+        }
+        store.removeEvent(2);
+        store.removeEvent(4);
+
+        store = reopenStore(store);
+        List<JSONObject> events = store.getEvents(-1, -1);
+        assertEquals(2, events.size());
+        assertEquals(1, events.get(0).getLong("event_id"));
+        assertEquals(3, events.get(1).getLong("event_id"));
+        assertEquals(2 * 23, store.getEventBytes());
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws Exception {
+        store.addEvent(event("test_1"));
+        store.addEvent(event("test_2"));
+        store.addEvent(event("test_3"));
+        store.close();
+
+        // the header of a record whose payload never made it to the disk
+        RandomAccessFile segment = new RandomAccessFile(new File(getEventsDirectory(),
+                3 + MappedJournal.SEGMENT_SUFFIX), "rw");
+        segment.seek(39);
+        segment.writeInt(30);
+        segment.writeInt(12345);
+        segment.close();
+
+        store = new MappedEventStore(directory, SEGMENT_BYTES);
+        assertEquals(3, store.getEventCount());
+        assertEquals(4, store.addEvent(event("t")));
+
+        store = reopenStore(store);
+        List<JSONObject> events = store.getEvents(-1, -1);
+        assertEquals(4, events.size());
+        assertEquals("t", events.get(3).getString("event_type"));
+    }
+
+    @Test
+    public void testCorruptRecordIsDropped() throws Exception {
+        store.addEvent(event("test_1"));
+        store.addEvent(event("test_2"));
+        store.close();
+
+        // flip a byte in the second event
+        RandomAccessFile segment = new RandomAccessFile(new File(getEventsDirectory(),
+                1 + MappedJournal.SEGMENT_SUFFIX), "rw");
+        segment.seek(39 + 20);
+        segment.write('X');
+        segment.close();
+
+        store = new MappedEventStore(directory, SEGMENT_BYTES);
+        assertEquals(1, store.getEventCount());
+        assertEquals("test_1", store.getEvents(-1, -1).get(0).getString("event_type"));
+    }
+
+    @Test
+    public void testUnreadableCheckpointKeepsEvents() throws Exception {
+        store.addEvent(event("test_1"));
+        store.addEvent(event("test_2"));
+        store.removeEvents(1);
+        store.close();
+
+        FileOutputStream checkpoint = new FileOutputStream(
+                new File(getEventsDirectory(), MappedJournal.CHECKPOINT_FILE));
+        checkpoint.write(new byte[] { 1, 2, 3 });
+        checkpoint.close();
+
+        // events are sent again rather than lost
+        store = new MappedEventStore(directory, SEGMENT_BYTES);
+        assertEquals(2, store.getEventCount());
+    }
+
+    @Test
+    public void testEventLargerThanSegment() throws Exception {
+        StringBuilder type = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            type.append('x');
+        }
+        store.addEvent(event("test_1"));
+        assertEquals(2, store.addEvent(event(type.toString())));
+        assertEquals(3, store.addEvent(event("test_3")));
+
+        store = reopenStore(store);
+        List<JSONObject> events = store.getEvents(-1, -1);
+        assertEquals(3, events.size());
+        assertEquals(type.toString(), events.get(1).getString("event_type"));
+    }
+}
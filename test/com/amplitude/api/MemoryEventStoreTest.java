@@ -0,0 +1,20 @@
+package com.amplitude.api;
+
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MemoryEventStoreTest extends EventStoreConformance {
+
+    @Override
+    protected EventStore createStore() {
+        return new MemoryEventStore();
+    }
+
+    @Override
+    protected EventStore reopenStore(EventStore store) {
+        return store;
+    }
+}
@@ -0,0 +1,223 @@
+package com.amplitude.api;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowConnectivityManager;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowNetworkInfo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class NetworkMonitorTest extends BaseTest {
+
+    private static class FakeNetworkMonitor implements NetworkMonitor {
+        private volatile boolean connected = true;
+        private volatile boolean metered = false;
+        private volatile Listener listener;
+
+        @Override
+        public void start(Context context, Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void stop() {
+            listener = null;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean isMetered() {
+            return metered;
+        }
+
+        void setNetwork(boolean connected, boolean metered) {
+            this.connected = connected;
+            this.metered = metered;
+            if (listener != null) {
+                listener.onNetworkChanged();
+            }
+        }
+    }
+
+    private ShadowLooper looper;
+    private FakeNetworkMonitor monitor;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        amplitude.initialize(context, apiKey);
+        looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        monitor = new FakeNetworkMonitor();
+        amplitude.enableNetworkMonitoring(monitor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void testOfflineDefersUploads() {
+        monitor.setNetwork(false, false);
+        for (int i = 0; i < Constants.EVENT_UPLOAD_THRESHOLD * 2; i++) {
+            amplitude.logEvent("test");
+        }
+        looper.runToEndOfTasks();
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+
+        // no requests were attempted while offline
+        assertEquals(0, amplitude.uploadBatches.size());
+        assertEquals(0, server.getRequestCount());
+        assertEquals(0, amplitude.failedUploadCount);
+        assertTrue(amplitude.deferredUploadCount >= 3);
+        assertEquals(Constants.EVENT_UPLOAD_THRESHOLD * 2, getUnsentEventCount());
+
+        // back online, everything is uploaded right away
+        monitor.setNetwork(true, false);
+        looper.runToEndOfTasks();
+        RecordedRequest request = runRequest(amplitude);
+        assertEquals(Constants.EVENT_UPLOAD_THRESHOLD * 2, getEventsFromRequest(request).length());
+        looper.runToEndOfTasks();
+        assertEquals(0, getUnsentEventCount());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testReconnectSkipsRetryBackoff() throws InterruptedException {
+        ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
+        amplitude.logEvent("test");
+        looper.runToEndOfTasks();
+        server.enqueue(new MockResponse().setResponseCode(500));
+        httpLooper.runToEndOfTasks();
+        server.takeRequest(1, SECONDS);
+        looper.idle();
+        assertTrue(amplitude.uploadRetryScheduler.isBackingOff(SystemClock.uptimeMillis()));
+
+        // losing the network changes nothing, getting it back uploads without waiting
+        monitor.setNetwork(false, false);
+        looper.idle();
+        assertEquals(0, amplitude.uploadBatches.size());
+        monitor.setNetwork(true, false);
+        looper.idle();
+        assertEquals(1, amplitude.uploadBatches.size());
+        assertFalse(amplitude.uploadRetryScheduler.isBackingOff(SystemClock.uptimeMillis()));
+
+        assertEquals(1, getEventsFromRequest(runRequest(amplitude)).length());
+        looper.idle();
+        assertEquals(0, getUnsentEventCount());
+    }
+
+    @Test
+    public void testMeteredNetworkDefersLargeBacklog() {
+        amplitude.setMeteredBacklogThreshold(10);
+        monitor.setNetwork(true, true);
+
+        // a small backlog goes out over a metered network
+        for (int i = 0; i < 5; i++) {
+            amplitude.logEvent("test");
+        }
+        looper.runToEndOfTasks();
+        assertEquals(5, getEventsFromRequest(runRequest(amplitude)).length());
+        looper.runToEndOfTasks();
+        assertEquals(0, getUnsentEventCount());
+
+        // a large one waits for an unmetered network
+        for (int i = 0; i < 20; i++) {
+            amplitude.logEvent("test");
+        }
+        looper.runToEndOfTasks();
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+        assertEquals(0, amplitude.uploadBatches.size());
+        assertEquals(1, server.getRequestCount());
+
+        monitor.setNetwork(true, false);
+        looper.runToEndOfTasks();
+        assertEquals(20, getEventsFromRequest(runRequest(amplitude)).length());
+        looper.runToEndOfTasks();
+        assertEquals(0, getUnsentEventCount());
+    }
+
+    @Test
+    public void testDisableNetworkMonitoring() {
+        monitor.setNetwork(false, false);
+        amplitude.disableNetworkMonitoring();
+        amplitude.logEvent("test");
+        looper.runToEndOfTasks();
+        assertEquals(1, getEventsFromRequest(runRequest(amplitude)).length());
+    }
+
+    @Test
+    public void testConnectivityNetworkMonitor() {
+        ShadowApplication.getInstance().grantPermissions(Manifest.permission.ACCESS_NETWORK_STATE);
+        ShadowConnectivityManager connectivityManager = Shadows.shadowOf(
+            (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE));
+        connectivityManager.setActiveNetworkInfo(ShadowNetworkInfo.newInstance(
+            NetworkInfo.DetailedState.DISCONNECTED, ConnectivityManager.TYPE_WIFI, 0, false, false));
+
+        final AtomicInteger changes = new AtomicInteger();
+        ConnectivityNetworkMonitor monitor = new ConnectivityNetworkMonitor();
+        monitor.start(context, new NetworkMonitor.Listener() {
+            @Override
+            public void onNetworkChanged() {
+                changes.incrementAndGet();
+            }
+        });
+        assertFalse(monitor.isConnected());
+
+        connectivityManager.setActiveNetworkInfo(ShadowNetworkInfo.newInstance(
+            NetworkInfo.DetailedState.CONNECTED, ConnectivityManager.TYPE_WIFI, 0, true, true));
+        context.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        ShadowLooper.idleMainLooper();
+        assertEquals(1, changes.get());
+        assertTrue(monitor.isConnected());
+
+        // no more notifications once stopped
+        monitor.stop();
+        context.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        ShadowLooper.idleMainLooper();
+        assertEquals(1, changes.get());
+    }
+
+    @Test
+    public void testConnectivityNetworkMonitorWithoutPermission() {
+        Shadows.shadowOf((ConnectivityManager) context.getSystemService(
+            Context.CONNECTIVITY_SERVICE)).setActiveNetworkInfo(null);
+
+        // without the permission the device is treated as online
+        ConnectivityNetworkMonitor monitor = new ConnectivityNetworkMonitor();
+        monitor.start(context, null);
+        assertTrue(monitor.isConnected());
+        assertFalse(monitor.isMetered());
+    }
+}
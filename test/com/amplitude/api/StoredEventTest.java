@@ -0,0 +1,56 @@
+package com.amplitude.api;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StoredEventTest {
+
+    @Test
+    public void testFindSequenceNumber() {
+        assertEquals(5, StoredEvent.findSequenceNumber("{\"sequence_number\":5}"));
+        assertEquals(12, StoredEvent.findSequenceNumber(
+                "{\"event_type\":\"test\", \"sequence_number\" : 12 ,\"uuid\":\"x\"}"));
+        assertEquals(-1, StoredEvent.findSequenceNumber("{\"event_type\":\"test\"}"));
+        assertEquals(-1, StoredEvent.findSequenceNumber("{\"sequence_number\":1.5}"));
+        assertEquals(-1, StoredEvent.findSequenceNumber("{\"sequence_number\":\"5\"}"));
+        assertEquals(-1, StoredEvent.findSequenceNumber(""));
+        assertEquals(-1, StoredEvent.findSequenceNumber(null));
+    }
+
+    @Test
+    public void testFindSequenceNumberSkipsNestedMembersAndStrings() {
+        // only the top-level member counts, whatever comes before it
+        String event = "{\"event_properties\":{\"sequence_number\":1},"
+                + "\"list\":[{\"sequence_number\":2},\"sequence_number\"],"
+                + "\"event_type\":\"a\\\",\\\"sequence_number\\\":3\","
+                + "\"sequence_number\":4}";
+        assertEquals(4, StoredEvent.findSequenceNumber(event));
+        // a string value equal to the key is not a member name
+        assertEquals(-1, StoredEvent.findSequenceNumber("{\"a\":\"sequence_number\"}"));
+    }
+
+    @Test
+    public void testAppendTo() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        assertTrue(new StoredEvent(3, "{\"event_type\":\"test\"}").appendTo(builder));
+        assertTrue(new StoredEvent(4, "{ }").appendTo(builder));
+        assertFalse(new StoredEvent(5, "not json").appendTo(builder));
+        assertEquals("{\"event_type\":\"test\",\"event_id\":3}{ \"event_id\":4}",
+                builder.toString());
+
+        StoredEvent stored = new StoredEvent(3, "{\"event_type\":\"test\"}");
+        JSONObject parsed = stored.toJSONObject();
+        assertEquals("test", parsed.getString("event_type"));
+        assertEquals(3, parsed.getLong("event_id"));
+        assertFalse(stored.hasSequenceNumber());
+    }
+}
@@ -0,0 +1,129 @@
+package com.amplitude.api;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class UploadBatchPlannerTest {
+
+    private static final long MAX_BYTES = 1000 * 1024;
+
+    @Test
+    public void testTooLargeHalvesBatches() {
+        UploadBatchPlanner planner = new UploadBatchPlanner(100, MAX_BYTES, 1000);
+        assertEquals(100, planner.getBatchSize());
+        assertEquals(MAX_BYTES, planner.getBatchBytes());
+        assertFalse(planner.isBackingOff());
+
+        // halves the batch that was rejected, not the limit
+        planner.onTooLarge(40, 400 * 1024);
+        assertEquals(20, planner.getBatchSize());
+        assertEquals(200 * 1024, planner.getBatchBytes());
+        assertTrue(planner.isBackingOff());
+
+        planner.onTooLarge(20, 200 * 1024);
+        planner.onTooLarge(10, 100 * 1024);
+        planner.onTooLarge(5, 50 * 1024);
+        planner.onTooLarge(3, 25 * 1024);
+        planner.onTooLarge(2, 16 * 1024);
+        assertEquals(1, planner.getBatchSize());
+        assertEquals(UploadBatchPlanner.MIN_BATCH_BYTES, planner.getBatchBytes());
+        planner.onTooLarge(1, 16 * 1024);
+        assertEquals(1, planner.getBatchSize());
+    }
+
+    @Test
+    public void testSuccessGrowsBackAdditively() {
+        UploadBatchPlanner planner = new UploadBatchPlanner(100, MAX_BYTES, 1000);
+        planner.onTooLarge(2, 16 * 1024);
+        assertEquals(1, planner.getBatchSize());
+
+        planner.onSuccess(1024, 100);
+        assertEquals(11, planner.getBatchSize());
+        assertEquals(UploadBatchPlanner.MIN_BATCH_BYTES + MAX_BYTES / 10,
+                planner.getBatchBytes());
+        for (int i = 0; i < 20; i++) {
+            planner.onSuccess(1024, 100);
+        }
+        assertEquals(100, planner.getBatchSize());
+        assertEquals(MAX_BYTES, planner.getBatchBytes());
+        assertFalse(planner.isBackingOff());
+    }
+
+    @Test
+    public void testSlowResponsesShrinkBatches() {
+        UploadBatchPlanner planner = new UploadBatchPlanner(100, MAX_BYTES, 1000);
+        planner.onSuccess(1024, 5000);
+        assertEquals(75, planner.getBatchSize());
+        assertEquals(MAX_BYTES - MAX_BYTES / 4, planner.getBatchBytes());
+        for (int i = 0; i < 50; i++) {
+            planner.onSuccess(1024, 5000);
+        }
+        assertEquals(1, planner.getBatchSize());
+        assertEquals(UploadBatchPlanner.MIN_BATCH_BYTES, planner.getBatchBytes());
+
+        // a fast response starts growing them again
+        planner.onSuccess(1024, 100);
+        assertEquals(11, planner.getBatchSize());
+    }
+
+    @Test
+    public void testNoByteLimit() {
+        UploadBatchPlanner planner = new UploadBatchPlanner(100, 0, 1000);
+        planner.onTooLarge(100, 1024 * 1024);
+        planner.onSuccess(1024, 5000);
+        assertEquals(0, planner.getBatchBytes());
+        assertEquals(38, planner.getBatchSize());
+
+        planner.setMaxBatchSize(50);
+        assertEquals(50, planner.getBatchSize());
+        assertFalse(planner.isBackingOff());
+    }
+
+    @Test
+    public void testSplitBisectsByBytes() {
+        UploadBatchPlanner planner = new UploadBatchPlanner(100, MAX_BYTES, 1000);
+        assertEquals(Arrays.asList(2, 2), planner.split(events(10, 10, 10, 10), 40));
+        assertEquals(Arrays.asList(1, 3), planner.split(events(30, 10, 10, 10), 60));
+        assertEquals(Arrays.asList(3, 1), planner.split(events(10, 10, 10, 30), 60));
+        assertEquals(Arrays.asList(1, 1), planner.split(events(10, 10), 20));
+    }
+
+    @Test
+    public void testSplitIsolatesRowsLargerThanAccepted() {
+        UploadBatchPlanner planner = new UploadBatchPlanner(100, MAX_BYTES, 1000);
+        planner.onSuccess(25, 100);
+
+        // known good rows are grouped up to the accepted size, larger ones go out alone
+        assertEquals(Arrays.asList(2, 1, 2, 1),
+                planner.split(events(10, 10, 100, 10, 10, 10), 150));
+        assertEquals(Arrays.asList(2, 2), planner.split(events(10, 10, 10, 10), 40));
+
+        // a rejected batch no larger than an accepted one makes the planner forget that size
+        assertEquals(Arrays.asList(1, 1), planner.split(events(10, 10), 20));
+        assertEquals(Arrays.asList(1, 2), planner.split(events(10, 100, 10), 120));
+    }
+
+    private List<StoredEvent> events(int... sizes) {
+        List<StoredEvent> events = new ArrayList<StoredEvent>();
+        for (int size : sizes) {
+            StringBuilder event = new StringBuilder();
+            while (event.length() < size) {
+                event.append('a');
+            }
+            events.add(new StoredEvent(events.size() + 1, event.toString(), -1));
+        }
+        return events;
+    }
+}
@@ -0,0 +1,114 @@
+package com.amplitude.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.mockwebserver.MockResponse;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+
+/*
+    Benchmark of draining a backlog of events through a mock server that takes a fixed time to
+    answer each request, with one batch in flight at a time and with several. Robolectric
+    only runs a looper's tasks when asked to, so the upload threads' loopers are run from one
+    Java thread each to send their requests at the same time. Not part of the regular test run
+    (the ant test target only picks up *Test classes), run it directly with JUnit.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class UploadPipelineBenchmark extends BaseTest {
+
+    private static final int BACKLOG = 2000;
+    private static final int UPLOAD_BATCH_SIZE = 100;
+    private static final long LATENCY_MILLIS = 100;
+    private static final int[] CONCURRENCY = new int[] { 1, 2, 4 };
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(false);
+        amplitude.initialize(context, apiKey);
+        Shadows.shadowOf(amplitude.logThread.getLooper()).runToEndOfTasks();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void benchmarkBacklogDrain() throws Exception {
+        amplitude.setEventUploadMaxBatchSize(UPLOAD_BATCH_SIZE);
+        for (int concurrency : CONCURRENCY) {
+            amplitude.setUploadConcurrency(concurrency);
+            fillBacklog();
+            long requests = server.getRequestCount();
+            long elapsed = drain(concurrency);
+            System.out.println(String.format(
+                "Drained %d events with %dms latency and %d batches in flight: "
+                    + "%d requests in %dms",
+                BACKLOG, LATENCY_MILLIS, concurrency,
+                server.getRequestCount() - requests, elapsed
+            ));
+        }
+    }
+
+    private void fillBacklog() {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.uploadingCurrently.set(true); // hold uploads until the backlog is complete
+        for (int i = 0; i < BACKLOG; i++) {
+            amplitude.logEvent("benchmark");
+        }
+        looper.runToEndOfTasks();
+        amplitude.uploadingCurrently.set(false);
+        assertEquals(BACKLOG, getUnsentEventCount());
+    }
+
+    // uploads the backlog and returns the time it took in milliseconds
+    private long drain(int concurrency) throws InterruptedException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        List<ShadowLooper> uploadLoopers = new ArrayList<ShadowLooper>();
+        for (int slot = 0; slot < concurrency; slot++) {
+            uploadLoopers.add(Shadows.shadowOf(amplitude.getUploadThread(slot).getLooper()));
+        }
+
+        long start = System.nanoTime();
+        amplitude.uploadEvents();
+        while (getUnsentEventCount() > 0) {
+            looper.runToEndOfTasks();
+            for (int i = 0; i < amplitude.uploadBatches.size(); i++) {
+                server.enqueue(new MockResponse().setBody("success")
+                    .setBodyDelay(LATENCY_MILLIS, MILLISECONDS));
+            }
+
+            List<Thread> threads = new ArrayList<Thread>();
+            for (final ShadowLooper uploadLooper : uploadLoopers) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        uploadLooper.runToEndOfTasks();
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            looper.runToEndOfTasks();
+            if (amplitude.uploadBatches.isEmpty() && getUnsentEventCount() > 0) {
+                amplitude.uploadEvents();
+            }
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+}
@@ -0,0 +1,127 @@
+package com.amplitude.api;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class UploadRetrySchedulerTest {
+
+    // always picks the longest delay of the jitter range
+    private static class MaxRandom extends Random {
+        @Override
+        public double nextDouble() {
+            return 1.0;
+        }
+    }
+
+    @Test
+    public void testBackoffDoublesUpToMax() {
+        UploadRetryScheduler scheduler = new UploadRetryScheduler(1000, 5000, new MaxRandom());
+        assertFalse(scheduler.isBackingOff(0));
+        assertEquals(-1, scheduler.getRetryAtMillis());
+
+        assertEquals(1000, scheduler.onFailure(100));
+        assertEquals(1100, scheduler.getRetryAtMillis());
+        assertTrue(scheduler.isBackingOff(1099));
+        assertFalse(scheduler.isBackingOff(1100));
+
+        assertEquals(2000, scheduler.onFailure(1100));
+        assertEquals(4000, scheduler.onFailure(3100));
+        assertEquals(5000, scheduler.onFailure(7100));
+        assertEquals(5000, scheduler.onFailure(12100));
+        assertEquals(5, scheduler.getConsecutiveFailures());
+    }
+
+    @Test
+    public void testJitter() {
+        UploadRetryScheduler scheduler = new UploadRetryScheduler(1000, 60000, new Random(42));
+        for (int i = 0; i < 100; i++) {
+            scheduler.onSuccess();
+            long delay = scheduler.onFailure(0);
+            assertTrue(delay >= 500 && delay <= 1000);
+            delay = scheduler.onFailure(0);
+            assertTrue(delay >= 1000 && delay <= 2000);
+        }
+    }
+
+    @Test
+    public void testSuccessResets() {
+        UploadRetryScheduler scheduler = new UploadRetryScheduler(1000, 5000, new MaxRandom());
+        scheduler.onFailure(0);
+        scheduler.onFailure(1000);
+        scheduler.onSuccess();
+        assertEquals(0, scheduler.getConsecutiveFailures());
+        assertEquals(-1, scheduler.getRetryAtMillis());
+        assertFalse(scheduler.isBackingOff(1000));
+        assertEquals(1000, scheduler.onFailure(2000));
+
+        scheduler.setDelays(10, 20);
+        assertEquals(20, scheduler.onFailure(3000));
+    }
+
+    @Test
+    public void testThrottleSetsDeadline() {
+        UploadRetryScheduler scheduler = new UploadRetryScheduler(1000, 5000, new MaxRandom());
+        assertFalse(scheduler.isThrottled(0));
+
+        // the server's delay plus a tenth of jitter
+        assertEquals(11000, scheduler.onThrottled(100, 10000));
+        assertEquals(11100, scheduler.getNotBeforeMillis());
+        assertTrue(scheduler.isThrottled(11099));
+        assertFalse(scheduler.isThrottled(11100));
+        assertEquals(1, scheduler.getThrottledCount());
+        assertEquals(1, scheduler.getConsecutiveFailures());
+
+        // a batch throttled in the meantime only moves the deadline
+        assertEquals(10900, scheduler.onThrottled(200, -1));
+        assertEquals(11100, scheduler.getNotBeforeMillis());
+        assertEquals(2, scheduler.getThrottledCount());
+        assertEquals(1, scheduler.getConsecutiveFailures());
+
+        // coming back online ends the backoff, but not the deadline
+        scheduler.reset();
+        assertTrue(scheduler.isThrottled(300));
+        assertTrue(scheduler.isBackingOff(300));
+
+        // without Retry-After the deadline is the next backoff delay
+        assertEquals(1000, scheduler.onThrottled(20000, -1));
+        assertEquals(21000, scheduler.getNotBeforeMillis());
+        assertEquals(21000, scheduler.getRetryAtMillis());
+        assertEquals(2000, scheduler.onThrottled(21000, -1));
+        assertEquals(4, scheduler.getThrottledCount());
+    }
+
+    @Test
+    public void testParseRetryAfter() {
+        long now = 1450000000000L;
+        assertEquals(-1, UploadRetryScheduler.parseRetryAfter(null, now));
+        assertEquals(-1, UploadRetryScheduler.parseRetryAfter("soon", now));
+        assertEquals(-1, UploadRetryScheduler.parseRetryAfter("-5", now));
+        assertEquals(0, UploadRetryScheduler.parseRetryAfter("0", now));
+        assertEquals(120000, UploadRetryScheduler.parseRetryAfter(" 120 ", now));
+        assertEquals(Constants.UPLOAD_THROTTLE_MAX_DELAY_MILLIS,
+            UploadRetryScheduler.parseRetryAfter("99999999999", now));
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        assertEquals(30000, UploadRetryScheduler.parseRetryAfter(
+            format.format(new Date(now + 30000)), now));
+        assertEquals(0, UploadRetryScheduler.parseRetryAfter(
+            format.format(new Date(now - 30000)), now));
+        assertEquals(Constants.UPLOAD_THROTTLE_MAX_DELAY_MILLIS, UploadRetryScheduler.parseRetryAfter(
+            format.format(new Date(now + 24 * 60 * 60 * 1000)), now));
+    }
+}
@@ -0,0 +1,92 @@
+package com.amplitude.security;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/*
+    Benchmark of hashing an upload checksum preimage of increasing size: encoded with
+    String.getBytes and hashed by java.security.MessageDigest's MD5, encoded with
+    String.getBytes and hashed by MD5, and hashed by MD5.updateUTF8 on the thread's MD5
+    instance without encoding it first. Not part of the regular test run (the ant test target
+    only picks up *Test classes), run it directly with JUnit.
+ */
+public class MD5Benchmark {
+
+    private static final int[] PAYLOAD_SIZES = new int[] { 1024, 64 * 1024, 1024 * 1024 };
+    // roughly the same number of bytes hashed for every payload size
+    private static final long BYTES_PER_RUN = 256L * 1024 * 1024;
+    private static final int WARMUP_RUNS = 2;
+
+    private interface Hasher {
+        byte[] hash(String preimage) throws Exception;
+    }
+
+    @Test
+    public void benchmarkMD5() throws Exception {
+        Hasher platform = new Hasher() {
+            @Override
+            public byte[] hash(String preimage)
+                    throws NoSuchAlgorithmException, UnsupportedEncodingException {
+                return MessageDigest.getInstance("MD5").digest(preimage.getBytes("UTF-8"));
+            }
+        };
+        Hasher bytes = new Hasher() {
+            @Override
+            public byte[] hash(String preimage) throws UnsupportedEncodingException {
+                return new MD5().digest(preimage.getBytes("UTF-8"));
+            }
+        };
+        Hasher chars = new Hasher() {
+            @Override
+            public byte[] hash(String preimage) {
+                MD5 md5 = MD5.getThreadInstance();
+                md5.updateUTF8(preimage);
+                return md5.digest();
+            }
+        };
+
+        for (int size : PAYLOAD_SIZES) {
+            String preimage = preimage(size);
+            assertArrayEquals(platform.hash(preimage), chars.hash(preimage));
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                run(platform, preimage);
+                run(bytes, preimage);
+                run(chars, preimage);
+            }
+
+            System.out.println(String.format(
+                "MD5 of %d bytes: MessageDigest %.0f MB/s, MD5 of getBytes %.0f MB/s, "
+                    + "MD5.updateUTF8 %.0f MB/s",
+                size, run(platform, preimage), run(bytes, preimage), run(chars, preimage)
+            ));
+        }
+    }
+
+    // event-like text with some non-ASCII characters, like the events array of an upload
+    private String preimage(int size) {
+        StringBuilder builder = new StringBuilder(size + 128);
+        builder.append("21cc2c1978ebab0f6451112a8f5df4f4e[");
+        for (int i = 0; builder.length() < size; i++) {
+            builder.append("{\"event_type\":\"test \u00e9v\u00e9nement\",\"event_id\":")
+                .append(i).append(",\"device_id\":\"610e21eb-2f27-48ca-bf4e-f977ce6391d1R\"},");
+        }
+        builder.setLength(size - 14);
+        return builder.append("]1439421597509").toString();
+    }
+
+    // returns MB of preimage hashed per second
+    private double run(Hasher hasher, String preimage) throws Exception {
+        long iterations = Math.max(1, BYTES_PER_RUN / preimage.length());
+        long start = System.nanoTime();
+        for (long i = 0; i < iterations; i++) {
+            hasher.hash(preimage);
+        }
+        long elapsed = System.nanoTime() - start;
+        return iterations * preimage.length() / (1024.0 * 1024.0) / (elapsed / 1e9);
+    }
+}
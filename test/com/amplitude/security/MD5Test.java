@@ -102,4 +102,82 @@ public class MD5Test {
         compareMD5("\u2661", "db36e9b42b9fa2863f94280206fb4d74");
         compareMD5("\uD83D\uDE1C", "8fb34591f1a56cf3ca9837774f4b7bd7");
     }
+
+    private byte[] utf8Digest(String input) throws UnsupportedEncodingException {
+        return new MD5().digest(input.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void testUpdateUTF8() throws UnsupportedEncodingException {
+        String[] inputs = new String[] {
+            "", "foobar", "\u00e9t\u00e9", "\u2661", "\uD83D\uDE1C",
+            "unpaired \uD83D and \uDE1C", "ends with \uD83D"
+        };
+        for (String input : inputs) {
+            MD5 md5 = new MD5();
+            md5.updateUTF8(input);
+            assertArrayEquals(input, utf8Digest(input), md5.digest());
+        }
+    }
+
+    @Test
+    public void testUpdateUTF8InChunks() throws UnsupportedEncodingException {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            input.append(i % 3 == 0 ? "\u2661" : i % 3 == 1 ? "\uD83D\uDE1C" : "abcdefg");
+        }
+
+        // chunks of every length, split on character boundaries, across block boundaries
+        for (int chunk = 1; chunk < 130; chunk++) {
+            MD5 md5 = new MD5();
+            int start = 0;
+            while (start < input.length()) {
+                int end = Math.min(start + chunk, input.length());
+                if (Character.isHighSurrogate(input.charAt(end - 1)) && end < input.length()) {
+                    end++;
+                }
+                md5.updateUTF8(input, start, end);
+                start = end;
+            }
+            assertArrayEquals(utf8Digest(input.toString()), md5.digest());
+        }
+
+        // mixed with byte array updates
+        MD5 md5 = new MD5();
+        md5.update("2".getBytes("UTF-8"));
+        md5.updateUTF8(input);
+        md5.update((byte) '5');
+        assertArrayEquals(utf8Digest("2" + input + "5"), md5.digest());
+    }
+
+    @Test
+    public void testUpdateSingleBytes() throws UnsupportedEncodingException {
+        String input = UUID.randomUUID().toString() + UUID.randomUUID().toString()
+                + UUID.randomUUID().toString();
+        MD5 md5 = new MD5();
+        for (byte b : input.getBytes("UTF-8")) {
+            md5.update(b);
+        }
+        assertArrayEquals(utf8Digest(input), md5.digest());
+    }
+
+    @Test
+    public void testGetThreadInstance() throws Exception {
+        MD5 md5 = MD5.getThreadInstance();
+        md5.updateUTF8("left over from an unfinished digest");
+        assertTrue(md5 == MD5.getThreadInstance());
+        md5.updateUTF8("foobar");
+        assertArrayEquals(utf8Digest("foobar"), md5.digest());
+
+        final MD5[] other = new MD5[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                other[0] = MD5.getThreadInstance();
+            }
+        });
+        thread.start();
+        thread.join();
+        assertTrue(md5 != other[0]);
+    }
 }